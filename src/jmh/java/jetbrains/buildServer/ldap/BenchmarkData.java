@@ -0,0 +1,83 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.springframework.lang.NonNull;
+
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import java.util.Properties;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Synthetic configuration and LDAP entries shared by the benchmarks.
+ */
+final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    /**
+     * Progress logging would distort the measurements, it is benchmarked by nobody.
+     */
+    static void disableLogging() {
+        Configurator.setLevel("jetbrains.buildServer.ldap", Level.WARN);
+    }
+
+    @NonNull
+    static LdapProperties createProperties(final int customProperties) {
+        final Properties properties = new Properties();
+        properties.setProperty("java.naming.provider.url", "ldap://localhost:389/dc=example,dc=com");
+        properties.setProperty(KEY_USER_BASE, "ou=people");
+        properties.setProperty(KEY_USER_SEARCH_FILTER, "(objectClass=person)");
+        properties.setProperty(KEY_USER_USERNAME_ATTR, "sAMAccountName");
+        properties.setProperty(KEY_USER_DISPLAY_NAME_ATTR, "displayName");
+        properties.setProperty(KEY_USER_MAIL_ATTR, "mail");
+        properties.setProperty(KEY_USER_USERNAME_TRANSFORM, "EXAMPLE\\$username$");
+        for (int i = 0; i < customProperties; i++) {
+            properties.setProperty(KEY_USER_CUSTOM_PROPERTY + "custom" + i, "attribute" + i);
+        }
+        return new LdapProperties(properties);
+    }
+
+    /**
+     * @param missingAttributes whether the entries lack email, display name and every other custom property
+     */
+    @NonNull
+    static SearchResult[] createSearchResults(final int count, final int customProperties, final boolean missingAttributes) {
+        final SearchResult[] result = new SearchResult[count];
+        for (int i = 0; i < count; i++) {
+            final BasicAttributes attributes = new BasicAttributes(true);
+            attributes.put("sAMAccountName", "User" + i);
+            if (!missingAttributes) {
+                attributes.put("displayName", "User Number " + i);
+                attributes.put("mail", "user" + i + "@example.com");
+            }
+            for (int j = 0; j < customProperties; j++) {
+                if (!missingAttributes || j % 2 == 0) {
+                    attributes.put("attribute" + j, "value " + j + " of user " + i);
+                }
+            }
+            final String name = "cn=User" + i;
+            final SearchResult searchResult = new SearchResult(name, null, attributes);
+            searchResult.setNameInNamespace(name + ",ou=people,dc=example,dc=com");
+            result[i] = searchResult;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.KEY_USER_MAIL_ATTR;
+
+/**
+ * Property access by several threads at once, as done by concurrent partition fetches.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LdapPropertiesBenchmark {
+    @Param({"10"})
+    public int customProperties;
+
+    private LdapProperties ldapProperties;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData.disableLogging();
+        ldapProperties = BenchmarkData.createProperties(customProperties);
+    }
+
+    @Benchmark
+    public String getProperty() {
+        return ldapProperties.getProperty(KEY_USER_MAIL_ATTR);
+    }
+
+    @Benchmark
+    public Map<String, String> getCustomProperties() {
+        return ldapProperties.getCustomProperties();
+    }
+
+    @Benchmark
+    public String[] getAllAttributes() {
+        return ldapProperties.getAllAttributes();
+    }
+}
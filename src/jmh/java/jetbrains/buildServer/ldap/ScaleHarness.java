@@ -0,0 +1,231 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jetbrains.buildServer.ldap.api.LdapMetrics;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.FileSystemUtils;
+
+import javax.naming.Context;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Runs the synchronization against a {@link SyntheticDirectory} the same way the application does: the first run is
+ * the startup of {@link LdapConfigurer}, the following ones call {@link LdapSynchronizer#sync()} again.
+ * For every run, prints wall time, peak heap, garbage collections and the number of users and groups per second.
+ * The heap includes the in-memory directory, which is reported separately before the runs. Note that the in-memory server
+ * evaluates the whole search for every page, so the time of paged searches grows quadratically with the population.
+ * <p>
+ * Options (all optional): --users, --groups, --membersPerGroup, --extensionAttributes, --descriptionLength,
+ * --latencyMillis (delay of every bind and search page), --sizeLimit (server size limit), --pageSize, --parallelism,
+ * --runs, --seed, --logLevel, --apply (apply the result to a {@link TeamCityRestStub}), --restLatencyMillis, --restConcurrency,
+ * --restRateLimit, --restRejectEvery.
+ */
+public class ScaleHarness {
+    private static final long MB = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = parseOptions(args);
+        final SyntheticDirectory.Settings settings = new SyntheticDirectory.Settings();
+        settings.users = getInt(options, "users", settings.users);
+        settings.groups = getInt(options, "groups", Math.max(1, settings.users / 100));
+        settings.membersPerGroup = getInt(options, "membersPerGroup", settings.membersPerGroup);
+        settings.extensionAttributes = getInt(options, "extensionAttributes", settings.extensionAttributes);
+        settings.descriptionLength = getInt(options, "descriptionLength", settings.descriptionLength);
+        settings.latencyMillis = getInt(options, "latencyMillis", 0);
+        settings.sizeLimit = getInt(options, "sizeLimit", 0);
+        settings.seed = getInt(options, "seed", (int) settings.seed);
+        final int runs = getInt(options, "runs", 2);
+        Configurator.setLevel("jetbrains.buildServer", Level.valueOf(options.getOrDefault("logLevel", "WARN")));
+
+        final File workDir = Files.createTempDirectory("ldap-scale").toFile();
+        final long generationStart = System.nanoTime();
+        final boolean apply = Boolean.parseBoolean(options.getOrDefault("apply", "false"));
+        try (SyntheticDirectory directory = SyntheticDirectory.start(settings);
+             TeamCityRestStub restStub = apply ? TeamCityRestStub.start(getInt(options, "restLatencyMillis", 0), getInt(options, "restRejectEvery", 0)) : null) {
+            System.out.printf("Generated %d users and %d groups with %d members each in %d ms, heap after GC: %d MB%n",
+                    settings.users, settings.groups, settings.membersPerGroup, (System.nanoTime() - generationStart) / 1_000_000, getHeapAfterGc() / MB);
+
+            final File propertiesFile = writeProperties(workDir, directory.getUrl(), restStub, settings, options);
+            final Map<String, Object> environment = new HashMap<>();
+            environment.put("configurationFile", propertiesFile.getAbsolutePath());
+            environment.put(KEY_ENABLE_USER_SYNC_OPTION, "true");
+            environment.put(KEY_ENABLE_GROUP_SYNC_OPTION, "true");
+
+            try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext()) {
+                context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("scaleHarness", environment));
+                context.register(LdapConfigurer.class);
+                measure("startup and synchronization", context, () -> {
+                    context.refresh();
+                    // the gauges of the counts are only readable from a registry that keeps values
+                    context.getBean(CompositeMeterRegistry.class).add(new SimpleMeterRegistry());
+                    return getGaugeValue(context.getBean(LdapMetrics.class), "ldap.sync.last.success") > 0;
+                });
+                final LdapSynchronizer synchronizer = context.getBean(LdapSynchronizer.class);
+                for (int i = 2; i <= runs; i++) {
+                    measure("synchronization #" + i, context, () -> synchronizer.sync() != null);
+                }
+            }
+            if (restStub != null) {
+                System.out.printf("TeamCity stub: %d users, requests %s%n", restStub.getUserCount(), restStub.getRequestCounts());
+            }
+        } finally {
+            FileSystemUtils.deleteRecursively(workDir);
+        }
+    }
+
+    private interface Run {
+        boolean run() throws Exception;
+    }
+
+    private static void measure(@NonNull final String name, @NonNull final AnnotationConfigApplicationContext context, @NonNull final Run run) throws Exception {
+        final List<MemoryPoolMXBean> heapPools = getHeapPools();
+        System.gc();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        final Map<String, long[]> gcBefore = getGcCounts();
+
+        final long start = System.nanoTime();
+        final boolean success = run.run();
+        final long nanos = System.nanoTime() - start;
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        final StringBuilder gc = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : getGcCounts().entrySet()) {
+            final long[] before = gcBefore.getOrDefault(entry.getKey(), new long[2]);
+            gc.append(gc.length() == 0 ? "" : ", ").append(entry.getKey()).append(": ")
+                    .append(entry.getValue()[0] - before[0]).append(" (").append(entry.getValue()[1] - before[1]).append(" ms)");
+        }
+        final LdapMetrics metrics = context.getBean(LdapMetrics.class);
+        final long users = (long) getGaugeValue(metrics, "ldap.sync.users");
+        final long groups = (long) getGaugeValue(metrics, "ldap.sync.groups");
+        System.out.printf("%s: %s, wall time %d ms, %d users and %d groups, %.0f entries/sec, peak heap %d MB, GC %s%n",
+                name, success ? "succeeded" : "FAILED", nanos / 1_000_000, users, groups, (users + groups) * 1e9 / nanos, peakHeap / MB, gc);
+    }
+
+    @NonNull
+    private static File writeProperties(@NonNull final File workDir,
+                                        @NonNull final String url,
+                                        @Nullable final TeamCityRestStub restStub,
+                                        @NonNull final SyntheticDirectory.Settings settings,
+                                        @NonNull final Map<String, String> options) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(Context.PROVIDER_URL, url);
+        properties.setProperty(Context.SECURITY_PRINCIPAL, SyntheticDirectory.PRINCIPAL);
+        properties.setProperty(Context.SECURITY_CREDENTIALS, SyntheticDirectory.CREDENTIALS);
+        properties.setProperty(KEY_USER_BASE, SyntheticDirectory.USERS_RDN);
+        properties.setProperty(KEY_USER_SEARCH_FILTER, "(objectClass=user)");
+        properties.setProperty(KEY_USER_USERNAME_ATTR, "sAMAccountName");
+        properties.setProperty(KEY_USER_DISPLAY_NAME_ATTR, "displayName");
+        properties.setProperty(KEY_USER_MAIL_ATTR, "mail");
+        for (int i = 1; i <= settings.extensionAttributes; i++) {
+            properties.setProperty(KEY_USER_CUSTOM_PROPERTY + "extension" + i, SyntheticDirectory.EXTENSION_ATTRIBUTE + i);
+        }
+        properties.setProperty(KEY_GROUP_BASE, SyntheticDirectory.GROUPS_RDN);
+        properties.setProperty(KEY_GROUP_SEARCH_FILTER, "(objectClass=group)");
+        properties.setProperty(KEY_SEARCH_PAGE_SIZE, options.getOrDefault("pageSize", "1000"));
+        properties.setProperty(KEY_USER_FETCH_PARALLELISM, options.getOrDefault("parallelism", "1"));
+        properties.setProperty(KEY_USER_FETCH_PARTITION_ATTRIBUTE, "sAMAccountName");
+        properties.setProperty(KEY_SNAPSHOT_FILE, new File(workDir, "snapshot.bin").getAbsolutePath());
+        properties.setProperty(KEY_INCREMENTAL_SYNC_STATE_FILE, new File(workDir, "state.properties").getAbsolutePath());
+        properties.setProperty(KEY_METRICS_JMX_ENABLED, "false");
+        if (restStub != null) {
+            properties.setProperty(KEY_REST_URL, restStub.getUrl());
+            properties.setProperty(KEY_REST_CONCURRENCY, options.getOrDefault("restConcurrency", "8"));
+            properties.setProperty(KEY_REST_RATE_LIMIT, options.getOrDefault("restRateLimit", "0"));
+            properties.setProperty(KEY_CREATE_USERS_SYNC_OPTION, "true");
+            properties.setProperty(KEY_DELETE_USERS_SYNC_OPTION, "true");
+        }
+        final File result = new File(workDir, "ldap-config.properties");
+        try (OutputStream out = new FileOutputStream(result)) {
+            properties.store(out, "Generated by " + ScaleHarness.class.getSimpleName());
+        }
+        return result;
+    }
+
+    @NonNull
+    private static Map<String, String> parseOptions(@NonNull final String[] args) {
+        final Map<String, String> result = new LinkedHashMap<>();
+        for (String arg : args) {
+            final int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --<option>=<value>, got '" + arg + "'");
+            }
+            result.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return result;
+    }
+
+    private static int getInt(@NonNull final Map<String, String> options, @NonNull final String name, final int defaultValue) {
+        final String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static double getGaugeValue(@NonNull final LdapMetrics metrics, @NonNull final String name) {
+        final Gauge gauge = metrics.getRegistry().find(name).gauge();
+        return gauge == null ? 0 : gauge.value();
+    }
+
+    @NonNull
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        final List<MemoryPoolMXBean> result = new ArrayList<>(ManagementFactory.getMemoryPoolMXBeans());
+        result.removeIf(pool -> pool.getType() != MemoryType.HEAP);
+        return result;
+    }
+
+    private static long getHeapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return collection count and time in milliseconds by collector name
+     */
+    @NonNull
+    private static Map<String, long[]> getGcCounts() {
+        final Map<String, long[]> result = new LinkedHashMap<>();
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result.put(bean.getName(), new long[]{bean.getCollectionCount(), bean.getCollectionTime()});
+        }
+        return result;
+    }
+}
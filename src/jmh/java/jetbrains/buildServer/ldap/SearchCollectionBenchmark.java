@@ -0,0 +1,141 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import jetbrains.buildServer.ldap.api.LdapMetrics;
+import jetbrains.buildServer.ldap.api.LdapSearchUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.lang.NonNull;
+import org.springframework.ldap.control.PagedResultsDirContextProcessor;
+import org.springframework.ldap.core.DirContextProcessor;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsResponseControl;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collecting and streaming search results on the client side, the server is replaced with pre-built entries,
+ * so the score is the overhead of the search utilities per {@link #entries} entries. Every benchmark thread has its own template.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SearchCollectionBenchmark {
+    private static final String BASE = "ou=people";
+    private static final String FILTER = "(objectClass=person)";
+
+    @Param({"10000"})
+    public int entries;
+    @Param({"0", "1000"})
+    public int pageSize;
+
+    private LdapTemplate template;
+    private SearchControls searchControls;
+    private LdapMetrics metrics;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData.disableLogging();
+        template = new InMemoryLdapTemplate(BenchmarkData.createSearchResults(entries, 5, false));
+        searchControls = LdapSearchUtil.getDefaultSearchControls(null);
+        metrics = LdapMetrics.noop();
+    }
+
+    @Benchmark
+    public List<SearchResult> collect() {
+        return LdapSearchUtil.pagedSearch(template, BASE, FILTER, searchControls, pageSize, metrics);
+    }
+
+    @Benchmark
+    public int stream(final Blackhole blackhole) {
+        return LdapSearchUtil.pagedSearch(template, BASE, FILTER, searchControls, pageSize, blackhole::consume, metrics);
+    }
+
+    /**
+     * Passes the same entries to every search. Paged searches get them in pages of the requested size,
+     * the processor receives the same response controls as from a server.
+     */
+    private static class InMemoryLdapTemplate extends LdapTemplate {
+        // BER encoded paged results response values (RFC 2696) with a one-byte cookie and with an empty one for the last page
+        @NonNull
+        private static final byte[] MORE_PAGES = {0x30, 0x06, 0x02, 0x01, 0x00, 0x04, 0x01, 0x01};
+        @NonNull
+        private static final byte[] LAST_PAGE = {0x30, 0x05, 0x02, 0x01, 0x00, 0x04, 0x00};
+
+        @NonNull
+        private final SearchResult[] searchResults;
+        private int nextPageStart;
+
+        InMemoryLdapTemplate(@NonNull final SearchResult[] searchResults) {
+            this.searchResults = searchResults;
+        }
+
+        @Override
+        public void search(final String base, final String filter, final SearchControls controls, final NameClassPairCallbackHandler handler) {
+            handle(handler, 0, searchResults.length);
+        }
+
+        @Override
+        public void search(final String base, final String filter, final SearchControls controls, final NameClassPairCallbackHandler handler,
+                           final DirContextProcessor processor) {
+            final int pageSize = ((PagedResultsDirContextProcessor) processor).getPageSize();
+            final int start = nextPageStart;
+            final int end = Math.min(searchResults.length, start + pageSize);
+            handle(handler, start, end);
+            final boolean lastPage = end == searchResults.length;
+            nextPageStart = lastPage ? 0 : end;
+            try {
+                final Control response = new PagedResultsResponseControl(PagedResultsResponseControl.OID, false, lastPage ? LAST_PAGE : MORE_PAGES);
+                processor.postProcess(createContext(response));
+            } catch (NamingException | IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void handle(@NonNull final NameClassPairCallbackHandler handler, final int start, final int end) {
+            try {
+                for (int i = start; i < end; i++) {
+                    handler.handleNameClassPair(searchResults[i]);
+                }
+            } catch (NamingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @NonNull
+        private static LdapContext createContext(@NonNull final Control response) {
+            return (LdapContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(), new Class<?>[]{LdapContext.class}, (proxy, method, args) -> {
+                if (method.getName().equals("getResponseControls")) {
+                    return new Control[]{response};
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+        }
+    }
+}
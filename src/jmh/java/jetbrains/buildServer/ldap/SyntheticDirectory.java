@@ -0,0 +1,214 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSimpleBindRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+import org.springframework.lang.NonNull;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Embedded in-memory LDAP server filled with generated users and groups. Users have the attributes of a typical
+ * Active Directory account: username, names, email, a free-text description and a number of extension attributes;
+ * every group has a fixed number of randomly chosen members.
+ */
+class SyntheticDirectory implements Closeable {
+    @NonNull
+    public static final String BASE_DN = "dc=example,dc=com";
+    @NonNull
+    public static final String USERS_RDN = "ou=people";
+    @NonNull
+    public static final String GROUPS_RDN = "ou=groups";
+    @NonNull
+    public static final String PRINCIPAL = "cn=Directory Manager";
+    @NonNull
+    public static final String CREDENTIALS = "password";
+    @NonNull
+    public static final String EXTENSION_ATTRIBUTE = "extensionAttribute";
+    private static final int BATCH_SIZE = 10_000;
+    @NonNull
+    private static final String[] FIRST_NAMES = {"James", "Mary", "Robert", "Patricia", "John", "Jennifer", "Michael", "Linda", "David", "Elizabeth",
+            "William", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Christopher", "Karen"};
+    @NonNull
+    private static final String[] LAST_NAMES = {"Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+            "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin"};
+
+    static class Settings {
+        int users = 10_000;
+        int groups = 100;
+        int membersPerGroup = 50;
+        int extensionAttributes = 5;
+        int descriptionLength = 256;
+        long latencyMillis;
+        int sizeLimit;
+        long seed = 42;
+    }
+
+    @NonNull
+    private final InMemoryDirectoryServer server;
+
+    private SyntheticDirectory(@NonNull final InMemoryDirectoryServer server) {
+        this.server = server;
+    }
+
+    @NonNull
+    public static SyntheticDirectory start(@NonNull final Settings settings) throws LDAPException {
+        final InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(PRINCIPAL, CREDENTIALS);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        // attributes like sAMAccountName are not in the standard schema
+        config.setSchema(null);
+        if (settings.sizeLimit > 0) {
+            config.setMaxSizeLimit(settings.sizeLimit);
+        }
+        if (settings.latencyMillis > 0) {
+            config.addInMemoryOperationInterceptor(new LatencyInterceptor(settings.latencyMillis));
+        }
+        final InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"), new Attribute("dc", "example")));
+        server.add(new Entry(USERS_RDN + "," + BASE_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "people")));
+        server.add(new Entry(GROUPS_RDN + "," + BASE_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "groups")));
+
+        final Random random = new Random(settings.seed);
+        final List<Entry> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < settings.users; i++) {
+            batch.add(createUser(i, settings, random));
+            if (batch.size() == BATCH_SIZE) {
+                server.addEntries(batch);
+                batch.clear();
+            }
+        }
+        for (int i = 0; i < settings.groups; i++) {
+            batch.add(createGroup(i, settings, random));
+            if (batch.size() == BATCH_SIZE) {
+                server.addEntries(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            server.addEntries(batch);
+        }
+        server.startListening();
+        return new SyntheticDirectory(server);
+    }
+
+    @NonNull
+    public String getUrl() {
+        return "ldap://localhost:" + server.getListenPort() + "/" + BASE_DN;
+    }
+
+    @Override
+    public void close() {
+        server.shutDown(true);
+    }
+
+    @NonNull
+    private static Entry createUser(final int index, @NonNull final Settings settings, @NonNull final Random random) {
+        final String username = getUsername(index);
+        final String firstName = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+        final String lastName = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+        final Entry entry = new Entry(getUserDn(index));
+        entry.addAttribute("objectClass", "top", "person", "organizationalPerson", "user");
+        entry.addAttribute("cn", username);
+        entry.addAttribute("sAMAccountName", username);
+        entry.addAttribute("givenName", firstName);
+        entry.addAttribute("sn", lastName);
+        entry.addAttribute("displayName", firstName + " " + lastName);
+        entry.addAttribute("mail", username + "@example.com");
+        entry.addAttribute("description", randomText(settings.descriptionLength, random));
+        for (int i = 1; i <= settings.extensionAttributes; i++) {
+            entry.addAttribute(EXTENSION_ATTRIBUTE + i, randomText(32, random));
+        }
+        return entry;
+    }
+
+    @NonNull
+    private static Entry createGroup(final int index, @NonNull final Settings settings, @NonNull final Random random) {
+        final String name = String.format("group%06d", index);
+        final Entry entry = new Entry("cn=" + name + "," + GROUPS_RDN + "," + BASE_DN);
+        entry.addAttribute("objectClass", "top", "group");
+        entry.addAttribute("cn", name);
+        final int members = Math.min(settings.membersPerGroup, settings.users);
+        final Set<String> memberDns = new LinkedHashSet<>(members * 2);
+        while (memberDns.size() < members) {
+            memberDns.add(getUserDn(random.nextInt(settings.users)));
+        }
+        entry.addAttribute("member", memberDns);
+        return entry;
+    }
+
+    @NonNull
+    private static String getUsername(final int index) {
+        return String.format("user%07d", index);
+    }
+
+    @NonNull
+    private static String getUserDn(final int index) {
+        return "cn=" + getUsername(index) + "," + USERS_RDN + "," + BASE_DN;
+    }
+
+    @NonNull
+    private static String randomText(final int length, @NonNull final Random random) {
+        final char[] result = new char[length];
+        for (int i = 0; i < length; i++) {
+            final int next = random.nextInt(27);
+            result[i] = next == 26 ? ' ' : (char) ('a' + next);
+        }
+        return new String(result);
+    }
+
+    /**
+     * Delays binds and every search operation, for paged searches each page is delayed.
+     */
+    private static class LatencyInterceptor extends InMemoryOperationInterceptor {
+        private final long latencyMillis;
+
+        LatencyInterceptor(final long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public void processSimpleBindRequest(final InMemoryInterceptedSimpleBindRequest request) {
+            delay();
+        }
+
+        @Override
+        public void processSearchRequest(final InMemoryInterceptedSearchRequest request) {
+            delay();
+        }
+
+        private void delay() {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.naming.directory.SearchResult;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of LDAP entries to {@link RemoteUserData}, the score is the time to convert all the {@link #entries}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserConversionBenchmark {
+    @Param({"1000"})
+    public int entries;
+    @Param({"0", "10"})
+    public int customProperties;
+    @Param({"false", "true"})
+    public boolean missingAttributes;
+
+    private LdapProperties ldapProperties;
+    private UserExtractionPlan plan;
+    private SearchResult[] searchResults;
+
+    @Setup
+    public void setUp() {
+        BenchmarkData.disableLogging();
+        ldapProperties = BenchmarkData.createProperties(customProperties);
+        plan = UserExtractionPlan.compile(ldapProperties);
+        searchResults = BenchmarkData.createSearchResults(entries, customProperties, missingAttributes);
+    }
+
+    @Benchmark
+    public void convert(final Blackhole blackhole) {
+        for (SearchResult searchResult : searchResults) {
+            blackhole.consume(plan.convert(searchResult));
+        }
+    }
+
+    /**
+     * Includes compiling the plan, as done once per synchronization.
+     */
+    @Benchmark
+    public void compileAndConvert(final Blackhole blackhole) {
+        final UserExtractionPlan plan = UserExtractionPlan.compile(ldapProperties);
+        for (SearchResult searchResult : searchResults) {
+            blackhole.consume(plan.convert(searchResult));
+        }
+    }
+}
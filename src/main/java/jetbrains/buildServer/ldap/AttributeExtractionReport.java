@@ -0,0 +1,220 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import jetbrains.buildServer.ldap.api.LdapMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads attribute values of LDAP entries without throwing exceptions for absent values and counts the failures by attribute and reason,
+ * keeping a few distinguished names of the affected entries as samples. A single report is shared by all the threads of a synchronization.
+ */
+public class AttributeExtractionReport {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(AttributeExtractionReport.class);
+    private static final int MAX_SAMPLES = 5;
+
+    public enum Reason {
+        MISSING("is missing"),
+        NO_VALUE("has no value"),
+        READ_ERROR("cannot be read");
+
+        @NonNull
+        private final String description;
+
+        Reason(@NonNull final String description) {
+            this.description = description;
+        }
+    }
+
+    @NonNull
+    private final Map<String, Failures[]> failures = new ConcurrentHashMap<>();
+    @NonNull
+    private final LongAdder skippedEntries = new LongAdder();
+
+    /**
+     * @return the string value of the first value of the attribute, or null if the entry does not have it, the failure is recorded
+     */
+    @Nullable
+    public String getValue(@NonNull final SearchResult searchResult, @NonNull final String attributeName) {
+        final Attribute attribute = searchResult.getAttributes().get(attributeName);
+        if (attribute == null) {
+            record(searchResult, attributeName, Reason.MISSING);
+            return null;
+        }
+        if (attribute.size() == 0) {
+            record(searchResult, attributeName, Reason.NO_VALUE);
+            return null;
+        }
+        final Object value;
+        try {
+            value = attribute.get();
+        } catch (NamingException e) {
+            LOGGER.debug("Cannot read value of attribute " + attributeName + " of " + getDn(searchResult), e);
+            record(searchResult, attributeName, Reason.READ_ERROR);
+            return null;
+        }
+        if (value == null) {
+            record(searchResult, attributeName, Reason.NO_VALUE);
+            return null;
+        }
+        return value.toString();
+    }
+
+    /**
+     * @return the string value of the first value of the attribute, or null if it cannot be read; unlike {@link #getValue},
+     * nothing is recorded, e.g. when the entry has already been reported
+     */
+    @Nullable
+    public static String peekValue(@NonNull final SearchResult searchResult, @NonNull final String attributeName) {
+        final Attribute attribute = searchResult.getAttributes().get(attributeName);
+        try {
+            final Object value = attribute == null || attribute.size() == 0 ? null : attribute.get();
+            return value == null ? null : value.toString();
+        } catch (NamingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Records that the entry was not converted, e.g. because a required attribute is absent.
+     */
+    public void entrySkipped() {
+        skippedEntries.increment();
+    }
+
+    public long getSkippedEntries() {
+        return skippedEntries.sum();
+    }
+
+    /**
+     * @return the number of entries for which the value of the attribute was not read for the given reason
+     */
+    public long getCount(@NonNull final String attributeName, @NonNull final Reason reason) {
+        final Failures[] result = failures.get(attributeName);
+        return result == null ? 0 : result[reason.ordinal()].count.sum();
+    }
+
+    public boolean isEmpty() {
+        return failures.isEmpty() && skippedEntries.sum() == 0;
+    }
+
+    /**
+     * Logs one line per attribute and reason.
+     */
+    public void log(@NonNull final String entriesDescription) {
+        if (isEmpty()) {
+            return;
+        }
+        final long skipped = skippedEntries.sum();
+        if (skipped > 0) {
+            LOGGER.warn("Skipped " + skipped + " " + entriesDescription + " with absent required attributes");
+        }
+        for (Map.Entry<String, Failures[]> entry : new TreeMap<>(failures).entrySet()) {
+            for (Reason reason : Reason.values()) {
+                final Failures value = entry.getValue()[reason.ordinal()];
+                final long count = value.count.sum();
+                if (count > 0) {
+                    LOGGER.warn("Attribute '" + entry.getKey() + "' " + reason.description + " in " + count + " " +
+                            entriesDescription + ", e.g. " + value.getSamples());
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the counts of this report to the metrics.
+     *
+     * @param entryType 'user' or 'group'
+     */
+    public void publish(@NonNull final LdapMetrics metrics, @NonNull final String entryType) {
+        final long skipped = skippedEntries.sum();
+        if (skipped > 0) {
+            metrics.recordSkippedEntries(entryType, skipped);
+        }
+        for (Map.Entry<String, Failures[]> entry : failures.entrySet()) {
+            for (Reason reason : Reason.values()) {
+                final long count = entry.getValue()[reason.ordinal()].count.sum();
+                if (count > 0) {
+                    metrics.recordAttributeFailures(entryType, entry.getKey(), reason.name().toLowerCase(Locale.ROOT), count);
+                }
+            }
+        }
+    }
+
+    private void record(@NonNull final SearchResult searchResult, @NonNull final String attributeName, @NonNull final Reason reason) {
+        final Failures result = failures.computeIfAbsent(attributeName, key -> {
+            final Failures[] byReason = new Failures[Reason.values().length];
+            for (int i = 0; i < byReason.length; i++) {
+                byReason[i] = new Failures();
+            }
+            return byReason;
+        })[reason.ordinal()];
+        result.count.increment();
+        result.addSample(searchResult);
+    }
+
+    @NonNull
+    private static String getDn(@NonNull final SearchResult searchResult) {
+        try {
+            return searchResult.getNameInNamespace();
+        } catch (UnsupportedOperationException e) {
+            return searchResult.getName();
+        }
+    }
+
+    private static class Failures {
+        @NonNull
+        private final LongAdder count = new LongAdder();
+        @NonNull
+        private final List<String> samples = new ArrayList<>(MAX_SAMPLES);
+        @NonNull
+        private final AtomicInteger reservedSamples = new AtomicInteger();
+
+        void addSample(@NonNull final SearchResult searchResult) {
+            // once all the samples are taken, failures are only counted
+            if (reservedSamples.get() >= MAX_SAMPLES || reservedSamples.getAndIncrement() >= MAX_SAMPLES) {
+                return;
+            }
+            final String dn = getDn(searchResult);
+            synchronized (samples) {
+                samples.add(dn);
+            }
+        }
+
+        @NonNull
+        List<String> getSamples() {
+            synchronized (samples) {
+                return new ArrayList<>(samples);
+            }
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.util.*;
+
+/**
+ * Resolves group members against the already fetched users and groups without any additional LDAP requests.
+ * Member values are matched either as DNs (compared in the normalized form) or, when the member id attributes are configured,
+ * as raw attribute values. Nested groups are expanded once per strongly connected component of the nesting graph,
+ * so every group is processed once and cyclic nesting is handled.
+ */
+public class GroupMembershipResolver {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(GroupMembershipResolver.class);
+    private final boolean userMembersAreDns;
+    private final boolean groupMembersAreDns;
+    private final boolean expandNestedGroups;
+    @NonNull
+    private final Map<String, String> userRemoteIdsByKey;
+    @NonNull
+    private final List<GroupBuilder> groups = new ArrayList<>();
+
+    /**
+     * @param userMembersAreDns  whether member values referencing users are DNs, otherwise they are user remote ids
+     * @param groupMembersAreDns whether member values referencing groups are DNs, otherwise they are group remote ids
+     */
+    public GroupMembershipResolver(@NonNull final Collection<RemoteUserData> users,
+                                   final boolean userMembersAreDns,
+                                   final boolean groupMembersAreDns,
+                                   final boolean expandNestedGroups) {
+        this.userMembersAreDns = userMembersAreDns;
+        this.groupMembersAreDns = groupMembersAreDns;
+        this.expandNestedGroups = expandNestedGroups;
+        userRemoteIdsByKey = new HashMap<>(users.size() * 4 / 3 + 1);
+        for (RemoteUserData user : users) {
+            userRemoteIdsByKey.put(userMembersAreDns ? normalizeDn(user.getRemoteId()) : user.getRemoteId(), user.getRemoteId());
+        }
+    }
+
+    @NonNull
+    public synchronized GroupBuilder addGroup(@NonNull final String remoteId, @Nullable final String name) {
+        final GroupBuilder group = new GroupBuilder(remoteId, name);
+        groups.add(group);
+        return group;
+    }
+
+    @NonNull
+    public synchronized List<RemoteGroupData> resolve() {
+        final Map<String, Integer> groupIndexesByKey = new HashMap<>(groups.size() * 4 / 3 + 1);
+        for (int i = 0; i < groups.size(); i++) {
+            final String remoteId = groups.get(i).remoteId;
+            groupIndexesByKey.put(groupMembersAreDns ? normalizeDn(remoteId) : remoteId, i);
+        }
+
+        int unresolvedMembers = 0;
+        final int[][] subgroups = new int[groups.size()][];
+        for (int i = 0; i < groups.size(); i++) {
+            final GroupBuilder group = groups.get(i);
+            final Set<Integer> groupSubgroups = new LinkedHashSet<>();
+            for (String key : group.unresolvedMemberKeys) {
+                final Integer subgroup = groupIndexesByKey.get(key);
+                if (subgroup == null) {
+                    unresolvedMembers++;
+                    LOGGER.debug("Member '" + key + "' of group '" + group.remoteId + "' is neither a known user nor a known group, skipping");
+                } else {
+                    groupSubgroups.add(subgroup);
+                }
+            }
+            subgroups[i] = groupSubgroups.stream().mapToInt(Integer::intValue).toArray();
+        }
+        if (unresolvedMembers > 0) {
+            LOGGER.info(unresolvedMembers + " group members are neither users nor groups retrieved from LDAP and were skipped");
+        }
+
+        final List<Set<String>> allUsers = expandNestedGroups ? new NestedGroupsExpander(subgroups).expand() : null;
+
+        final List<RemoteGroupData> result = new ArrayList<>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            final GroupBuilder group = groups.get(i);
+            final Set<String> subgroupRemoteIds = new LinkedHashSet<>(subgroups[i].length);
+            for (int subgroup : subgroups[i]) {
+                subgroupRemoteIds.add(groups.get(subgroup).remoteId);
+            }
+            final Set<String> users = Collections.unmodifiableSet(group.userRemoteIds);
+            result.add(new RemoteGroupData(group.remoteId, group.name, users, Collections.unmodifiableSet(subgroupRemoteIds),
+                    allUsers == null ? users : allUsers.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * DN in the form suitable for comparison: parsed, with the attribute types and values lowercased and the original escaping and spacing dropped.
+     */
+    @NonNull
+    static String normalizeDn(@NonNull final String dn) {
+        try {
+            final LdapName name = new LdapName(dn);
+            final StringBuilder result = new StringBuilder(dn.length());
+            for (int i = name.size() - 1; i >= 0; i--) {
+                if (result.length() > 0) {
+                    result.append(',');
+                }
+                final Rdn rdn = name.getRdn(i);
+                result.append(rdn.toString().toLowerCase(Locale.ROOT));
+            }
+            return result.toString();
+        } catch (InvalidNameException | IllegalArgumentException e) {
+            return dn.trim().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public class GroupBuilder {
+        @NonNull
+        private final String remoteId;
+        @Nullable
+        private final String name;
+        @NonNull
+        private final Set<String> userRemoteIds = new LinkedHashSet<>();
+        @NonNull
+        private final Set<String> unresolvedMemberKeys = new LinkedHashSet<>();
+
+        GroupBuilder(@NonNull final String remoteId, @Nullable final String name) {
+            this.remoteId = remoteId;
+            this.name = name;
+        }
+
+        /**
+         * Users are matched right away, all other members are kept to be matched against the groups in {@link #resolve()}.
+         */
+        public void addMember(@NonNull final String memberValue) {
+            final String userKey = userMembersAreDns ? normalizeDn(memberValue) : memberValue;
+            final String userRemoteId = userRemoteIdsByKey.get(userKey);
+            if (userRemoteId != null) {
+                userRemoteIds.add(userRemoteId);
+            } else if (groupMembersAreDns == userMembersAreDns) {
+                unresolvedMemberKeys.add(userKey);
+            } else {
+                unresolvedMemberKeys.add(groupMembersAreDns ? normalizeDn(memberValue) : memberValue);
+            }
+        }
+    }
+
+    /**
+     * Tarjan's algorithm finds strongly connected components in reverse topological order, so by the time a component
+     * is complete, all the components reachable from it already have their users computed.
+     * Every group of a component gets the same (shared) set of users.
+     */
+    private class NestedGroupsExpander {
+        @NonNull
+        private final int[][] subgroups;
+        @NonNull
+        private final int[] index;
+        @NonNull
+        private final int[] lowLink;
+        @NonNull
+        private final boolean[] onStack;
+        @NonNull
+        private final int[] componentStack;
+        private int componentStackSize;
+        private int nextIndex;
+        @NonNull
+        private final int[] component;
+        @NonNull
+        private final List<Set<String>> componentUsers = new ArrayList<>();
+        private int cyclicComponents;
+
+        NestedGroupsExpander(@NonNull final int[][] subgroups) {
+            this.subgroups = subgroups;
+            final int size = subgroups.length;
+            index = new int[size];
+            Arrays.fill(index, -1);
+            lowLink = new int[size];
+            onStack = new boolean[size];
+            componentStack = new int[size];
+            component = new int[size];
+            Arrays.fill(component, -1);
+        }
+
+        /**
+         * @return the users of every group, in the order of the groups
+         */
+        @NonNull
+        List<Set<String>> expand() {
+            final int[] callStack = new int[subgroups.length];
+            final int[] edgePositions = new int[subgroups.length];
+            for (int root = 0; root < subgroups.length; root++) {
+                if (index[root] >= 0) {
+                    continue;
+                }
+                int depth = 0;
+                callStack[0] = root;
+                edgePositions[0] = 0;
+                visit(root);
+                while (depth >= 0) {
+                    final int group = callStack[depth];
+                    if (edgePositions[depth] < subgroups[group].length) {
+                        final int subgroup = subgroups[group][edgePositions[depth]++];
+                        if (index[subgroup] < 0) {
+                            visit(subgroup);
+                            callStack[++depth] = subgroup;
+                            edgePositions[depth] = 0;
+                        } else if (onStack[subgroup]) {
+                            lowLink[group] = Math.min(lowLink[group], index[subgroup]);
+                        }
+                    } else {
+                        if (lowLink[group] == index[group]) {
+                            completeComponent(group);
+                        }
+                        depth--;
+                        if (depth >= 0) {
+                            final int parent = callStack[depth];
+                            lowLink[parent] = Math.min(lowLink[parent], lowLink[group]);
+                        }
+                    }
+                }
+            }
+            if (cyclicComponents > 0) {
+                LOGGER.warn("Found " + cyclicComponents + " cycles in nested LDAP groups, the groups of every cycle share the same members");
+            }
+            final List<Set<String>> result = new ArrayList<>(subgroups.length);
+            for (int i = 0; i < subgroups.length; i++) {
+                result.add(componentUsers.get(component[i]));
+            }
+            return result;
+        }
+
+        private void visit(final int group) {
+            index[group] = nextIndex;
+            lowLink[group] = nextIndex;
+            nextIndex++;
+            componentStack[componentStackSize++] = group;
+            onStack[group] = true;
+        }
+
+        private void completeComponent(final int root) {
+            final int componentId = componentUsers.size();
+            final int start = lastIndexOf(root);
+            for (int i = start; i < componentStackSize; i++) {
+                final int member = componentStack[i];
+                onStack[member] = false;
+                component[member] = componentId;
+            }
+
+            final Set<String> users = new LinkedHashSet<>();
+            boolean cyclic = componentStackSize - start > 1;
+            for (int i = start; i < componentStackSize; i++) {
+                final int member = componentStack[i];
+                users.addAll(groups.get(member).userRemoteIds);
+                for (int subgroup : subgroups[member]) {
+                    if (component[subgroup] != componentId) {
+                        users.addAll(componentUsers.get(component[subgroup]));
+                    } else if (subgroup == member) {
+                        cyclic = true;
+                    }
+                }
+            }
+            if (cyclic) {
+                cyclicComponents++;
+            }
+            componentUsers.add(Collections.unmodifiableSet(users));
+            componentStackSize = start;
+        }
+
+        private int lastIndexOf(final int group) {
+            for (int i = componentStackSize - 1; i >= 0; i--) {
+                if (componentStack[i] == group) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("Group " + group + " is not on the stack");
+        }
+    }
+}
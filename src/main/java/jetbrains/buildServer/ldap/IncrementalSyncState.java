@@ -0,0 +1,307 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.ldap.support.LdapEncoder;
+import org.springframework.util.StringUtils;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * State of the incremental users synchronization: the users fetched by the previous synchronization and the high-water mark,
+ * i.e. the maximum value of the change tracking attribute ('modifyTimestamp' for generic LDAP, 'uSNChanged' for Active Directory) seen so far.
+ * The mark is persisted to a file after each successful synchronization.
+ */
+public class IncrementalSyncState {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(IncrementalSyncState.class);
+    @NonNull
+    private static final String MARK_KEY = "highWaterMark";
+    @NonNull
+    private static final String CONFIGURATION_KEY = "configuration";
+    @NonNull
+    private static final String INCREMENTAL_RUNS_KEY = "incrementalRuns";
+
+    @NonNull
+    private final String attribute;
+    @NonNull
+    private final File stateFile;
+    private final int fullSyncInterval;
+    @NonNull
+    private final String configuration;
+
+    @Nullable
+    private Map<String, RemoteUserData> previousUsers;
+    @Nullable
+    private String mark;
+    private int incrementalRuns;
+    @Nullable
+    private String newMark;
+
+    public IncrementalSyncState(@NonNull final LdapProperties ldapProperties) {
+        checkSingleServer(ldapProperties);
+        attribute = ldapProperties.getProperty(KEY_INCREMENTAL_SYNC_ATTRIBUTE, "modifyTimestamp");
+        final String stateFilePath = ldapProperties.getProperty(KEY_INCREMENTAL_SYNC_STATE_FILE);
+        stateFile = new File(StringUtils.hasText(stateFilePath) ? stateFilePath.trim() : "ldap-sync-state.properties");
+        fullSyncInterval = ldapProperties.getInt(KEY_INCREMENTAL_SYNC_FULL_SYNC_INTERVAL, 0);
+        configuration = ldapProperties.getProperty(javax.naming.Context.PROVIDER_URL, "") + "|" +
+                ldapProperties.getProperty(KEY_USER_BASE, "") + "|" +
+                ldapProperties.getProperty(KEY_USER_SEARCH_FILTER, "") + "|" +
+                attribute + getUserSourcesConfiguration(ldapProperties);
+        readState();
+    }
+
+    /**
+     * The change tracking attribute is maintained by each server on its own ('uSNChanged' is not replicated, 'modifyTimestamp'
+     * depends on the clock and on the replication delay), so the mark is only meaningful when the users are always
+     * fetched from the same server.
+     *
+     * @throws IllegalArgumentException if the users are fetched from several servers picked per search
+     */
+    static void checkSingleServer(@NonNull final LdapProperties ldapProperties) {
+        final List<String> keys = new ArrayList<>();
+        keys.add(javax.naming.Context.PROVIDER_URL);
+        for (String key : ldapProperties.getAllProperties().keySet()) {
+            if (key.startsWith(KEY_USER_SOURCE_PREFIX) && key.endsWith(".url")) {
+                keys.add(key);
+            }
+        }
+        for (String key : keys) {
+            final String urls = ldapProperties.getProperty(key, "").trim();
+            if (urls.split("\\s+").length > 1) {
+                throw new IllegalArgumentException("Incremental synchronization ('" + KEY_INCREMENTAL_SYNC_ENABLED + "') requires a single server in '" +
+                        key + "', as the values of '" + ldapProperties.getProperty(KEY_INCREMENTAL_SYNC_ATTRIBUTE, "modifyTimestamp") + "' differ between servers");
+            }
+        }
+    }
+
+    @NonNull
+    private static String getUserSourcesConfiguration(@NonNull final LdapProperties ldapProperties) {
+        final Map<String, String> result = new TreeMap<>();
+        ldapProperties.getAllProperties().forEach((key, value) -> {
+            if (key.equals(KEY_USER_SOURCES) || key.startsWith(KEY_USER_SOURCE_PREFIX) && !key.endsWith(".credentials")) {
+                result.put(key, value.trim());
+            }
+        });
+        return result.isEmpty() ? "" : "|" + result;
+    }
+
+    @NonNull
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * @return the filter matching only the entries changed since the previous synchronization,
+     * or null if the full synchronization should be performed
+     */
+    @Nullable
+    public synchronized String startSync() {
+        newMark = mark;
+        if (previousUsers == null) {
+            LOGGER.info("Performing full users synchronization as there is no result of the previous synchronization");
+            return null;
+        }
+        if (mark == null) {
+            LOGGER.info("Performing full users synchronization as high-water mark is not known");
+            return null;
+        }
+        if (fullSyncInterval > 0 && incrementalRuns >= fullSyncInterval) {
+            LOGGER.info("Performing full users synchronization after " + incrementalRuns + " incremental synchronizations");
+            return null;
+        }
+        LOGGER.info("Performing incremental users synchronization of entries with " + attribute + " >= " + mark);
+        return "(" + attribute + ">=" + LdapEncoder.filterEncode(mark) + ")";
+    }
+
+    /**
+     * Remembers the value of the change tracking attribute of the fetched entry.
+     */
+    public void track(@NonNull final SearchResult searchResult) {
+        final String value;
+        try {
+            final Attribute attr = searchResult.getAttributes().get(attribute);
+            final Object attrValue = attr == null ? null : attr.get();
+            if (attrValue == null) {
+                return;
+            }
+            value = attrValue.toString();
+        } catch (NamingException e) {
+            LOGGER.debug("Cannot get value of " + attribute + " attribute", e);
+            return;
+        }
+        synchronized (this) {
+            if (newMark == null || compareMarks(value, newMark) > 0) {
+                newMark = value;
+            }
+        }
+    }
+
+    /**
+     * Merges the fetched users into the result of the previous synchronization and persists the new high-water mark.
+     */
+    @NonNull
+    public synchronized List<RemoteUserData> completeSync(@NonNull final Collection<RemoteUserData> fetchedUsers, final boolean incremental) {
+        final Map<String, RemoteUserData> users = incremental && previousUsers != null ? new LinkedHashMap<>(previousUsers) : new LinkedHashMap<>();
+        for (RemoteUserData user : fetchedUsers) {
+            users.put(user.getRemoteId(), user);
+        }
+        previousUsers = users;
+        mark = newMark;
+        incrementalRuns = incremental ? incrementalRuns + 1 : 0;
+        writeState();
+        if (incremental) {
+            LOGGER.info("Merged " + fetchedUsers.size() + " changed users into " + users.size() + " users of the previous synchronization");
+        }
+        return new ArrayList<>(users.values());
+    }
+
+    /**
+     * Applies the change received outside of the regular synchronization to the result of the previous synchronization.
+     */
+    public synchronized void applyChange(@NonNull final RemoteUserData user) {
+        if (previousUsers != null) {
+            previousUsers.put(user.getRemoteId(), user);
+        }
+    }
+
+    public synchronized void applyDelete(@NonNull final String remoteId) {
+        if (previousUsers != null) {
+            previousUsers.remove(remoteId);
+        }
+    }
+
+    /**
+     * @return the label identifying the current state, the snapshot of the synchronization result saved with this label
+     * can be used to {@link #restore} the state
+     */
+    @Nullable
+    public synchronized String getSnapshotLabel() {
+        return mark != null ? configuration + "|" + mark : null;
+    }
+
+    /**
+     * Restores the result of the previous synchronization from the snapshot, e.g. after a restart, so that the next synchronization
+     * can be incremental. The snapshot is ignored if it was not saved for the current configuration and high-water mark.
+     */
+    public synchronized void restore(@NonNull final RemoteDataSnapshot snapshot) {
+        if (previousUsers != null) {
+            return;
+        }
+        final String label = getSnapshotLabel();
+        if (label == null || !label.equals(snapshot.getLabel())) {
+            LOGGER.info("Ignoring snapshot " + snapshot.getFile() + " as it does not match the incremental synchronization state");
+            return;
+        }
+        final Map<String, RemoteUserData> users = new LinkedHashMap<>();
+        for (RemoteUserData user : snapshot.toRemoteData().getUserData()) {
+            users.put(user.getRemoteId(), user);
+        }
+        previousUsers = users;
+        LOGGER.info("Restored " + users.size() + " users of the previous synchronization from snapshot " + snapshot.getFile());
+    }
+
+    /**
+     * Forgets the previous result, so that the next synchronization is a full one.
+     */
+    public synchronized void reset() {
+        previousUsers = null;
+        mark = null;
+        newMark = null;
+        incrementalRuns = 0;
+    }
+
+    /**
+     * Values of integer attributes like 'uSNChanged' are compared as numbers, generalized time values are compared as strings.
+     */
+    static int compareMarks(@NonNull final String first, @NonNull final String second) {
+        if (isNumber(first) && isNumber(second)) {
+            return Long.compare(Long.parseLong(first), Long.parseLong(second));
+        }
+        return first.compareTo(second);
+    }
+
+    private static boolean isNumber(@NonNull final String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readState() {
+        if (!stateFile.isFile()) {
+            return;
+        }
+        final Properties state = new Properties();
+        try (InputStream in = new FileInputStream(stateFile)) {
+            state.load(in);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read incremental synchronization state from " + stateFile + ", full synchronization will be performed", e);
+            return;
+        }
+        if (!configuration.equals(state.getProperty(CONFIGURATION_KEY))) {
+            LOGGER.info("Ignoring incremental synchronization state from " + stateFile + " as it was saved for another configuration");
+            return;
+        }
+        final String savedMark = state.getProperty(MARK_KEY);
+        mark = StringUtils.hasText(savedMark) ? savedMark : null;
+        try {
+            incrementalRuns = Integer.parseInt(state.getProperty(INCREMENTAL_RUNS_KEY, "0"));
+        } catch (NumberFormatException e) {
+            incrementalRuns = 0;
+        }
+    }
+
+    private void writeState() {
+        final Properties state = new Properties();
+        state.setProperty(CONFIGURATION_KEY, configuration);
+        if (mark != null) {
+            state.setProperty(MARK_KEY, mark);
+        }
+        state.setProperty(INCREMENTAL_RUNS_KEY, String.valueOf(incrementalRuns));
+        try {
+            final File parent = stateFile.getAbsoluteFile().getParentFile();
+            final File tempFile = File.createTempFile(stateFile.getName(), ".tmp", parent);
+            try {
+                try (OutputStream out = new FileOutputStream(tempFile)) {
+                    state.store(out, "LDAP incremental synchronization state");
+                }
+                Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot save incremental synchronization state to " + stateFile, e);
+        }
+    }
+}
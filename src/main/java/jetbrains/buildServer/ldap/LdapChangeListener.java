@@ -0,0 +1,192 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import jetbrains.buildServer.ldap.api.LdapContext;
+import jetbrains.buildServer.ldap.api.PersistentSearchControl;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import javax.naming.directory.SearchResult;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Subscribes to the changes of the users using the persistent search and pushes every changed user to the {@link Callback}.
+ * The search is restarted with exponential backoff when the connection fails or the server ends it. After a restart, the changes missed
+ * in between are retrieved by the regular synchronization (incremental when '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_INCREMENTAL_SYNC_ENABLED}' is set).
+ */
+public class LdapChangeListener implements Closeable {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(LdapChangeListener.class);
+    @NonNull
+    private final LdapFetcher ldapFetcher;
+    @NonNull
+    private final LdapSynchronizer ldapSynchronizer;
+    @NonNull
+    private final LdapContext ldapContext;
+    @NonNull
+    private final Callback callback;
+    private final long minReconnectDelay;
+    private final long maxReconnectDelay;
+
+    private volatile boolean running;
+    @Nullable
+    private volatile Closeable searchHandle;
+    @Nullable
+    private Thread thread;
+
+    /**
+     * @param ldapSynchronizer performs the synchronization after a reconnect, serialized with the scheduled ones
+     */
+    public LdapChangeListener(@NonNull final LdapFetcher ldapFetcher,
+                              @NonNull final LdapSynchronizer ldapSynchronizer,
+                              @NonNull final LdapContext ldapContext,
+                              @NonNull final LdapProperties ldapProperties,
+                              @NonNull final Callback callback) {
+        this.ldapFetcher = ldapFetcher;
+        this.ldapSynchronizer = ldapSynchronizer;
+        this.ldapContext = ldapContext;
+        this.callback = callback;
+        minReconnectDelay = Math.max(1, ldapProperties.getLong(KEY_USER_LISTEN_RECONNECT_DELAY, 1000));
+        maxReconnectDelay = Math.max(minReconnectDelay, ldapProperties.getLong(KEY_USER_LISTEN_MAX_RECONNECT_DELAY, 60000));
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::listen, "ldap-change-listener");
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        final Thread listenerThread;
+        synchronized (this) {
+            running = false;
+            listenerThread = thread;
+            thread = null;
+        }
+        if (listenerThread == null) {
+            return;
+        }
+        stopSearch();
+        listenerThread.interrupt();
+        try {
+            listenerThread.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void listen() {
+        long reconnectDelay = minReconnectDelay;
+        boolean reconnect = false;
+        while (running) {
+            final boolean resynchronize = reconnect;
+            final long start = System.nanoTime();
+            Exception failure = null;
+            try {
+                ldapContext.listenForChanges(ldapFetcher.getUserBaseProperty(), ldapFetcher.getUserFilterProperty(), ldapFetcher.getUserSearchControls(),
+                        new LdapContext.ChangeCallback() {
+                            @Override
+                            public void searchStarted(@NonNull final Closeable handle) {
+                                searchHandle = handle;
+                                if (!running) {
+                                    stopSearch();
+                                } else if (resynchronize) {
+                                    resynchronize();
+                                }
+                            }
+
+                            @Override
+                            public void entryChanged(@NonNull final SearchResult searchResult, @NonNull final PersistentSearchControl.EntryChange change) {
+                                try {
+                                    ldapFetcher.applyChange(searchResult, change, callback);
+                                } catch (Exception e) {
+                                    LOGGER.error("Error while processing changed LDAP entry " + searchResult.getName(), e);
+                                }
+                            }
+                        });
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                searchHandle = null;
+            }
+            if (!running) {
+                break;
+            }
+            // the search has worked for a while, so it is not a repeated failure; otherwise the delay also applies when the server
+            // ends the search normally, e.g. on its time limit, as every restart is followed by the synchronization
+            if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= maxReconnectDelay) {
+                reconnectDelay = minReconnectDelay;
+            }
+            if (failure != null) {
+                LOGGER.warn("Persistent search failed, reconnecting in " + reconnectDelay + " ms", failure);
+            } else {
+                LOGGER.info("Persistent search is ended by the server, restarting it in " + reconnectDelay + " ms");
+            }
+            try {
+                Thread.sleep(reconnectDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            reconnectDelay = Math.min(reconnectDelay * 2, maxReconnectDelay);
+            reconnect = true;
+        }
+        LOGGER.info("Stopped listening for LDAP changes");
+    }
+
+    /**
+     * The search request is already sent at this point, so no change is lost between the synchronization and the search.
+     */
+    private void resynchronize() {
+        final RemoteData remoteData = ldapSynchronizer.sync();
+        if (remoteData != null) {
+            callback.resynchronized(remoteData);
+        }
+    }
+
+    private void stopSearch() {
+        final Closeable handle = searchHandle;
+        if (handle != null) {
+            try {
+                handle.close();
+            } catch (IOException e) {
+                LOGGER.debug("Error while stopping persistent search", e);
+            }
+        }
+    }
+
+    public interface Callback {
+        void userChanged(@NonNull RemoteUserData userData);
+
+        void userDeleted(@NonNull String remoteId);
+
+        /**
+         * Called with the result of the synchronization performed after the connection was restored.
+         */
+        void resynchronized(@NonNull RemoteData remoteData);
+    }
+}
@@ -15,18 +15,23 @@
  */
 package jetbrains.buildServer.ldap;
 
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import jetbrains.buildServer.ldap.api.LdapContext;
+import jetbrains.buildServer.ldap.api.LdapMetrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.lang.NonNull;
-import org.springframework.util.ResourceUtils;
 
 import java.io.IOException;
-import java.nio.file.Files;
+import java.util.Collections;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
 
 @Configuration
 @PropertySource("classpath:ldap-config.properties")
@@ -34,37 +39,116 @@ public class LdapConfigurer {
     @NonNull
     private static final Logger LOGGER = LogManager.getLogger(LdapConfigurer.class);
 
+    @Autowired
     @Bean
-    public RemoteDataFetcherOptions remoteDataFetcherOptions(@Value("${teamcity.options.users.synchronize}") final boolean synchronizeUsers) {
-        return new RemoteDataFetcherOptions(synchronizeUsers);
+    public RemoteDataFetcherOptions remoteDataFetcherOptions(@NonNull final LdapProperties ldapProperties) {
+        return RemoteDataFetcherOptions.fromProperties(ldapProperties);
     }
 
     @Bean
     public LdapProperties ldapProperties(@Value("${configurationFile:classpath:ldap-config.properties}") @NonNull final String propertiesFile) throws IOException {
-        LOGGER.info("Loading properties from file {}", propertiesFile);
-        LOGGER.debug("{} content: [\n{}\n]", () -> propertiesFile, () -> {
-            try {
-                return new String(Files.readAllBytes(ResourceUtils.getFile(propertiesFile).toPath()));
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        });
-        final LdapProperties ldapProperties = new LdapProperties();
-        ldapProperties.readFromFile(ResourceUtils.getFile(propertiesFile));
-        return ldapProperties;
+        return LdapProperties.load(propertiesFile);
+    }
+
+    @Autowired
+    @Bean(destroyMethod = "close")
+    public LdapPropertiesWatcher ldapPropertiesWatcher(@NonNull final LdapProperties ldapProperties) throws IOException {
+        final LdapPropertiesWatcher ldapPropertiesWatcher = new LdapPropertiesWatcher(ldapProperties);
+        if (ldapProperties.getBoolean(KEY_CONFIG_WATCH_ENABLED)) {
+            ldapPropertiesWatcher.start();
+        }
+        return ldapPropertiesWatcher;
+    }
+
+    @Autowired
+    @Bean(destroyMethod = "close")
+    public CompositeMeterRegistry meterRegistry(@NonNull final LdapProperties ldapProperties) {
+        return MeterRegistries.create(ldapProperties);
+    }
+
+    @Autowired
+    @Bean(destroyMethod = "close")
+    public PrometheusScrapeEndpoint prometheusScrapeEndpoint(@NonNull final CompositeMeterRegistry meterRegistry,
+                                                             @NonNull final LdapProperties ldapProperties) throws IOException {
+        return new PrometheusScrapeEndpoint(meterRegistry, ldapProperties.getInt(KEY_METRICS_PROMETHEUS_PORT, 0));
+    }
+
+    @Autowired
+    @Bean
+    @DependsOn("prometheusScrapeEndpoint")
+    public LdapMetrics ldapMetrics(@NonNull final CompositeMeterRegistry meterRegistry, @NonNull final LdapProperties ldapProperties) {
+        return LdapMetrics.fromProperties(meterRegistry, ldapProperties);
     }
 
     @Autowired
     @Bean
-    public LdapFetcher ldapFetcher(@NonNull final RemoteDataFetcherOptions dataFetcherOptions, @NonNull final LdapProperties ldapProperties) {
-        return new LdapFetcher(dataFetcherOptions, ldapProperties);
+    public LdapContext ldapContext(@NonNull final LdapProperties ldapProperties, @NonNull final LdapMetrics ldapMetrics) {
+        final LdapContext ldapContext = new LdapContext(ldapProperties, ldapMetrics);
+        try {
+            ldapContext.warmUp();
+        } catch (Exception e) {
+            LOGGER.error("Error while warming up LDAP connections", e);
+        }
+        return ldapContext;
+    }
+
+    @Autowired
+    @Bean(destroyMethod = "close")
+    public LdapFetcher ldapFetcher(@NonNull final RemoteDataFetcherOptions dataFetcherOptions,
+                                   @NonNull final LdapProperties ldapProperties,
+                                   @NonNull final LdapContext ldapContext) {
+        return new LdapFetcher(dataFetcherOptions, ldapProperties, ldapContext);
+    }
+
+    @Autowired
+    @Bean(destroyMethod = "close")
+    public LdapSynchronizer ldapSynchronizer(@NonNull final LdapFetcher ldapFetcher,
+                                             @NonNull final RemoteDataFetcherOptions dataFetcherOptions,
+                                             @NonNull final LdapProperties ldapProperties,
+                                             @NonNull final LdapMetrics ldapMetrics) {
+        return LdapSynchronizer.fromProperties(ldapFetcher, ldapProperties, dataFetcherOptions, ldapMetrics);
+    }
+
+    @Autowired
+    @Bean(destroyMethod = "close")
+    public LdapSyncScheduler ldapSyncScheduler(@NonNull final LdapSynchronizer ldapSynchronizer,
+                                               @NonNull final LdapProperties ldapProperties) {
+        final LdapSyncScheduler ldapSyncScheduler = new LdapSyncScheduler(ldapSynchronizer, ldapProperties, LdapSyncScheduler.LOGGING_CALLBACK);
+        ldapSyncScheduler.runOnce();
+        if (ldapProperties.getBoolean(KEY_SYNC_SCHEDULE_ENABLED)) {
+            ldapSyncScheduler.start();
+        }
+        return ldapSyncScheduler;
     }
 
     @Autowired
     @Bean
-    public LdapSynchronizer ldapSynchronizer(@NonNull final LdapFetcher ldapFetcher) {
-        final LdapSynchronizer ldapSynchronizer = new LdapSynchronizer(ldapFetcher);
-        LOGGER.info("Sync: " + ldapSynchronizer.sync());
-        return ldapSynchronizer;
+    @DependsOn("ldapSyncScheduler")
+    public LdapChangeListener ldapChangeListener(@NonNull final LdapFetcher ldapFetcher,
+                                                 @NonNull final LdapSynchronizer ldapSynchronizer,
+                                                 @NonNull final LdapContext ldapContext,
+                                                 @NonNull final LdapProperties ldapProperties) {
+        final LdapChangeListener ldapChangeListener = new LdapChangeListener(ldapFetcher, ldapSynchronizer, ldapContext, ldapProperties, new LdapChangeListener.Callback() {
+            @Override
+            public void userChanged(@NonNull final RemoteUserData userData) {
+                LOGGER.info("Changed: " + userData);
+                ldapSynchronizer.applyChanges(Collections.singletonList(userData), Collections.emptyList());
+            }
+
+            @Override
+            public void userDeleted(@NonNull final String remoteId) {
+                LOGGER.info("Deleted: " + remoteId);
+                ldapSynchronizer.applyChanges(Collections.emptyList(), Collections.singletonList(remoteId));
+            }
+
+            @Override
+            public void resynchronized(@NonNull final RemoteData remoteData) {
+                LOGGER.info("Resync: " + remoteData.getUserData().size() + " users, " + remoteData.getGroupData().size() + " groups");
+            }
+        });
+        if (ldapProperties.getBoolean(KEY_USER_LISTEN_ENABLED)) {
+            ldapChangeListener.start();
+        }
+        return ldapChangeListener;
     }
 }
@@ -18,33 +18,69 @@ package jetbrains.buildServer.ldap;
 import jetbrains.buildServer.ldap.api.LdapContext;
 import jetbrains.buildServer.ldap.api.LdapExecutor;
 import jetbrains.buildServer.ldap.api.LdapSearchUtil;
+import jetbrains.buildServer.ldap.api.PersistentSearchControl;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.reactivestreams.Publisher;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
+import org.springframework.ldap.CommunicationException;
+import org.springframework.ldap.ServiceUnavailableException;
+import org.springframework.ldap.support.LdapEncoder;
+import org.springframework.ldap.support.LdapUtils;
 import org.springframework.util.StringUtils;
 
+import javax.naming.InvalidNameException;
+import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import javax.naming.ldap.LdapName;
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
 
-public class LdapFetcher {
+public class LdapFetcher implements Closeable {
     @NonNull
     public static final Logger LOGGER = LogManager.getLogger(LdapFetcher.class);
     @NonNull
     private final LdapProperties ldapProperties;
     @NonNull
     private final RemoteDataFetcherOptions dataFetcherOptions;
+    @NonNull
+    private final LdapContext ldapContext;
+    @Nullable
+    private final IncrementalSyncState incrementalSyncState;
+    /**
+     * Held from the start to the completion of the incremental synchronization, which must not interleave with another one.
+     */
+    @NonNull
+    private final Lock incrementalSyncLock = new ReentrantLock();
+    @Nullable
+    private volatile UserExtractionPlan userExtractionPlan;
+    @Nullable
+    private List<UserSource> userSources;
+    @Nullable
+    private ExecutorService asyncExecutor;
 
-    public LdapFetcher(@NonNull final RemoteDataFetcherOptions dataFetcherOptions, @NonNull final LdapProperties ldapProperties) {
+    public LdapFetcher(@NonNull final RemoteDataFetcherOptions dataFetcherOptions,
+                       @NonNull final LdapProperties ldapProperties,
+                       @NonNull final LdapContext ldapContext) {
         this.ldapProperties = ldapProperties;
         this.dataFetcherOptions = dataFetcherOptions;
+        this.ldapContext = ldapContext;
+        this.incrementalSyncState = ldapProperties.getBoolean(KEY_INCREMENTAL_SYNC_ENABLED) ? new IncrementalSyncState(ldapProperties) : null;
     }
 
     @Nullable
@@ -55,141 +91,722 @@ public class LdapFetcher {
         return s;
     }
 
+    @Nullable
+    public RemoteData fetchAllRemoteData() {
+        final AtomicReference<RemoteData> remoteData = new AtomicReference<>();
+        final long start = System.nanoTime();
+        // the whole synchronization uses the values read here, even if the properties are reloaded meanwhile
+        final LdapProperties properties = ldapProperties.snapshot();
+        try {
+            ldapContext.runLdapCommands(executor -> {
+                if (!dataFetcherOptions.isUserSyncEnabled() && !dataFetcherOptions.isGroupSyncEnabled()) {
+                    LOGGER.error("Skipping users synchronization as '{}' property is not set to '{}'", KEY_ENABLE_USER_SYNC_OPTION, true);
+                    return;
+                }
+                if (!dataFetcherOptions.isUserSyncEnabled()) {
+                    LOGGER.info("'{}' property is not set to '{}', users are retrieved only to resolve group members", KEY_ENABLE_USER_SYNC_OPTION, true);
+                }
+                final UserExtractionPlan plan;
+                try {
+                    plan = UserExtractionPlan.compile(properties);
+                } catch (Exception e) {
+                    LOGGER.error("Invalid LDAP users configuration, skipping users synchronization", e);
+                    return;
+                }
+                userExtractionPlan = plan;
+                final List<RemoteUserData> users;
+                try {
+                    users = fillUserData(executor, plan, properties);
+                } catch (Exception e) {
+                    LOGGER.error("Error while retrieving LDAP users, skipping users synchronization", e);
+                    return;
+                } finally {
+                    plan.getReport().log("LDAP user entries");
+                    plan.getReport().publish(ldapContext.getMetrics(), "user");
+                }
+                List<RemoteGroupData> groups = Collections.emptyList();
+                if (dataFetcherOptions.isGroupSyncEnabled()) {
+                    try {
+                        groups = fillGroupData(executor, users, plan, properties);
+                    } catch (Exception e) {
+                        LOGGER.error("Error while retrieving LDAP groups, skipping groups synchronization", e);
+                    }
+                }
+                remoteData.set(new RemoteData(users, groups));
+            });
+        } catch (Exception e) {
+            LOGGER.error("Error while initializing LDAP connection", e);
+        }
+        final RemoteData result = remoteData.get();
+        ldapContext.getMetrics().recordSync(System.nanoTime() - start, result != null,
+                result == null ? 0 : result.getUserData().size(), result == null ? 0 : result.getGroupData().size());
+        return result;
+    }
+
+    /**
+     * Same as {@link #fetchAllRemoteData()}, but runs on the executor of the asynchronous operations and returns immediately.
+     * Cancelling the future interrupts the synchronization.
+     *
+     * @return the future completed with the result, or with null if fetching failed
+     */
+    @NonNull
+    public CompletableFuture<RemoteData> fetchAllRemoteDataAsync() {
+        final CompletableFuture<RemoteData> result = new CompletableFuture<>();
+        final Future<?> task = getAsyncExecutor().submit(() -> {
+            try {
+                result.complete(fetchAllRemoteData());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.whenComplete((remoteData, e) -> {
+            if (result.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Publishes the users of all the sources as they are read from LDAP, at the pace requested by the subscriber, without
+     * collecting them in memory. Every subscription runs its own search on the executor of the asynchronous operations: the sources
+     * are searched one after another over a single connection, users found in a preceding source are skipped. The search is not
+     * partitioned, not repeated after errors and does not affect the incremental synchronization.
+     * <p>
+     * Note that the connection is held while the subscriber does not request users, so a slow subscriber may hit the idle
+     * timeout of the server.
+     */
     @NonNull
-    String getRemoteId(@NonNull final SearchResult searchResult) {
-        final String attributeName = ldapProperties.getProperty(KEY_MEMBER_USER_ID_ATTRIBUTE);
-        if (StringUtils.hasText(attributeName)) {
-            return getAttributeBasedValue(searchResult, KEY_MEMBER_USER_ID_ATTRIBUTE);
+    public Publisher<RemoteUserData> publishUsers() {
+        return new RemoteUserPublisher(this::searchUsers, getAsyncExecutor());
+    }
+
+    /**
+     * @return the label to save the snapshot of the synchronization result with, or null if it is not needed to restore the state
+     */
+    @Nullable
+    String getSnapshotLabel() {
+        return incrementalSyncState != null ? incrementalSyncState.getSnapshotLabel() : null;
+    }
+
+    /**
+     * Restores the result of the previous synchronization from the snapshot, so that the first synchronization after a restart can be incremental.
+     */
+    void restoreFromSnapshot(@NonNull final RemoteDataSnapshot snapshot) {
+        if (incrementalSyncState != null) {
+            incrementalSyncState.restore(snapshot);
         }
-        return getDn(searchResult);
     }
 
+    /**
+     * @return the plan compiled by the latest synchronization
+     */
     @NonNull
-    String getDn(@NonNull final SearchResult searchResult) {
-        try {
-            return searchResult.getNameInNamespace();
-        } catch (UnsupportedOperationException e) {
-            if (!searchResult.isRelative()) {
-                return searchResult.getName();
+    private UserExtractionPlan getUserExtractionPlan() {
+        UserExtractionPlan result = userExtractionPlan;
+        if (result == null) {
+            result = UserExtractionPlan.compile(ldapProperties);
+            userExtractionPlan = result;
+        }
+        return result;
+    }
+
+    /**
+     * Converts the entry received by {@link LdapChangeListener} and passes it to the {@code callback}.
+     */
+    void applyChange(@NonNull final SearchResult searchResult,
+                     @NonNull final PersistentSearchControl.EntryChange change,
+                     @NonNull final LdapChangeListener.Callback callback) {
+        final PersistentSearchControl.ChangeType changeType = change.getChangeType();
+        if (changeType == PersistentSearchControl.ChangeType.MODIFY_DN) {
+            // the user identified by the DN is gone, the renamed entry is a new user
+            final String previousRemoteId = getUserExtractionPlan().getPreviousRemoteId(change.getPreviousDN());
+            if (previousRemoteId != null && !previousRemoteId.equals(getUserExtractionPlan().getRemoteId(searchResult))) {
+                if (incrementalSyncState != null) {
+                    incrementalSyncState.applyDelete(previousRemoteId);
+                }
+                callback.userDeleted(previousRemoteId);
+            }
+        }
+        if (changeType == PersistentSearchControl.ChangeType.DELETE) {
+            final String remoteId = getUserExtractionPlan().getRemoteId(searchResult);
+            if (remoteId == null) {
+                LOGGER.warn("Cannot get remote id of deleted LDAP entry " + searchResult.getName());
+                return;
+            }
+            if (incrementalSyncState != null) {
+                incrementalSyncState.applyDelete(remoteId);
             }
-            LOGGER.error("Trying to get DN for LDAP entry " + searchResult.toString() + " via attribute, as there was an error retrieving DN via API: " + e.toString());
-            return getAttributeBasedValue(searchResult, KEY_DN_ATTR);
+            callback.userDeleted(remoteId);
+            return;
+        }
+        final RemoteUserData userData = getUserExtractionPlan().convert(searchResult);
+        if (userData == null) {
+            LOGGER.warn("Skipping changed LDAP entry " + searchResult.getName() + " with absent required attributes");
+            return;
+        }
+        if (incrementalSyncState != null) {
+            incrementalSyncState.applyChange(userData);
         }
+        callback.userChanged(userData);
     }
 
+    /**
+     * Closes the connections used by the operations in progress, of the main server and of the user sources with their own servers.
+     */
+    void abortOperations() {
+        ldapContext.abortOperations();
+        final List<UserSource> sources;
+        synchronized (this) {
+            sources = userSources;
+        }
+        if (sources != null) {
+            for (UserSource source : sources) {
+                final LdapContext sourceContext = source.getLdapContext();
+                if (sourceContext != null) {
+                    sourceContext.abortOperations();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdownNow();
+            asyncExecutor = null;
+        }
+        if (userSources != null) {
+            userSources.forEach(UserSource::close);
+            userSources = null;
+        }
+    }
+
+    /**
+     * @return the executor of the asynchronous operations: a new virtual thread per operation if '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_USER_FETCH_VIRTUAL_THREADS}'
+     * is set and the JVM supports them, otherwise a pool of platform threads created on demand
+     */
+    @NonNull
+    private synchronized ExecutorService getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            if (ldapProperties.getBoolean(KEY_USER_FETCH_VIRTUAL_THREADS)) {
+                asyncExecutor = createVirtualThreadExecutor();
+            }
+            if (asyncExecutor == null) {
+                final AtomicInteger threadCounter = new AtomicInteger();
+                asyncExecutor = Executors.newCachedThreadPool(r -> {
+                    final Thread thread = new Thread(r, "ldap-fetch-async-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * @return the executor starting a virtual thread per task, or null if the JVM does not support virtual threads (before Java 21)
+     */
     @Nullable
-    public RemoteData fetchAllRemoteData() {
-        final AtomicReference<RemoteData> remoteData = new AtomicReference<>();
+    private static ExecutorService createVirtualThreadExecutor() {
         try {
-            final LdapContext ldapContext = new LdapContext(ldapProperties);
-            ldapContext.runLdapCommands(executor -> {
-                if (dataFetcherOptions.isUserSyncEnabled()) {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.warn("Virtual threads are not supported by Java " + System.getProperty("java.version") + ", ignoring '" +
+                    KEY_USER_FETCH_VIRTUAL_THREADS + "'");
+            return null;
+        }
+    }
+
+    /**
+     * Searches the user sources for {@link #publishUsers()}.
+     */
+    private void searchUsers(@NonNull final Consumer<RemoteUserData> consumer) {
+        final LdapProperties properties = ldapProperties.snapshot();
+        final UserExtractionPlan plan = UserExtractionPlan.compile(properties);
+        final List<UserSource> sources = getUserSources(properties);
+        final Set<String> remoteIds = sources.size() > 1 ? new HashSet<>() : null;
+        try {
+            for (UserSource source : sources) {
+                final LdapExecutor.SearchResultCallback callback = searchResult -> {
+                    final RemoteUserData userData = plan.convert(searchResult);
+                    if (userData != null && (remoteIds == null || remoteIds.add(userData.getRemoteId()))) {
+                        consumer.accept(userData);
+                    }
+                };
+                final LdapContext sourceContext = source.getLdapContext();
+                (sourceContext != null ? sourceContext : ldapContext).runLdapCommands(executor ->
+                        fetchUsers(executor, source.getBase(), source.getFilter(), callback, properties));
+            }
+        } finally {
+            plan.getReport().log("LDAP user entries");
+            plan.getReport().publish(ldapContext.getMetrics(), "user");
+        }
+    }
+
+    @NonNull
+    private synchronized List<UserSource> getUserSources() {
+        if (userSources == null) {
+            userSources = UserSource.fromProperties(ldapProperties, ldapContext.getMetrics());
+            if (userSources.size() > 1) {
+                LOGGER.info("Retrieving users from " + userSources.size() + " sources in the order of precedence: " + userSources);
+            }
+        }
+        return userSources;
+    }
+
+    /**
+     * @return the sources read on startup, with their connections, searched with the bases and the filters of the given properties
+     */
+    @NonNull
+    private List<UserSource> getUserSources(@NonNull final LdapProperties properties) {
+        final List<UserSource> sources = getUserSources();
+        final List<UserSource> result = new ArrayList<>(sources.size());
+        for (UserSource source : sources) {
+            result.add(source.withSearchOf(properties));
+        }
+        return result;
+    }
+
+    @NonNull
+    private List<RemoteUserData> fillUserData(@NonNull final LdapExecutor executor, @NonNull final UserExtractionPlan plan,
+                                              @NonNull final LdapProperties properties) {
+        if (incrementalSyncState == null) {
+            final List<RemoteUserData> result = fetchAllUsers(executor, null, plan, properties);
+            LOGGER.info("Got " + result.size() + " users from LDAP");
+            return result;
+        }
+
+        try {
+            incrementalSyncLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for another users synchronization", e);
+        }
+        try {
+            final String changedEntriesFilter = incrementalSyncState.startSync();
+            if (changedEntriesFilter != null) {
+                try {
+                    final List<RemoteUserData> changedUsers = fetchAllUsers(executor, changedEntriesFilter, plan, properties);
+                    LOGGER.info("Got " + changedUsers.size() + " changed users from LDAP");
+                    return incrementalSyncState.completeSync(changedUsers, true);
+                } catch (Exception e) {
+                    LOGGER.warn("Error while retrieving changed LDAP users, falling back to full users synchronization", e);
+                    incrementalSyncState.reset();
+                    incrementalSyncState.startSync();
+                }
+            }
+            final List<RemoteUserData> result = fetchAllUsers(executor, null, plan, properties);
+            LOGGER.info("Got " + result.size() + " users from LDAP");
+            return incrementalSyncState.completeSync(result, false);
+        } finally {
+            incrementalSyncLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves all the groups in a single search and resolves their members against the already retrieved {@code users}.
+     */
+    @NonNull
+    private List<RemoteGroupData> fillGroupData(@NonNull final LdapExecutor executor,
+                                                @NonNull final Collection<RemoteUserData> users,
+                                                @NonNull final UserExtractionPlan plan,
+                                                @NonNull final LdapProperties properties) {
+        final String memberAttribute = properties.getProperty(KEY_GROUP_MEMBER_ATTRIBUTE);
+        if (!StringUtils.hasText(memberAttribute)) {
+            throw new IllegalArgumentException("Cannot search groups in LDAP as '" + KEY_GROUP_MEMBER_ATTRIBUTE + "' property is not set");
+        }
+        final String groupIdAttribute = properties.getProperty(KEY_MEMBER_GROUP_ID_ATTRIBUTE);
+        final String nameAttribute = properties.getProperty(KEY_GROUP_NAME_ATTR);
+        final GroupMembershipResolver resolver = new GroupMembershipResolver(users,
+                !StringUtils.hasText(properties.getProperty(KEY_MEMBER_USER_ID_ATTRIBUTE)),
+                !StringUtils.hasText(groupIdAttribute),
+                properties.getBoolean(KEY_GROUP_RETRIEVE_NESTED));
+
+        final Set<String> attributes = new LinkedHashSet<>();
+        attributes.add(memberAttribute);
+        attributes.add(properties.getProperty(KEY_DN_ATTR, ""));
+        if (StringUtils.hasText(nameAttribute)) {
+            attributes.add(nameAttribute);
+        }
+        if (StringUtils.hasText(groupIdAttribute)) {
+            attributes.add(groupIdAttribute);
+        }
+        attributes.remove("");
+
+        final String groupBase = getGroupBaseProperty(properties);
+        final AttributeExtractionReport report = new AttributeExtractionReport();
+        final List<Runnable> rangedMembersRetrievals = new ArrayList<>();
+        executor.pagedSearch(groupBase, getGroupFilterProperty(properties), LdapSearchUtil.getDefaultSearchControls(attributes.toArray(new String[0])),
+                properties.getInt(KEY_SEARCH_PAGE_SIZE, 0), searchResult -> {
                     try {
-                        remoteData.set(new RemoteData(fillUserData(executor)));
+                        final String remoteId = StringUtils.hasText(groupIdAttribute)
+                                ? report.getValue(searchResult, groupIdAttribute)
+                                : plan.getDn(searchResult);
+                        if (remoteId == null) {
+                            report.entrySkipped();
+                            return;
+                        }
+                        final String name = StringUtils.hasText(nameAttribute) ? getOptionalAttributeValue(searchResult, nameAttribute) : null;
+                        final GroupMembershipResolver.GroupBuilder group = resolver.addGroup(remoteId, name);
+                        final LdapExecutor.AttributeValueCallback memberCallback = value -> group.addMember(value.toString());
+                        final int nextMemberIndex = LdapSearchUtil.processRangedAttribute(searchResult.getAttributes(), memberAttribute, memberCallback);
+                        if (nextMemberIndex >= 0) {
+                            final String groupDn = getRelativeDn(searchResult, groupBase);
+                            rangedMembersRetrievals.add(() -> executor.retrieveRangedAttributeValues(groupDn, memberAttribute, nextMemberIndex, memberCallback));
+                        }
                     } catch (Exception e) {
-                        LOGGER.error("Error while retrieving LDAP users, skipping users synchronization", e);
+                        LOGGER.error("Error while retrieving LDAP group information", e);
                     }
-                } else {
-                    LOGGER.error("Skipping users synchronization as '{}' property is not set to '{}'", KEY_ENABLE_USER_SYNC_OPTION, true);
-                }
-            });
-        } catch (Exception e) {
-            LOGGER.error("Error while initializing LDAP connection", e);
+                });
+        if (!rangedMembersRetrievals.isEmpty()) {
+            LOGGER.info("Retrieving remaining members of " + rangedMembersRetrievals.size() + " groups using ranged retrieval");
+            runConcurrently(rangedMembersRetrievals, properties.getInt(KEY_USER_FETCH_PARALLELISM, 1), "ldap-group-members-");
         }
-        return remoteData.get();
+        report.log("LDAP group entries");
+        report.publish(ldapContext.getMetrics(), "group");
+        final List<RemoteGroupData> result = resolver.resolve();
+        LOGGER.info("Got " + result.size() + " groups from LDAP");
+        return result;
     }
 
+    /**
+     * @return the name of the entry relative to the root specified by provider url
+     */
     @NonNull
-    private List<RemoteUserData> fillUserData(@NonNull final LdapExecutor executor) {
-        List<SearchResult> userResults = fetchUsers(executor);
+    private static String getRelativeDn(@NonNull final SearchResult searchResult, @NonNull final String base) {
+        final LdapName result = LdapUtils.newLdapName(base);
+        try {
+            result.addAll(LdapUtils.newLdapName(searchResult.getName()));
+        } catch (InvalidNameException e) {
+            throw LdapUtils.convertLdapException(e);
+        }
+        return result.toString();
+    }
 
-        final List<RemoteUserData> result = new ArrayList<>(userResults.size());
-        for (SearchResult searchResult : userResults) {
-            try {
-                result.add(convertToRemoteUserData(searchResult));
-            } catch (Exception e) {
-                LOGGER.error("Error while retrieving LDAP user information", e);
+    /**
+     * Runs the {@code tasks} concurrently, member values of each group are processed by a single thread.
+     */
+    private static void runConcurrently(@NonNull final List<Runnable> tasks, final int parallelism, @NonNull final String threadNamePrefix) {
+        if (parallelism <= 1 || tasks.size() == 1) {
+            tasks.forEach(Runnable::run);
+            return;
+        }
+        final ExecutorService executorService = createExecutorService(Math.min(parallelism, tasks.size()), threadNamePrefix);
+        try {
+            final List<Future<?>> futures = new ArrayList<>(tasks.size());
+            for (Runnable task : tasks) {
+                futures.add(executorService.submit(task));
             }
+            for (Future<?> future : futures) {
+                getPartitionResult(future);
+            }
+        } finally {
+            executorService.shutdownNow();
         }
-        LOGGER.info("Got " + result.size() + " users from LDAP");
-        return result;
     }
 
     @NonNull
-    private List<SearchResult> fetchUsers(@NonNull final LdapExecutor executor) {
-        final String userBaseProperty = getUserBaseProperty();
-        final String userFilterProperty = getUserFilterProperty();
-        return executor.search(userBaseProperty, userFilterProperty, LdapSearchUtil.getDefaultSearchControls(ldapProperties.getUserAttributesToRetrieve()));
+    private static ExecutorService createExecutorService(final int threads, @NonNull final String threadNamePrefix) {
+        final AtomicInteger threadCounter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, threadNamePrefix + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
+    @Nullable
+    private static String getOptionalAttributeValue(@NonNull final SearchResult searchResult, @NonNull final String attributeName) throws NamingException {
+        final Attribute attribute = searchResult.getAttributes().get(attributeName);
+        final Object value = attribute == null ? null : attribute.get();
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Searches all the user sources concurrently and merges the results in the order of the sources,
+     * so the first source with a user of a given remote id wins.
+     *
+     * @param changedEntriesFilter the filter added to the filter of every source, or null to fetch all the users
+     */
     @NonNull
-    private RemoteUserData convertToRemoteUserData(@NonNull SearchResult searchResult) {
-        final String remoteId = getRemoteId(searchResult);
+    private List<RemoteUserData> fetchAllUsers(@NonNull final LdapExecutor executor,
+                                               @Nullable final String changedEntriesFilter,
+                                               @NonNull final UserExtractionPlan plan,
+                                               @NonNull final LdapProperties properties) {
+        final List<UserSource> sources = getUserSources(properties);
+        if (sources.size() == 1) {
+            return fetchAllUsers(executor, sources.get(0), changedEntriesFilter, plan, properties);
+        }
+        final ExecutorService executorService = createExecutorService(sources.size(), "ldap-user-source-");
+        try {
+            final List<Future<List<RemoteUserData>>> results = new ArrayList<>(sources.size());
+            for (UserSource source : sources) {
+                results.add(executorService.submit(() -> fetchAllUsers(executor, source, changedEntriesFilter, plan, properties)));
+            }
+
+            final Map<String, RemoteUserData> result = new LinkedHashMap<>();
+            for (int i = 0; i < sources.size(); i++) {
+                int skipped = 0;
+                for (RemoteUserData userData : getPartitionResult(results.get(i))) {
+                    if (result.putIfAbsent(userData.getRemoteId(), userData) != null) {
+                        skipped++;
+                        LOGGER.debug("Skipping LDAP user with remote id '" + userData.getRemoteId() + "' of source '" + sources.get(i).getName() +
+                                "' as it is found in a preceding source");
+                    }
+                }
+                if (skipped > 0) {
+                    LOGGER.info("Skipped " + skipped + " users of source '" + sources.get(i).getName() + "' as users with the same remote ids are found in the preceding sources");
+                }
+            }
+            return new ArrayList<>(result.values());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
 
-        String username = getAttributeBasedValue(searchResult, KEY_USER_USERNAME_ATTR).toLowerCase();
-        String transformKey = "teamcity.users.username.transform";
-        String usernameTransform = ldapProperties.getProperty(transformKey);
-        if (usernameTransform != null) {
-            String transformed = usernameTransform.replace("$username$", username);
-            LOGGER.info("Username transformed from '" + username + "' to '" + transformed + "' " +
-                    "due to setting: " + transformKey + "=" +
-                    usernameTransform);
-            username = transformed;
+    @NonNull
+    private List<RemoteUserData> fetchAllUsers(@NonNull final LdapExecutor executor,
+                                               @NonNull final UserSource source,
+                                               @Nullable final String changedEntriesFilter,
+                                               @NonNull final UserExtractionPlan plan,
+                                               @NonNull final LdapProperties properties) {
+        final String userFilter = changedEntriesFilter == null ? source.getFilter() : "(&" + source.getFilter() + changedEntriesFilter + ")";
+        final LdapContext sourceContext = source.getLdapContext();
+        if (sourceContext == null) {
+            return fetchAllUsers(executor, source.getBase(), userFilter, plan, properties);
         }
-        String displayName = getAttributeBasedValueForConfigParam(searchResult, KEY_USER_DISPLAY_NAME_ATTR);
+        final AtomicReference<List<RemoteUserData>> result = new AtomicReference<>();
+        sourceContext.runLdapCommands(sourceExecutor -> result.set(fetchAllUsers(sourceExecutor, source.getBase(), userFilter, plan, properties)));
+        return result.get();
+    }
 
-        String email = getAttributeBasedValueForConfigParam(searchResult, KEY_USER_MAIL_ATTR);
+    @NonNull
+    private List<RemoteUserData> fetchAllUsers(@NonNull final LdapExecutor executor,
+                                               @NonNull final String userBase,
+                                               @NonNull final String userFilter,
+                                               @NonNull final UserExtractionPlan plan,
+                                               @NonNull final LdapProperties properties) {
+        final int parallelism = properties.getInt(KEY_USER_FETCH_PARALLELISM, 1);
+        return parallelism > 1
+                ? fetchUsersConcurrently(executor, userBase, userFilter, parallelism, plan, properties)
+                : fetchUsers(executor, userBase, userFilter, plan, properties);
+    }
 
-        Map<String, String> customProperties = new HashMap<>();
-        for (Map.Entry<String, String> entry : ldapProperties.getCustomProperties().entrySet()) {
-            String customProperty = entry.getKey();
-            String attributeName = entry.getValue();
+    /**
+     * Repeats the search with exponential backoff after connection errors and an unavailable server, keeping the users converted
+     * by the failed attempts as the checkpoint: the paged results cookie is bound to the connection, so the repeated search reads
+     * the entries again, but only the entries which are not in the checkpoint are converted. The entries which failed to be converted
+     * are skipped as well, so that their failures are reported once. Partitions are repeated separately,
+     * so a failure does not affect the partitions which have already completed. The search is not repeated once the synchronization is aborted.
+     * An exceeded time or size limit is not retried: the server would enforce the same limit on the repeated search.
+     */
+    @NonNull
+    private List<RemoteUserData> fetchUsers(@NonNull final LdapExecutor executor,
+                                            @NonNull final String userBase,
+                                            @NonNull final String userFilter,
+                                            @NonNull final UserExtractionPlan plan,
+                                            @NonNull final LdapProperties properties) {
+        final List<RemoteUserData> result = new ArrayList<>();
+        final long[] conversionNanos = new long[1];
+        final int[] entries = new int[1];
+        final int retries = properties.getInt(KEY_USER_FETCH_RETRIES, 0);
+        long retryDelay = Math.max(1, properties.getLong(KEY_USER_FETCH_RETRY_DELAY, 1000));
+        final long maxRetryDelay = Math.max(retryDelay, properties.getLong(KEY_USER_FETCH_MAX_RETRY_DELAY, 30000));
+        // names of the entries which failed to be converted, usually few
+        final Set<String> failedEntries = new HashSet<>();
+        Set<String> checkpoint = null;
+        int checkpointedUsers = 0;
+        for (int attempt = 1; ; attempt++) {
+            final Set<String> convertedRemoteIds = checkpoint;
             try {
-                final String customPropertyValue = getAttributeBasedValueForConfigParam(searchResult, KEY_USER_CUSTOM_PROPERTY + customProperty);
-                customProperties.put(customProperty, customPropertyValue);
-            } catch (Exception e) {
-                LOGGER.error("Cannot retrieve attribute or resolve value for custom user property '" + KEY_USER_CUSTOM_PROPERTY + customProperty +
-                        "' defined to '" + attributeName + "' , " + e.toString());
+                fetchUsers(executor, userBase, userFilter, searchResult -> {
+                    if (incrementalSyncState != null) {
+                        incrementalSyncState.track(searchResult);
+                    }
+                    if (convertedRemoteIds != null) {
+                        if (failedEntries.contains(getEntryName(searchResult))) {
+                            return;
+                        }
+                        final String remoteId = plan.peekRemoteId(searchResult);
+                        if (remoteId != null && convertedRemoteIds.contains(remoteId)) {
+                            return;
+                        }
+                    }
+                    final long start = System.nanoTime();
+                    try {
+                        final RemoteUserData userData = plan.convert(searchResult);
+                        if (userData != null) {
+                            result.add(userData);
+                        } else {
+                            failedEntries.add(getEntryName(searchResult));
+                        }
+                    } catch (Exception e) {
+                        failedEntries.add(getEntryName(searchResult));
+                        LOGGER.error("Error while retrieving LDAP user information", e);
+                    }
+                    conversionNanos[0] += System.nanoTime() - start;
+                    entries[0]++;
+                }, properties);
+                break;
+            } catch (CommunicationException | ServiceUnavailableException e) {
+                if (attempt > retries || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                LOGGER.warn("Users search in '" + userBase + "' with filter " + userFilter + " failed after " + result.size() + " users, repeating it in " +
+                        retryDelay + " ms (attempt " + (attempt + 1) + " of " + (retries + 1) + "): " + e.getMessage());
+                ldapContext.getMetrics().recordFetchRetry(userBase);
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                retryDelay = Math.min(retryDelay * 2, maxRetryDelay);
+                if (checkpoint == null) {
+                    checkpoint = new HashSet<>();
+                }
+                for (; checkpointedUsers < result.size(); checkpointedUsers++) {
+                    checkpoint.add(result.get(checkpointedUsers).getRemoteId());
+                }
             }
         }
+        if (entries[0] > 0) {
+            ldapContext.getMetrics().recordConversion(entries[0], conversionNanos[0]);
+            LOGGER.info("Converted " + entries[0] + " LDAP entries in " + conversionNanos[0] / 1_000_000 + " ms (" +
+                    (long) (entries[0] * 1e9 / Math.max(1, conversionNanos[0])) + " entries/sec)");
+        }
+        return result;
+    }
 
-        return new RemoteUserData(remoteId, username, displayName, email, customProperties);
+    /**
+     * @return the name identifying the entry among the results of the search
+     */
+    @NonNull
+    private static String getEntryName(@NonNull final SearchResult searchResult) {
+        try {
+            return searchResult.getNameInNamespace();
+        } catch (UnsupportedOperationException e) {
+            return searchResult.getName();
+        }
+    }
+
+    private void fetchUsers(@NonNull final LdapExecutor executor,
+                            @NonNull final String userBase,
+                            @NonNull final String userFilter,
+                            @NonNull final LdapExecutor.SearchResultCallback callback,
+                            @NonNull final LdapProperties properties) {
+        executor.pagedSearch(userBase, userFilter, getUserSearchControls(properties), properties.getInt(KEY_SEARCH_PAGE_SIZE, 0), callback);
     }
 
     @NonNull
-    private String getAttributeBasedValueForConfigParam(@NonNull final SearchResult searchResult, final String configParam) {
-        final String attributeName = ldapProperties.getProperty(configParam);
-        if (attributeName == null) {
-            throw new IllegalArgumentException("Config does not contain parameter '" + configParam + "'");
+    SearchControls getUserSearchControls() {
+        return getUserSearchControls(ldapProperties);
+    }
+
+    @NonNull
+    private SearchControls getUserSearchControls(@NonNull final LdapProperties properties) {
+        return LdapSearchUtil.getDefaultSearchControls(getUserAttributesToRetrieve(properties));
+    }
+
+    @Nullable
+    private String[] getUserAttributesToRetrieve(@NonNull final LdapProperties properties) {
+        final String[] attributes = properties.getUserAttributesToRetrieve();
+        if (incrementalSyncState == null) {
+            return attributes;
         }
-        return getAttributeBasedValue(searchResult, attributeName);
+        // change tracking attributes are operational and are only returned when requested explicitly
+        final Set<String> result = new LinkedHashSet<>(attributes == null ? Collections.singletonList("*") : Arrays.asList(attributes));
+        result.add(incrementalSyncState.getAttribute());
+        return result.toArray(new String[0]);
     }
 
+    /**
+     * Splits the user search into filter shards, runs them concurrently over separate connections
+     * and merges the results, the first user found with a given remote id wins.
+     */
     @NonNull
-    private String getAttributeBasedValue(@NonNull final SearchResult searchResult,
-                                          @NonNull final String attributeName) {
+    private List<RemoteUserData> fetchUsersConcurrently(@NonNull final LdapExecutor executor,
+                                                        @NonNull final String userBase,
+                                                        @NonNull final String userFilter,
+                                                        final int parallelism,
+                                                        @NonNull final UserExtractionPlan plan,
+                                                        @NonNull final LdapProperties properties) {
+        final List<String> partitionFilters = getUserPartitionFilters(userFilter, properties);
+        LOGGER.info("Fetching users in " + partitionFilters.size() + " partitions with parallelism " + parallelism);
+
+        final ExecutorService executorService = createExecutorService(Math.min(parallelism, partitionFilters.size()), "ldap-user-fetch-");
         try {
-            Attribute value = searchResult.getAttributes().get(attributeName);
-            if (value == null) {
-                throw new IllegalArgumentException("No such attribute " + attributeName + " exists in search result " + searchResult);
+            final List<Future<List<RemoteUserData>>> partitions = new ArrayList<>(partitionFilters.size());
+            for (String partitionFilter : partitionFilters) {
+                partitions.add(executorService.submit(() -> fetchUsers(executor, userBase, partitionFilter, plan, properties)));
             }
-            final Object attrValue = value.get();
-            if (attrValue == null) {
-                throw new IllegalArgumentException("Attribute " + attributeName + " has null value for search result " + searchResult);
+
+            final Map<String, RemoteUserData> result = new LinkedHashMap<>();
+            for (Future<List<RemoteUserData>> partition : partitions) {
+                for (RemoteUserData userData : getPartitionResult(partition)) {
+                    final RemoteUserData previous = result.putIfAbsent(userData.getRemoteId(), userData);
+                    if (previous != null) {
+                        LOGGER.debug("Skipping duplicate LDAP user with remote id '" + userData.getRemoteId() + "' found in several partitions");
+                    }
+                }
             }
-            return attrValue.toString();
-        } catch (Exception e) {
-            LOGGER.error("Got exception while getting value of attribute {} for search result {}", attributeName, searchResult, e);
-            if (e instanceof RuntimeException) {
-                throw (RuntimeException) e;
-            } else {
-                throw new RuntimeException(e);
+            return new ArrayList<>(result.values());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static <T> T getPartitionResult(@NonNull final Future<T> partition) {
+        try {
+            return partition.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while fetching LDAP users", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Error while fetching LDAP users partition", cause);
+        }
+    }
+
+    /**
+     * One filter per configured prefix of the partition attribute, plus the filter for all the remaining users,
+     * so the partitions always cover the whole user base.
+     */
+    @NonNull
+    List<String> getUserPartitionFilters(@NonNull final String userFilter, @NonNull final LdapProperties properties) {
+        String attribute = properties.getProperty(KEY_USER_FETCH_PARTITION_ATTRIBUTE);
+        if (!StringUtils.hasText(attribute)) {
+            attribute = properties.getProperty(KEY_USER_USERNAME_ATTR);
+        }
+        if (!StringUtils.hasText(attribute)) {
+            throw new IllegalArgumentException("Cannot partition users search as neither '" + KEY_USER_FETCH_PARTITION_ATTRIBUTE + "' nor '" +
+                    KEY_USER_USERNAME_ATTR + "' property is set");
+        }
+        final String[] prefixes = StringUtils.commaDelimitedListToStringArray(properties.getProperty(KEY_USER_FETCH_PARTITION_PREFIXES, ""));
+
+        final List<String> result = new ArrayList<>(prefixes.length + 1);
+        final StringBuilder allPrefixes = new StringBuilder("(|");
+        for (String prefix : prefixes) {
+            if (!StringUtils.hasText(prefix)) {
+                continue;
             }
+            final String prefixFilter = "(" + attribute.trim() + "=" + LdapEncoder.filterEncode(prefix.trim()) + "*)";
+            result.add("(&" + userFilter + prefixFilter + ")");
+            allPrefixes.append(prefixFilter);
+        }
+        if (result.isEmpty()) {
+            return Collections.singletonList(userFilter);
         }
+        result.add("(&" + userFilter + "(!" + allPrefixes.append(")") + "))");
+        return result;
     }
 
     @NonNull
-    private String getUserBaseProperty() {
+    String getUserBaseProperty() {
         final String result = ldapProperties.getProperty(KEY_USER_BASE);
         if (result == null) {
             throw new IllegalArgumentException("Cannot search users in LDAP as '" + KEY_USER_BASE + "' property is not set");
@@ -198,7 +815,7 @@ public class LdapFetcher {
     }
 
     @NonNull
-    private String getUserFilterProperty() {
+    String getUserFilterProperty() {
         final String result = getUserFilterPropertyIfDefined();
         if (!StringUtils.hasText(result)) {
             throw new IllegalArgumentException("Cannot search users in LDAP as '" + KEY_USER_SEARCH_FILTER + "' property is not set or empty");
@@ -206,6 +823,24 @@ public class LdapFetcher {
         return result;
     }
 
+    @NonNull
+    private static String getGroupBaseProperty(@NonNull final LdapProperties properties) {
+        final String result = properties.getProperty(KEY_GROUP_BASE);
+        if (result == null) {
+            throw new IllegalArgumentException("Cannot search groups in LDAP as '" + KEY_GROUP_BASE + "' property is not set");
+        }
+        return result;
+    }
+
+    @NonNull
+    private static String getGroupFilterProperty(@NonNull final LdapProperties properties) {
+        final String result = addParenthesesIfNeeded(properties.getProperty(KEY_GROUP_SEARCH_FILTER));
+        if (!StringUtils.hasText(result)) {
+            throw new IllegalArgumentException("Cannot search groups in LDAP as '" + KEY_GROUP_SEARCH_FILTER + "' property is not set or empty");
+        }
+        return result;
+    }
+
     @Nullable
     private String getUserFilterPropertyIfDefined() {
         return addParenthesesIfNeeded(ldapProperties.getProperty(KEY_USER_SEARCH_FILTER));
@@ -15,10 +15,13 @@
  */
 package jetbrains.buildServer.ldap;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
 import org.springframework.ldap.core.support.AbstractContextSource;
 import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.util.ResourceUtils;
 import org.springframework.util.StringUtils;
 
 import javax.naming.Context;
@@ -26,23 +29,69 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
 
 public class LdapProperties {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(LdapProperties.class);
     private static final Map<String, String> DEFAULT_PROPERTIES = new HashMap<>();
 
     static {
         DEFAULT_PROPERTIES.put(KEY_DN_ATTR, "distinguishedName");
         DEFAULT_PROPERTIES.put(KEY_USER_BASE, "");
         DEFAULT_PROPERTIES.put(KEY_GROUP_BASE, "");
+        DEFAULT_PROPERTIES.put(KEY_GROUP_MEMBER_ATTRIBUTE, "member");
+        DEFAULT_PROPERTIES.put(KEY_GROUP_NAME_ATTR, "cn");
+        DEFAULT_PROPERTIES.put(KEY_SEARCH_PAGE_SIZE, "1000");
+        DEFAULT_PROPERTIES.put(KEY_USER_FETCH_PARALLELISM, "1");
+        DEFAULT_PROPERTIES.put(KEY_USER_FETCH_RETRIES, "3");
+        DEFAULT_PROPERTIES.put(KEY_USER_FETCH_RETRY_DELAY, "1000");
+        DEFAULT_PROPERTIES.put(KEY_USER_FETCH_MAX_RETRY_DELAY, "30000");
+        DEFAULT_PROPERTIES.put(KEY_USER_FETCH_VIRTUAL_THREADS, "false");
+        DEFAULT_PROPERTIES.put(KEY_INCREMENTAL_SYNC_ATTRIBUTE, "modifyTimestamp");
+        DEFAULT_PROPERTIES.put(KEY_INCREMENTAL_SYNC_STATE_FILE, "ldap-sync-state.properties");
+        DEFAULT_PROPERTIES.put(KEY_INCREMENTAL_SYNC_FULL_SYNC_INTERVAL, "24");
+        DEFAULT_PROPERTIES.put(KEY_SNAPSHOT_FILE, "ldap-sync-snapshot.bin");
+        DEFAULT_PROPERTIES.put(KEY_EXPORT_FORMAT, "ndjson");
+        DEFAULT_PROPERTIES.put(KEY_TIMEOUT_SYNC_OPTION, "3600000");
+        DEFAULT_PROPERTIES.put(KEY_SYNC_JITTER, "0");
+        DEFAULT_PROPERTIES.put(KEY_METRICS_JMX_ENABLED, "true");
+        DEFAULT_PROPERTIES.put(KEY_POOL_ENABLED, "true");
+        DEFAULT_PROPERTIES.put(KEY_POOL_MIN_IDLE, "1");
+        DEFAULT_PROPERTIES.put(KEY_POOL_MAX_IDLE, "8");
+        DEFAULT_PROPERTIES.put(KEY_POOL_MAX_TOTAL, "8");
+        DEFAULT_PROPERTIES.put(KEY_POOL_MAX_WAIT, "60000");
+        DEFAULT_PROPERTIES.put(KEY_POOL_TEST_ON_BORROW, "true");
+        DEFAULT_PROPERTIES.put(KEY_POOL_TEST_WHILE_IDLE, "true");
+        DEFAULT_PROPERTIES.put(KEY_POOL_EVICTION_INTERVAL, "60000");
+        DEFAULT_PROPERTIES.put(KEY_POOL_MIN_EVICTABLE_IDLE_TIME, "300000");
+        DEFAULT_PROPERTIES.put(KEY_SERVERS_PROBE_INTERVAL, "30000");
+        DEFAULT_PROPERTIES.put(KEY_SERVERS_PROBE_TIMEOUT, "5000");
+        DEFAULT_PROPERTIES.put(KEY_SERVERS_HEDGE_PERCENTILE, "0");
+        DEFAULT_PROPERTIES.put(KEY_REST_CONCURRENCY, "8");
+        DEFAULT_PROPERTIES.put(KEY_REST_RATE_LIMIT, "200");
+        DEFAULT_PROPERTIES.put(KEY_REST_TIMEOUT, "30000");
+        DEFAULT_PROPERTIES.put(KEY_REST_RETRIES, "3");
+        DEFAULT_PROPERTIES.put(KEY_REST_REMOTE_ID_PROPERTY, "ldap.remoteId");
+        DEFAULT_PROPERTIES.put(KEY_REST_MAX_DELETE_PERCENT, "20");
+        DEFAULT_PROPERTIES.put(KEY_CONFIG_WATCH_ENABLED, "false");
+        DEFAULT_PROPERTIES.put(KEY_CONFIG_WATCH_DELAY, "1000");
+        DEFAULT_PROPERTIES.put(KEY_USER_FETCH_PARTITION_PREFIXES, "a,b,c,d,e,f,g,h,i,j,k,l,m,n,o,p,q,r,s,t,u,v,w,x,y,z,0,1,2,3,4,5,6,7,8,9");
     }
 
-    protected Properties properties;
-    private Map<String, String> customProperties;
+    @NonNull
+    private final AtomicReference<Snapshot> snapshot;
+    @Nullable
+    private volatile File file;
 
     public LdapProperties() {
-        super();
+        this(new Properties());
+    }
+
+    public LdapProperties(@NonNull final Properties properties) {
+        snapshot = new AtomicReference<>(new Snapshot(properties));
     }
 
     @NonNull
@@ -62,13 +111,28 @@ public class LdapProperties {
         return map;
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
     public static void initLdapContextSource(@NonNull final LdapProperties properties, @NonNull LdapContextSource contextSource) {
+        initLdapContextSource(properties, contextSource, getServerUrls(properties));
+    }
+
+    /**
+     * @return the servers of '{@value Context#PROVIDER_URL}' separated by whitespace
+     */
+    @NonNull
+    public static String[] getServerUrls(@NonNull final LdapProperties properties) {
         String url = properties.getProperty(Context.PROVIDER_URL);
         if (!StringUtils.hasText(url)) {
             throw new IllegalArgumentException("Empty '" + Context.PROVIDER_URL + "' property");
         }
-        contextSource.setUrls(url.split("\\s"));
+        return url.trim().split("\\s+");
+    }
+
+    /**
+     * Initializes the context source with the connection settings of the properties and the given servers instead of '{@value Context#PROVIDER_URL}'.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static void initLdapContextSource(@NonNull final LdapProperties properties, @NonNull LdapContextSource contextSource, @NonNull final String[] urls) {
+        contextSource.setUrls(urls);
 
         String principal = properties.getProperty(Context.SECURITY_PRINCIPAL);
         if (StringUtils.hasText(principal)) {
@@ -92,7 +156,8 @@ public class LdapProperties {
 
         contextSource.setBaseEnvironmentProperties((Map) LdapProperties.getBaseEnvironment(properties));
 
-        boolean pooled = properties.getBoolean(AbstractContextSource.SUN_LDAP_POOLING_FLAG);
+        // JNDI pooling is not used together with the connection pool managed by LdapContext
+        boolean pooled = properties.getBoolean(AbstractContextSource.SUN_LDAP_POOLING_FLAG) && !properties.getBoolean(KEY_POOL_ENABLED);
         contextSource.setPooled(pooled);
 
         try {
@@ -102,46 +167,147 @@ public class LdapProperties {
         }
     }
 
+    /**
+     * @return a copy of the properties with the given values replaced, e.g. to connect to another server with the same settings
+     */
+    @NonNull
+    public LdapProperties withOverrides(@NonNull final Map<String, String> overrides) {
+        final Properties properties = new Properties();
+        properties.putAll(snapshot.get().values);
+        properties.putAll(overrides);
+        return new LdapProperties(properties);
+    }
+
     @NonNull
-    public synchronized Set<Map.Entry<Object, Object>> entrySet() {
-        return properties.entrySet();
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return snapshot.get().values.entrySet();
     }
 
-    public synchronized String get(@NonNull String key) {
+    public String get(@NonNull String key) {
         return getProperty(key);
     }
 
-    public synchronized String getProperty(@NonNull String key, @NonNull String defaultValue) {
-        String val = getProperty(key);
-        return StringUtils.trimAllWhitespace((val == null) ? defaultValue : val);
+    public String getProperty(@NonNull String key, @NonNull String defaultValue) {
+        return snapshot.get().getProperty(key, defaultValue);
     }
 
     public boolean getBoolean(@NonNull String key) {
         return Boolean.parseBoolean(getProperty(key));
     }
 
-    public synchronized void readFromFile(@NonNull File propertiesFile) throws IOException {
-        customProperties = null;
-        properties = new Properties();
-        try (FileInputStream in = new FileInputStream(propertiesFile)) {
-            properties.load(in);
+    public int getInt(@NonNull String key, int defaultValue) {
+        final long value = getLong(key, defaultValue);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Property '" + key + "' value " + value + " is out of range");
+        }
+        return (int) value;
+    }
+
+    public long getLong(@NonNull String key, long defaultValue) {
+        final String value = getProperty(key);
+        if (!StringUtils.hasText(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Property '" + key + "' should be a number, but was '" + value + "'", e);
+        }
+    }
+
+    /**
+     * Reads the properties from the file at {@code location}, a path or a 'classpath:' URL, and logs them at debug level
+     * with the secrets masked.
+     */
+    @NonNull
+    public static LdapProperties load(@NonNull final String location) throws IOException {
+        LOGGER.info("Loading properties from file {}", location);
+        final LdapProperties result = new LdapProperties();
+        result.readFromFile(ResourceUtils.getFile(location));
+        LOGGER.debug("{} content: [\n{}\n]", () -> location, () -> {
+            final StringBuilder content = new StringBuilder();
+            for (Map.Entry<Object, Object> entry : new TreeMap<>(result.snapshot.get().values).entrySet()) {
+                content.append(content.length() == 0 ? "" : "\n").append(entry.getKey()).append('=').append(mask(entry.getKey(), entry.getValue()));
+            }
+            return content;
+        });
+        return result;
+    }
+
+    public void readFromFile(@NonNull File propertiesFile) throws IOException {
+        snapshot.set(new Snapshot(readProperties(propertiesFile)));
+        file = propertiesFile;
+    }
+
+    /**
+     * @return the file the properties are read from, or null if they are not read from a file
+     */
+    @Nullable
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the file again and replaces the values if they have changed and are valid: the server URL is set, numeric properties
+     * are numbers and the user attributes can be extracted. The values are replaced at once without waiting for anything,
+     * the operations working with a {@link #snapshot()} keep the previous ones.
+     *
+     * @return true if the values have been replaced
+     */
+    public boolean reload() {
+        final File source = file;
+        if (source == null) {
+            throw new IllegalStateException("Properties are not read from a file");
+        }
+        final Snapshot candidate;
+        try {
+            candidate = new Snapshot(readProperties(source));
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read changed properties from " + source + ", keeping the previous ones", e);
+            return false;
+        }
+        final Snapshot current = snapshot.get();
+        if (candidate.values.equals(current.values)) {
+            LOGGER.debug("Properties in " + source + " have not changed");
+            return false;
+        }
+        try {
+            validate(new LdapProperties(candidate));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Ignoring invalid properties in " + source + ", keeping the previous ones: " + e.getMessage());
+            return false;
         }
+        snapshot.set(candidate);
+        LOGGER.info("Reloaded properties from " + source + ", changed: " + describeChanges(current, candidate));
+        return true;
+    }
+
+    /**
+     * @return the current values, which are not changed by a later {@link #reload()}, so that an operation reading the properties
+     * many times, possibly from several threads, sees a consistent configuration
+     */
+    @NonNull
+    public LdapProperties snapshot() {
+        return new LdapProperties(snapshot.get());
     }
 
     protected void processBaseEnvironment(@NonNull final Map<String, String> map) {
         map.putIfAbsent(Context.REFERRAL, "follow");
+        // a read blocked longer than the whole synchronization may take is stuck, even if the aborted synchronization cannot interrupt it
+        final long syncTimeout = getLong(KEY_TIMEOUT_SYNC_OPTION, 0);
+        if (syncTimeout > 0) {
+            map.putIfAbsent(KEY_JNDI_READ_TIMEOUT, String.valueOf(Math.min(syncTimeout, Integer.MAX_VALUE)));
+        }
     }
 
-    public synchronized Map<String, String> getCustomProperties() {
-        if (customProperties == null) {
-            readCustomProperties();
-        }
-        return customProperties;
+    @NonNull
+    public Map<String, String> getCustomProperties() {
+        return snapshot.get().customProperties;
     }
 
     @Nullable
     String[] getUserAttributesToRetrieve() {
-        String resolveUserProperties = properties.getProperty(TEAMCITY_USERS_PROPERTIES_RESOLVE);
+        String resolveUserProperties = getProperty(TEAMCITY_USERS_PROPERTIES_RESOLVE);
         if (Boolean.parseBoolean(resolveUserProperties)) {
             return null;
         }
@@ -150,41 +316,121 @@ public class LdapProperties {
 
     @NonNull
     public String[] getAllAttributes() {
-        Set<String> all = new HashSet<>();
-        all.add(getProperty(KEY_DN_ATTR, ""));
-        all.add(getProperty(KEY_USER_USERNAME_ATTR, ""));
-        all.add(getProperty(KEY_USER_MAIL_ATTR, ""));
-        all.add(getProperty(KEY_USER_DISPLAY_NAME_ATTR, ""));
-        all.add(getProperty(KEY_GROUP_MEMBER_ATTRIBUTE, ""));
-        all.add(getProperty(KEY_MEMBER_USER_ID_ATTRIBUTE, ""));
-        all.add(getProperty(KEY_MEMBER_GROUP_ID_ATTRIBUTE, ""));
-        all.addAll(getCustomProperties().values());
-        all.remove("");
-        return all.toArray(new String[0]);
-    }
-
-    private void readCustomProperties() {
-        customProperties = new HashMap<>();
-        for (Map.Entry<Object, Object> entry : entrySet()) {
-            String key = entry.getKey().toString();
-            if (key.startsWith(KEY_USER_CUSTOM_PROPERTY) &&
-                    !key.equals(KEY_USER_MAIL_ATTR) &&
-                    !key.equals(KEY_USER_DISPLAY_NAME_ATTR)) {
-                customProperties.put(key.substring(KEY_USER_CUSTOM_PROPERTY.length()),
-                        entry.getValue().toString().trim());
-            }
+        final Snapshot current = snapshot.get();
+        String[] result = current.allAttributes;
+        if (result == null) {
+            final Set<String> all = new HashSet<>();
+            all.add(current.getProperty(KEY_DN_ATTR, ""));
+            all.add(current.getProperty(KEY_USER_USERNAME_ATTR, ""));
+            all.add(current.getProperty(KEY_USER_MAIL_ATTR, ""));
+            all.add(current.getProperty(KEY_USER_DISPLAY_NAME_ATTR, ""));
+            all.add(current.getProperty(KEY_GROUP_MEMBER_ATTRIBUTE, ""));
+            all.add(current.getProperty(KEY_MEMBER_USER_ID_ATTRIBUTE, ""));
+            all.add(current.getProperty(KEY_MEMBER_GROUP_ID_ATTRIBUTE, ""));
+            all.addAll(current.customProperties.values());
+            all.remove("");
+            result = all.toArray(new String[0]);
+            // the attributes depend only on the values, so a race computes the same array
+            current.allAttributes = result;
         }
+        return result.clone();
     }
 
     @NonNull
-    public synchronized Map<String, String> getAllProperties() {
+    public Map<String, String> getAllProperties() {
         final Map<String, String> result = new HashMap<>(DEFAULT_PROPERTIES);
-        properties.forEach((key, value) -> result.put((String) key, (String) value));
+        snapshot.get().values.forEach((key, value) -> result.put((String) key, (String) value));
+        return result;
+    }
+
+    @Nullable
+    public String getProperty(@NonNull String key) {
+        return snapshot.get().getProperty(key);
+    }
+
+    private LdapProperties(@NonNull final Snapshot snapshot) {
+        this.snapshot = new AtomicReference<>(snapshot);
+    }
+
+    @NonNull
+    private static Properties readProperties(@NonNull final File propertiesFile) throws IOException {
+        final Properties result = new Properties();
+        try (FileInputStream in = new FileInputStream(propertiesFile)) {
+            result.load(in);
+        }
         return result;
     }
 
+    private static void validate(@NonNull final LdapProperties candidate) {
+        getServerUrls(candidate);
+        for (Map.Entry<String, String> entry : DEFAULT_PROPERTIES.entrySet()) {
+            if (entry.getValue().matches("\\d+")) {
+                candidate.getLong(entry.getKey(), 0);
+            }
+        }
+        UserExtractionPlan.compile(candidate);
+        if (candidate.getBoolean(KEY_INCREMENTAL_SYNC_ENABLED)) {
+            IncrementalSyncState.checkSingleServer(candidate);
+        }
+    }
+
+    @NonNull
+    private static String describeChanges(@NonNull final Snapshot previous, @NonNull final Snapshot current) {
+        final Set<Object> keys = new TreeSet<>();
+        keys.addAll(previous.values.keySet());
+        keys.addAll(current.values.keySet());
+        final StringBuilder result = new StringBuilder();
+        for (Object key : keys) {
+            final Object previousValue = previous.values.get(key);
+            final Object value = current.values.get(key);
+            if (!Objects.equals(previousValue, value)) {
+                result.append(result.length() == 0 ? "" : ", ").append(key).append(": ")
+                        .append(mask(key, previousValue)).append(" -> ").append(mask(key, value));
+            }
+        }
+        return result.toString();
+    }
+
     @Nullable
-    public synchronized String getProperty(@NonNull String key) {
-        return (String) properties.getOrDefault(key, DEFAULT_PROPERTIES.get(key));
+    private static Object mask(@NonNull final Object key, @Nullable final Object value) {
+        return value != null && (key.equals(Context.SECURITY_CREDENTIALS) || key.equals(KEY_REST_TOKEN)) ? "******" : value;
+    }
+
+    /**
+     * Values read from the file at once, never modified.
+     */
+    private static final class Snapshot {
+        @NonNull
+        private final Map<Object, Object> values;
+        @NonNull
+        private final Map<String, String> customProperties;
+        @Nullable
+        private volatile String[] allAttributes;
+
+        Snapshot(@NonNull final Properties properties) {
+            values = Collections.unmodifiableMap(new HashMap<>(properties));
+            final Map<String, String> custom = new HashMap<>();
+            for (Map.Entry<Object, Object> entry : values.entrySet()) {
+                String key = entry.getKey().toString();
+                if (key.startsWith(KEY_USER_CUSTOM_PROPERTY) &&
+                        !key.equals(KEY_USER_MAIL_ATTR) &&
+                        !key.equals(KEY_USER_DISPLAY_NAME_ATTR)) {
+                    custom.put(key.substring(KEY_USER_CUSTOM_PROPERTY.length()),
+                            entry.getValue().toString().trim());
+                }
+            }
+            customProperties = Collections.unmodifiableMap(custom);
+        }
+
+        @Nullable
+        String getProperty(@NonNull final String key) {
+            return (String) values.getOrDefault(key, DEFAULT_PROPERTIES.get(key));
+        }
+
+        @NonNull
+        String getProperty(@NonNull final String key, @NonNull final String defaultValue) {
+            final String value = getProperty(key);
+            return StringUtils.trimAllWhitespace(value == null ? defaultValue : value);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Watches the file the properties are read from and {@link LdapProperties#reload() reloads} them once the file has not changed for
+ * '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_CONFIG_WATCH_DELAY}' milliseconds, so that a file written in several
+ * steps or replaced by an editor is read once it is complete. Invalid changes are logged and ignored.
+ */
+public class LdapPropertiesWatcher implements Closeable {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(LdapPropertiesWatcher.class);
+    @NonNull
+    private final LdapProperties ldapProperties;
+    @NonNull
+    private final Path file;
+    private final long delay;
+
+    @Nullable
+    private WatchService watchService;
+    @Nullable
+    private Thread thread;
+
+    public LdapPropertiesWatcher(@NonNull final LdapProperties ldapProperties) {
+        final File propertiesFile = ldapProperties.getFile();
+        if (propertiesFile == null) {
+            throw new IllegalArgumentException("Properties are not read from a file");
+        }
+        this.ldapProperties = ldapProperties;
+        file = propertiesFile.toPath().toAbsolutePath();
+        delay = Math.max(0, ldapProperties.getLong(KEY_CONFIG_WATCH_DELAY, 1000));
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        final WatchService service = file.getFileSystem().newWatchService();
+        try {
+            file.getParent().register(service, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException | RuntimeException e) {
+            service.close();
+            throw e;
+        }
+        watchService = service;
+        thread = new Thread(() -> watch(service), "ldap-properties-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        LOGGER.info("Watching " + file + " for changes");
+    }
+
+    @Override
+    public void close() {
+        final WatchService service;
+        final Thread watcherThread;
+        synchronized (this) {
+            service = watchService;
+            watcherThread = thread;
+            watchService = null;
+            thread = null;
+        }
+        if (service == null) {
+            return;
+        }
+        try {
+            service.close();
+        } catch (IOException e) {
+            LOGGER.debug("Error while closing the watch service of " + file, e);
+        }
+        try {
+            watcherThread.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watch(@NonNull final WatchService service) {
+        try {
+            while (true) {
+                if (!isFileChanged(service.take())) {
+                    continue;
+                }
+                // wait until the file is quiet
+                WatchKey key;
+                while ((key = service.poll(delay, TimeUnit.MILLISECONDS)) != null) {
+                    isFileChanged(key);
+                }
+                try {
+                    ldapProperties.reload();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error while reloading properties from " + file, e);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            LOGGER.debug("Stopped watching " + file);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the events of the key concern the watched file
+     */
+    private boolean isFileChanged(@NonNull final WatchKey key) {
+        boolean result = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            final Object context = event.context();
+            result |= context == null || file.getFileName().equals(context);
+        }
+        if (!key.reset()) {
+            LOGGER.warn("Cannot watch " + file + " any longer as its directory is not accessible, restart to reload the properties");
+            throw new ClosedWatchServiceException();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import jetbrains.buildServer.ldap.api.LdapContext;
+import jetbrains.buildServer.ldap.api.LdapMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+
+import java.io.IOException;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Runs a single synchronization with the same components as {@link LdapConfigurer}, but wires them directly instead of starting
+ * a Spring application context, so that no classpath scanning, auto-configuration or environment processing delays the first search.
+ * Suited for short runs started by a scheduler; the schedule and the change listener of the application are not started.
+ * <p>
+ * Usage: {@code java -cp <classpath> jetbrains.buildServer.ldap.LdapSyncLauncher [--configurationFile=ldap-config.properties]},
+ * exits with 0 if the synchronization succeeded and with 1 otherwise.
+ */
+public class LdapSyncLauncher {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(LdapSyncLauncher.class);
+    @NonNull
+    private static final String CONFIGURATION_FILE_OPTION = "--configurationFile=";
+
+    public static void main(String[] args) {
+        String configurationFile = "ldap-config.properties";
+        for (String arg : args) {
+            if (!arg.startsWith(CONFIGURATION_FILE_OPTION)) {
+                System.err.println("Unknown argument '" + arg + "', usage: " + LdapSyncLauncher.class.getName() + " [" + CONFIGURATION_FILE_OPTION + "<file>]");
+                System.exit(2);
+            }
+            configurationFile = arg.substring(CONFIGURATION_FILE_OPTION.length());
+        }
+        System.exit(run(configurationFile) ? 0 : 1);
+    }
+
+    /**
+     * @param configurationFile path or 'classpath:' URL of the properties file
+     * @return true if the synchronization succeeded
+     */
+    public static boolean run(@NonNull final String configurationFile) {
+        final long start = System.nanoTime();
+        final LdapProperties ldapProperties;
+        try {
+            ldapProperties = LdapProperties.load(configurationFile);
+        } catch (Exception e) {
+            LOGGER.error("Cannot read properties from " + configurationFile, e);
+            return false;
+        }
+        final RemoteDataFetcherOptions dataFetcherOptions = RemoteDataFetcherOptions.fromProperties(ldapProperties);
+        final CompositeMeterRegistry meterRegistry = MeterRegistries.create(ldapProperties);
+        final LdapMetrics ldapMetrics = LdapMetrics.fromProperties(meterRegistry, ldapProperties);
+        final PrometheusScrapeEndpoint prometheusScrapeEndpoint;
+        try {
+            prometheusScrapeEndpoint = new PrometheusScrapeEndpoint(meterRegistry, ldapProperties.getInt(KEY_METRICS_PROMETHEUS_PORT, 0));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Cannot start the Prometheus scrape endpoint", e);
+            meterRegistry.close();
+            return false;
+        }
+        try (LdapContext ldapContext = new LdapContext(ldapProperties, ldapMetrics);
+             LdapFetcher ldapFetcher = new LdapFetcher(dataFetcherOptions, ldapProperties, ldapContext);
+             LdapSynchronizer ldapSynchronizer = LdapSynchronizer.fromProperties(ldapFetcher, ldapProperties, dataFetcherOptions, ldapMetrics);
+             LdapSyncScheduler ldapSyncScheduler = new LdapSyncScheduler(ldapSynchronizer, ldapProperties, LdapSyncScheduler.LOGGING_CALLBACK)) {
+            LOGGER.info("Started in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            return ldapSyncScheduler.runOnce() != null;
+        } catch (Exception e) {
+            LOGGER.error("Error while synchronizing", e);
+            return false;
+        } finally {
+            prometheusScrapeEndpoint.close();
+            meterRegistry.close();
+        }
+    }
+}
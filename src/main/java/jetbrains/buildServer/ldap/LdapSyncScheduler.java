@@ -0,0 +1,192 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Runs the synchronization with the '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_TIMEOUT_SYNC_OPTION}' deadline and,
+ * once {@link #start started}, repeats it every '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_SYNC_INTERVAL}' milliseconds
+ * plus a random jitter. The synchronization runs in a separate thread, which is interrupted when the deadline expires: the LDAP operations
+ * waiting for the server fail, and their connections are closed instead of being returned to the pool. A synchronization never starts
+ * while the previous one is still running.
+ */
+public class LdapSyncScheduler implements Closeable {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(LdapSyncScheduler.class);
+    /**
+     * Logs the number of users and groups and the changes found by every synchronization.
+     */
+    @NonNull
+    public static final Callback LOGGING_CALLBACK = diff -> LOGGER.info("Sync: " + diff.getCurrent().getUserData().size() + " users, "
+            + diff.getCurrent().getGroupData().size() + " groups, " + diff);
+    @NonNull
+    private final LdapSynchronizer ldapSynchronizer;
+    @NonNull
+    private final Callback callback;
+    private final long timeout;
+    private final long interval;
+    private final long jitter;
+    @NonNull
+    private final ExecutorService syncExecutor = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "ldap-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    @NonNull
+    private final AtomicBoolean syncInProgress = new AtomicBoolean();
+    @Nullable
+    private ScheduledExecutorService scheduler;
+
+    public LdapSyncScheduler(@NonNull final LdapSynchronizer ldapSynchronizer,
+                             @NonNull final LdapProperties ldapProperties,
+                             @NonNull final Callback callback) {
+        this.ldapSynchronizer = ldapSynchronizer;
+        this.callback = callback;
+        timeout = ldapProperties.getLong(KEY_TIMEOUT_SYNC_OPTION, 0);
+        interval = ldapProperties.getLong(KEY_SYNC_INTERVAL, timeout);
+        jitter = Math.max(0, ldapProperties.getLong(KEY_SYNC_JITTER, 0));
+    }
+
+    /**
+     * Runs the synchronization and waits for it to finish or to be aborted by the deadline.
+     *
+     * @return the changes, or null if the synchronization failed, was aborted or the previous one is still running
+     */
+    @Nullable
+    public RemoteDataDiff runOnce() {
+        if (!syncInProgress.compareAndSet(false, true)) {
+            LOGGER.warn("Skipping synchronization as the previous one is still running");
+            return null;
+        }
+        final Future<RemoteDataDiff> future;
+        try {
+            future = syncExecutor.submit(() -> {
+                try {
+                    return ldapSynchronizer.syncChanges();
+                } finally {
+                    syncInProgress.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            syncInProgress.set(false);
+            LOGGER.debug("Skipping synchronization as the scheduler is closed");
+            return null;
+        }
+        try {
+            final RemoteDataDiff result = timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+            if (result != null) {
+                callback.synchronizationFinished(result);
+            }
+            return result;
+        } catch (TimeoutException e) {
+            LOGGER.error("Synchronization did not finish in " + timeout + " ms ('" + KEY_TIMEOUT_SYNC_OPTION + "'), aborting it");
+            abort(future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(future);
+        } catch (ExecutionException e) {
+            LOGGER.error("Error while synchronizing with LDAP", e.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Repeats the synchronization in the background, the first one starts after the interval.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Synchronization interval should be positive, check '" + KEY_SYNC_INTERVAL + "' and '" + KEY_TIMEOUT_SYNC_OPTION + "'");
+        }
+        // not a daemon thread, keeps the application running
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "ldap-sync-scheduler"));
+        LOGGER.info("Scheduling synchronization every " + interval + " ms" + (jitter > 0 ? " with jitter up to " + jitter + " ms" : ""));
+        scheduleNext(interval);
+    }
+
+    @Override
+    public void close() {
+        final ScheduledExecutorService scheduledExecutor;
+        synchronized (this) {
+            scheduledExecutor = scheduler;
+            scheduler = null;
+        }
+        if (scheduledExecutor != null) {
+            scheduledExecutor.shutdownNow();
+        }
+        if (syncInProgress.get()) {
+            ldapSynchronizer.abortOperations();
+        }
+        syncExecutor.shutdownNow();
+        try {
+            if (!syncExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                LOGGER.warn("Synchronization did not stop in 10 seconds");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runScheduled() {
+        final long start = System.currentTimeMillis();
+        try {
+            runOnce();
+        } catch (Exception e) {
+            LOGGER.error("Error during scheduled synchronization", e);
+        } finally {
+            // the interval is counted from the start of the synchronization
+            scheduleNext(Math.max(0, interval - (System.currentTimeMillis() - start)));
+        }
+    }
+
+    private synchronized void scheduleNext(final long delay) {
+        if (scheduler == null) {
+            return;
+        }
+        final long nextDelay = delay + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        LOGGER.debug("Next synchronization in " + nextDelay + " ms");
+        scheduler.schedule(this::runScheduled, nextDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void abort(@NonNull final Future<?> future) {
+        ldapSynchronizer.abortOperations();
+        future.cancel(true);
+    }
+
+    public interface Callback {
+        void synchronizationFinished(@NonNull RemoteDataDiff diff);
+    }
+}
@@ -16,19 +16,217 @@
 package jetbrains.buildServer.ldap;
 
 
+import jetbrains.buildServer.ldap.api.LdapMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
 
-public class LdapSynchronizer {
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.KEY_SNAPSHOT_FILE;
+
+public class LdapSynchronizer implements Closeable {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(LdapSynchronizer.class);
     @NonNull
     private final LdapFetcher ldapFetcher;
+    @Nullable
+    private final File snapshotFile;
+    @Nullable
+    private final RemoteDataExporter exporter;
+    @Nullable
+    private final TeamCityUserApplier applier;
+    @Nullable
+    private RemoteDataSnapshot previousSnapshot;
+    @Nullable
+    private RemoteData previousData;
+
+    public LdapSynchronizer(@NonNull final LdapFetcher ldapFetcher, @NonNull final LdapProperties ldapProperties) {
+        this(ldapFetcher, ldapProperties, null);
+    }
 
-    public LdapSynchronizer(@NonNull final LdapFetcher ldapFetcher) {
+    /**
+     * @param applier applies every synchronization result to TeamCity, or null if the result is not applied
+     */
+    public LdapSynchronizer(@NonNull final LdapFetcher ldapFetcher, @NonNull final LdapProperties ldapProperties,
+                            @Nullable final TeamCityUserApplier applier) {
         this.ldapFetcher = ldapFetcher;
+        this.applier = applier;
+        final String snapshotPath = ldapProperties.getProperty(KEY_SNAPSHOT_FILE);
+        snapshotFile = StringUtils.hasText(snapshotPath) ? new File(snapshotPath.trim()) : null;
+        exporter = RemoteDataExporter.fromProperties(ldapProperties);
+        if (snapshotFile != null && snapshotFile.isFile()) {
+            try {
+                previousSnapshot = RemoteDataSnapshot.open(snapshotFile);
+                LOGGER.info("Opened snapshot " + snapshotFile + " of " + previousSnapshot.getUserCount() + " users");
+                ldapFetcher.restoreFromSnapshot(previousSnapshot);
+            } catch (IOException e) {
+                LOGGER.warn("Cannot open snapshot " + snapshotFile + ", all users will be reported as created", e);
+            }
+        }
+    }
+
+    /**
+     * @return the synchronizer applying the results to TeamCity if '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_REST_URL}' is set
+     */
+    @NonNull
+    public static LdapSynchronizer fromProperties(@NonNull final LdapFetcher ldapFetcher,
+                                                  @NonNull final LdapProperties ldapProperties,
+                                                  @NonNull final RemoteDataFetcherOptions options,
+                                                  @NonNull final LdapMetrics metrics) {
+        return new LdapSynchronizer(ldapFetcher, ldapProperties, TeamCityUserApplier.fromProperties(ldapProperties, options, metrics));
     }
 
     @Nullable
     public RemoteData sync() {
-        return ldapFetcher.fetchAllRemoteData();
+        final RemoteDataDiff diff = syncChanges();
+        return diff != null ? diff.getCurrent() : null;
+    }
+
+    /**
+     * Fetches the remote data and compares it with the result of the previous synchronization.
+     * The result is saved to the snapshot file if it is configured, otherwise it is kept in memory, and exported if the export is configured.
+     * Then it is applied to TeamCity if the applier is set; the synchronization is considered complete even if applying it fails,
+     * but the users which failed to be applied keep their previous values in the saved result, so that the next synchronization reports
+     * and applies their changes again. If the TeamCity users cannot be read at all, the previous result is kept as is.
+     *
+     * @return the changes since the previous synchronization, all users are created on the first one; null if fetching failed
+     */
+    @Nullable
+    public synchronized RemoteDataDiff syncChanges() {
+        final RemoteData remoteData = ldapFetcher.fetchAllRemoteData();
+        if (remoteData == null) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        final RemoteDataDiff diff = previousSnapshot != null
+                ? RemoteDataDiff.compute(previousSnapshot, remoteData)
+                : RemoteDataDiff.compute(previousData, remoteData);
+        LOGGER.info("Computed " + diff + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        if (exporter != null) {
+            try {
+                exporter.export(remoteData);
+            } catch (IOException e) {
+                LOGGER.warn("Cannot export users to " + exporter.getFile(), e);
+            }
+        }
+        RemoteData appliedData = remoteData;
+        if (applier != null) {
+            try {
+                final TeamCityUserApplier.Result result = applier.apply(diff);
+                if (!result.getFailedRemoteIds().isEmpty()) {
+                    appliedData = keepPreviousUsers(diff, result.getFailedRemoteIds());
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Cannot apply users to TeamCity, the changes are applied by the next synchronization", e);
+                return diff;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.warn("Applying users to TeamCity is interrupted, the changes are applied by the next synchronization");
+                return diff;
+            }
+        }
+        if (snapshotFile != null) {
+            // the diff and the applied users are read into the heap, so the previous snapshot is no longer needed
+            closeSnapshot();
+            try {
+                // the incremental synchronization state is only restored from a snapshot holding exactly the fetched users
+                RemoteDataSnapshot.write(snapshotFile, appliedData, appliedData == remoteData ? ldapFetcher.getSnapshotLabel() : null);
+                previousSnapshot = RemoteDataSnapshot.open(snapshotFile);
+                previousData = null;
+                return diff;
+            } catch (IOException e) {
+                LOGGER.warn("Cannot save snapshot " + snapshotFile + ", keeping the result in memory", e);
+            }
+        }
+        previousData = appliedData;
+        return diff;
+    }
+
+    /**
+     * Applies the users changed and deleted in LDAP since the synchronization, as streamed by {@link LdapChangeListener}, to TeamCity
+     * if the applier is set, with the same gates as the synchronization; the values of the previous synchronization result are
+     * the previously synchronized ones. The result is not updated: the next synchronization reports these changes again, but
+     * finds the applied users up-to-date in TeamCity, and applies again the changes which failed.
+     */
+    public synchronized void applyChanges(@NonNull final Collection<RemoteUserData> changedUsers, @NonNull final Collection<String> deletedRemoteIds) {
+        if (applier == null) {
+            return;
+        }
+        final Map<String, RemoteUserData> previousUsers = new HashMap<>();
+        final RemoteData previous = previousSnapshot != null ? previousSnapshot.toRemoteData() : previousData;
+        if (previous != null && !changedUsers.isEmpty()) {
+            final Set<String> changedRemoteIds = new HashSet<>();
+            for (RemoteUserData user : changedUsers) {
+                changedRemoteIds.add(user.getRemoteId());
+            }
+            for (RemoteUserData user : previous.getUserData()) {
+                if (changedRemoteIds.contains(user.getRemoteId())) {
+                    previousUsers.put(user.getRemoteId(), user);
+                }
+            }
+        }
+        try {
+            applier.applyChanges(changedUsers, previousUsers, deletedRemoteIds);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot apply changed users to TeamCity, the changes are applied by the next synchronization", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Applying changed users to TeamCity is interrupted, the changes are applied by the next synchronization");
+        }
+    }
+
+    /**
+     * @return the current users, except that the {@code failedRemoteIds} users have their previous values, or are left out if they are new
+     */
+    @NonNull
+    private static RemoteData keepPreviousUsers(@NonNull final RemoteDataDiff diff, @NonNull final Set<String> failedRemoteIds) {
+        final Map<String, RemoteUserData> previousUsers = new HashMap<>();
+        for (RemoteDataDiff.UserUpdate update : diff.getUpdatedUsers()) {
+            if (failedRemoteIds.contains(update.getCurrent().getRemoteId())) {
+                previousUsers.put(update.getCurrent().getRemoteId(), update.getPrevious());
+            }
+        }
+        final Set<String> createdRemoteIds = new HashSet<>();
+        for (RemoteUserData user : diff.getCreatedUsers()) {
+            createdRemoteIds.add(user.getRemoteId());
+        }
+        final List<RemoteUserData> users = new ArrayList<>(diff.getCurrent().getUserData().size());
+        for (RemoteUserData user : diff.getCurrent().getUserData()) {
+            if (!failedRemoteIds.contains(user.getRemoteId())) {
+                users.add(user);
+            } else if (!createdRemoteIds.contains(user.getRemoteId())) {
+                users.add(previousUsers.getOrDefault(user.getRemoteId(), user));
+            }
+        }
+        LOGGER.info(failedRemoteIds.size() + " users failed to be applied to TeamCity, keeping their previous values for the next synchronization");
+        return new RemoteData(users, diff.getCurrent().getGroupData());
+    }
+
+    /**
+     * Closes the LDAP connections of the synchronization in progress, see {@link LdapFetcher#abortOperations()}.
+     */
+    public void abortOperations() {
+        ldapFetcher.abortOperations();
+    }
+
+    /**
+     * Releases the snapshot of the previous synchronization, the synchronizer must not be used afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        closeSnapshot();
+    }
+
+    private void closeSnapshot() {
+        if (previousSnapshot != null) {
+            previousSnapshot.close();
+            previousSnapshot = null;
+        }
     }
 }
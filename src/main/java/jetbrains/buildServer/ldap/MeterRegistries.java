@@ -0,0 +1,44 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+import org.springframework.lang.NonNull;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.KEY_METRICS_JMX_ENABLED;
+
+/**
+ * Creates the registry the synchronization meters are published to, the Prometheus registry is added by {@link PrometheusScrapeEndpoint}.
+ */
+public final class MeterRegistries {
+    private MeterRegistries() {
+    }
+
+    /**
+     * @return the registry publishing to JMX if '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_METRICS_JMX_ENABLED}' is set
+     */
+    @NonNull
+    public static CompositeMeterRegistry create(@NonNull final LdapProperties ldapProperties) {
+        final CompositeMeterRegistry meterRegistry = new CompositeMeterRegistry();
+        if (ldapProperties.getBoolean(KEY_METRICS_JMX_ENABLED)) {
+            meterRegistry.add(new JmxMeterRegistry(JmxConfig.DEFAULT, Clock.SYSTEM));
+        }
+        return meterRegistry;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the metrics in Prometheus text format at '/metrics' using the HTTP server built into the JDK.
+ * Does nothing if the port is not positive.
+ */
+public class PrometheusScrapeEndpoint implements Closeable {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(PrometheusScrapeEndpoint.class);
+    @NonNull
+    private static final String PATH = "/metrics";
+
+    @Nullable
+    private final PrometheusMeterRegistry registry;
+    @Nullable
+    private final HttpServer server;
+
+    public PrometheusScrapeEndpoint(@NonNull final CompositeMeterRegistry compositeRegistry, final int port) throws IOException {
+        if (port <= 0) {
+            registry = null;
+            server = null;
+            return;
+        }
+        final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        this.registry = registry;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, exchange -> {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                respond(exchange, registry.scrape().getBytes(StandardCharsets.UTF_8));
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        compositeRegistry.add(registry);
+        LOGGER.info("Serving Prometheus metrics at http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + PATH);
+    }
+
+    private static void respond(@NonNull final HttpExchange exchange, @NonNull final byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (registry != null) {
+            registry.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket refilled with {@code permitsPerSecond} tokens per second and holding at most one second worth of them,
+ * so that short bursts are allowed while the average rate stays within the limit.
+ */
+final class RateLimiter {
+    private final long intervalNanos;
+    private final long maxBurstNanos;
+    /**
+     * Time when the next token becomes available, the tokens saved in the bucket make it earlier than now.
+     */
+    private long nextTokenNanos = System.nanoTime();
+
+    RateLimiter(final double permitsPerSecond) {
+        intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        maxBurstNanos = TimeUnit.SECONDS.toNanos(1);
+    }
+
+    void acquire() throws InterruptedException {
+        final long waitNanos;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            nextTokenNanos = Math.max(nextTokenNanos, now - maxBurstNanos);
+            waitNanos = nextTokenNanos - now;
+            nextTokenNanos += intervalNanos;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
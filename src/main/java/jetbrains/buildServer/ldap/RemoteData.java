@@ -18,19 +18,38 @@ package jetbrains.buildServer.ldap;
 import org.springframework.lang.NonNull;
 
 import java.util.Collection;
+import java.util.Collections;
 
 public class RemoteData {
     @NonNull
     private final Collection<RemoteUserData> userData;
+    @NonNull
+    private final Collection<RemoteGroupData> groupData;
 
     public RemoteData(@NonNull final Collection<RemoteUserData> userData) {
+        this(userData, Collections.emptyList());
+    }
+
+    public RemoteData(@NonNull final Collection<RemoteUserData> userData, @NonNull final Collection<RemoteGroupData> groupData) {
         this.userData = userData;
+        this.groupData = groupData;
+    }
+
+    @NonNull
+    public Collection<RemoteUserData> getUserData() {
+        return userData;
+    }
+
+    @NonNull
+    public Collection<RemoteGroupData> getGroupData() {
+        return groupData;
     }
 
     @Override
     public String toString() {
         return "RemoteData{" +
                 "userData=" + userData +
+                ", groupData=" + groupData +
                 '}';
     }
 }
\ No newline at end of file
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.util.*;
+
+/**
+ * Users created, updated and deleted between two synchronizations, users are matched by remote id.
+ */
+public class RemoteDataDiff {
+    public enum Field {
+        USERNAME, DISPLAY_NAME, EMAIL, CUSTOM_PROPERTIES
+    }
+
+    @NonNull
+    private final RemoteData current;
+    @NonNull
+    private final List<RemoteUserData> createdUsers;
+    @NonNull
+    private final List<UserUpdate> updatedUsers;
+    @NonNull
+    private final List<RemoteUserData> deletedUsers;
+
+    private RemoteDataDiff(@NonNull final RemoteData current,
+                           @NonNull final List<RemoteUserData> createdUsers,
+                           @NonNull final List<UserUpdate> updatedUsers,
+                           @NonNull final List<RemoteUserData> deletedUsers) {
+        this.current = current;
+        this.createdUsers = createdUsers;
+        this.updatedUsers = updatedUsers;
+        this.deletedUsers = deletedUsers;
+    }
+
+    /**
+     * Compares the users in linear time: the previous users are indexed by remote id, and only the users whose
+     * {@link RemoteUserData#getFingerprint() fingerprints} differ are compared field by field.
+     *
+     * @param previous result of the previous synchronization, or null if there was none, then all current users are created
+     */
+    @NonNull
+    public static RemoteDataDiff compute(@Nullable final RemoteData previous, @NonNull final RemoteData current) {
+        final Collection<RemoteUserData> previousUsers = previous != null ? previous.getUserData() : Collections.emptyList();
+        final Map<String, RemoteUserData> previousById = new HashMap<>(Math.max(16, (int) (previousUsers.size() / 0.75f) + 1));
+        for (RemoteUserData user : previousUsers) {
+            previousById.put(user.getRemoteId(), user);
+        }
+        final List<RemoteUserData> created = new ArrayList<>();
+        final List<UserUpdate> updated = new ArrayList<>();
+        for (RemoteUserData user : current.getUserData()) {
+            final RemoteUserData previousUser = previousById.remove(user.getRemoteId());
+            if (previousUser == null) {
+                created.add(user);
+            } else if (previousUser.getFingerprint() != user.getFingerprint()) {
+                final UserUpdate update = new UserUpdate(previousUser, user);
+                if (!update.getChangedFields().isEmpty()) {
+                    updated.add(update);
+                }
+            }
+        }
+        // users present in both results have been removed from the index
+        final List<RemoteUserData> deleted = new ArrayList<>(previousById.values());
+        return new RemoteDataDiff(current, created, updated, deleted);
+    }
+
+    /**
+     * Same as {@link #compute(RemoteData, RemoteData)}, but reads from the snapshot only the previous users which are
+     * updated or deleted, the others are matched using the snapshot index and the stored fingerprints.
+     */
+    @NonNull
+    public static RemoteDataDiff compute(@NonNull final RemoteDataSnapshot previous, @NonNull final RemoteData current) {
+        final BitSet matched = new BitSet(previous.getUserCount());
+        final List<RemoteUserData> created = new ArrayList<>();
+        final List<UserUpdate> updated = new ArrayList<>();
+        for (RemoteUserData user : current.getUserData()) {
+            final int ordinal = previous.findOrdinal(user.getRemoteId());
+            if (ordinal < 0) {
+                created.add(user);
+                continue;
+            }
+            matched.set(ordinal);
+            if (previous.getFingerprint(ordinal) != user.getFingerprint()) {
+                final UserUpdate update = new UserUpdate(previous.getUser(ordinal), user);
+                if (!update.getChangedFields().isEmpty()) {
+                    updated.add(update);
+                }
+            }
+        }
+        final List<RemoteUserData> deleted = new ArrayList<>();
+        for (int ordinal = matched.nextClearBit(0); ordinal < previous.getUserCount(); ordinal = matched.nextClearBit(ordinal + 1)) {
+            deleted.add(previous.getUser(ordinal));
+        }
+        return new RemoteDataDiff(current, created, updated, deleted);
+    }
+
+    /**
+     * @return the data the diff was computed for
+     */
+    @NonNull
+    public RemoteData getCurrent() {
+        return current;
+    }
+
+    @NonNull
+    public List<RemoteUserData> getCreatedUsers() {
+        return createdUsers;
+    }
+
+    @NonNull
+    public List<UserUpdate> getUpdatedUsers() {
+        return updatedUsers;
+    }
+
+    @NonNull
+    public List<RemoteUserData> getDeletedUsers() {
+        return deletedUsers;
+    }
+
+    public boolean isEmpty() {
+        return createdUsers.isEmpty() && updatedUsers.isEmpty() && deletedUsers.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteDataDiff{" +
+                "created=" + createdUsers.size() +
+                ", updated=" + updatedUsers.size() +
+                ", deleted=" + deletedUsers.size() +
+                '}';
+    }
+
+    public static class UserUpdate {
+        @NonNull
+        private final RemoteUserData previous;
+        @NonNull
+        private final RemoteUserData current;
+        @NonNull
+        private final Set<Field> changedFields = EnumSet.noneOf(Field.class);
+        @NonNull
+        private final Set<String> changedCustomProperties = new TreeSet<>();
+
+        UserUpdate(@NonNull final RemoteUserData previous, @NonNull final RemoteUserData current) {
+            this.previous = previous;
+            this.current = current;
+            if (!previous.getUsername().equals(current.getUsername())) {
+                changedFields.add(Field.USERNAME);
+            }
+            if (!Objects.equals(previous.getDisplayName(), current.getDisplayName())) {
+                changedFields.add(Field.DISPLAY_NAME);
+            }
+            if (!Objects.equals(previous.getEmail(), current.getEmail())) {
+                changedFields.add(Field.EMAIL);
+            }
+            final UserPropertyLayout layout = current.getPropertyLayout();
+            if (previous.getPropertyLayout() == layout) {
+                for (int i = 0; i < layout.size(); i++) {
+                    if (!Objects.equals(previous.getPropertyValue(i), current.getPropertyValue(i))) {
+                        changedCustomProperties.add(layout.getName(i));
+                    }
+                }
+            } else {
+                final Map<String, String> previousProperties = previous.getCustomProperties();
+                final Map<String, String> currentProperties = current.getCustomProperties();
+                for (Map.Entry<String, String> property : currentProperties.entrySet()) {
+                    if (!Objects.equals(property.getValue(), previousProperties.get(property.getKey()))) {
+                        changedCustomProperties.add(property.getKey());
+                    }
+                }
+                for (String name : previousProperties.keySet()) {
+                    if (!currentProperties.containsKey(name)) {
+                        changedCustomProperties.add(name);
+                    }
+                }
+            }
+            if (!changedCustomProperties.isEmpty()) {
+                changedFields.add(Field.CUSTOM_PROPERTIES);
+            }
+        }
+
+        @NonNull
+        public RemoteUserData getPrevious() {
+            return previous;
+        }
+
+        @NonNull
+        public RemoteUserData getCurrent() {
+            return current;
+        }
+
+        @NonNull
+        public Set<Field> getChangedFields() {
+            return changedFields;
+        }
+
+        /**
+         * @return names of the custom properties which were added, removed or changed
+         */
+        @NonNull
+        public Set<String> getChangedCustomProperties() {
+            return changedCustomProperties;
+        }
+
+        @Override
+        public String toString() {
+            return "UserUpdate{" +
+                    "remoteId='" + current.getRemoteId() + '\'' +
+                    ", changedFields=" + changedFields +
+                    (changedCustomProperties.isEmpty() ? "" : ", changedCustomProperties=" + changedCustomProperties) +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Writes the users of every synchronization result to '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_EXPORT_FILE}'
+ * one by one through a fixed-size buffer, so that the memory used does not depend on the number of users.
+ * <p>
+ * NDJSON: one object per line with "remoteId", "username", "displayName", "email" and "properties" (the object of the custom properties),
+ * absent values are null. CSV (RFC 4180): the header line, then the same fields with one column per custom property, absent values are empty.
+ * The file is written to a temporary file first and atomically replaces the previous export.
+ */
+public class RemoteDataExporter {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(RemoteDataExporter.class);
+    private static final int BUFFER_SIZE = 1 << 16;
+    @NonNull
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public enum Format {
+        NDJSON, CSV
+    }
+
+    @NonNull
+    private final File file;
+    @NonNull
+    private final Format format;
+    private final boolean gzip;
+
+    public RemoteDataExporter(@NonNull final File file, @NonNull final Format format, final boolean gzip) {
+        this.file = file;
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    /**
+     * @return the exporter configured in the properties, or null if the export is disabled
+     */
+    @Nullable
+    public static RemoteDataExporter fromProperties(@NonNull final LdapProperties ldapProperties) {
+        final String path = ldapProperties.getProperty(KEY_EXPORT_FILE);
+        if (!StringUtils.hasText(path)) {
+            return null;
+        }
+        final String format = ldapProperties.getProperty(KEY_EXPORT_FORMAT, Format.NDJSON.name());
+        try {
+            return new RemoteDataExporter(new File(path.trim()), Format.valueOf(format.toUpperCase(Locale.ROOT)), ldapProperties.getBoolean(KEY_EXPORT_GZIP));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported export format '" + format + "' in '" + KEY_EXPORT_FORMAT + "', expected one of " +
+                    Arrays.toString(Format.values()));
+        }
+    }
+
+    @NonNull
+    public File getFile() {
+        return file;
+    }
+
+    public void export(@NonNull final RemoteData data) throws IOException {
+        final long start = System.nanoTime();
+        final File parent = file.getAbsoluteFile().getParentFile();
+        final File tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final OutputStream channelOut = Channels.newOutputStream(channel);
+                final GZIPOutputStream gzipOut = gzip ? new GZIPOutputStream(channelOut, BUFFER_SIZE) : null;
+                final Writer writer = new BufferedWriter(new OutputStreamWriter(gzipOut != null ? gzipOut : channelOut, StandardCharsets.UTF_8), BUFFER_SIZE);
+                if (format == Format.CSV) {
+                    writeCsv(writer, data.getUserData());
+                } else {
+                    writeNdjson(writer, data.getUserData());
+                }
+                writer.flush();
+                if (gzipOut != null) {
+                    gzipOut.finish();
+                }
+                channel.force(false);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+        LOGGER.info("Exported " + data.getUserData().size() + " users to " + file + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    private static void writeNdjson(@NonNull final Writer writer, @NonNull final Collection<RemoteUserData> users) throws IOException {
+        for (RemoteUserData user : users) {
+            writer.write("{\"remoteId\":");
+            writeJsonString(writer, user.getRemoteId());
+            writer.write(",\"username\":");
+            writeJsonString(writer, user.getUsername());
+            writer.write(",\"displayName\":");
+            writeJsonString(writer, user.getDisplayName());
+            writer.write(",\"email\":");
+            writeJsonString(writer, user.getEmail());
+            writer.write(",\"properties\":{");
+            final UserPropertyLayout layout = user.getPropertyLayout();
+            boolean first = true;
+            for (int i = 0; i < layout.size(); i++) {
+                final String value = user.getPropertyValue(i);
+                if (value == null) {
+                    continue;
+                }
+                if (!first) {
+                    writer.write(',');
+                }
+                first = false;
+                writeJsonString(writer, layout.getName(i));
+                writer.write(':');
+                writeJsonString(writer, value);
+            }
+            writer.write("}}\n");
+        }
+    }
+
+    private static void writeCsv(@NonNull final Writer writer, @NonNull final Collection<RemoteUserData> users) throws IOException {
+        // users normally share one or a few layouts, the columns are the union of their names
+        final Map<UserPropertyLayout, int[]> columnIndexes = new IdentityHashMap<>();
+        final Set<String> names = new TreeSet<>();
+        for (RemoteUserData user : users) {
+            final UserPropertyLayout layout = user.getPropertyLayout();
+            if (columnIndexes.put(layout, new int[0]) == null) {
+                for (int i = 0; i < layout.size(); i++) {
+                    names.add(layout.getName(i));
+                }
+            }
+        }
+        final String[] columns = names.toArray(new String[0]);
+        for (Map.Entry<UserPropertyLayout, int[]> entry : columnIndexes.entrySet()) {
+            final int[] indexes = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                indexes[i] = entry.getKey().indexOf(columns[i]);
+            }
+            entry.setValue(indexes);
+        }
+
+        writer.write("remoteId,username,displayName,email");
+        for (String column : columns) {
+            writer.write(',');
+            writeCsvField(writer, column);
+        }
+        writer.write("\r\n");
+        for (RemoteUserData user : users) {
+            writeCsvField(writer, user.getRemoteId());
+            writer.write(',');
+            writeCsvField(writer, user.getUsername());
+            writer.write(',');
+            writeCsvField(writer, user.getDisplayName());
+            writer.write(',');
+            writeCsvField(writer, user.getEmail());
+            for (int index : columnIndexes.get(user.getPropertyLayout())) {
+                writer.write(',');
+                writeCsvField(writer, index < 0 ? null : user.getPropertyValue(index));
+            }
+            writer.write("\r\n");
+        }
+    }
+
+    private static void writeJsonString(@NonNull final Writer writer, @Nullable final String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            writer.write(value, start, i - start);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    writer.write("\\u");
+                    for (int shift = 12; shift >= 0; shift -= 4) {
+                        writer.write(HEX_DIGITS[(c >> shift) & 0xf]);
+                    }
+            }
+        }
+        writer.write(value, start, value.length() - start);
+        writer.write('"');
+    }
+
+    /**
+     * Quotes the field if it contains a separator, a quote or a line break, quotes are doubled.
+     */
+    private static void writeCsvField(@NonNull final Writer writer, @Nullable final String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            final char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        int start = 0;
+        for (int i = value.indexOf('"'); i >= 0; i = value.indexOf('"', i + 1)) {
+            writer.write(value, start, i + 1 - start);
+            writer.write('"');
+            start = i + 1;
+        }
+        writer.write(value, start, value.length() - start);
+        writer.write('"');
+    }
+}
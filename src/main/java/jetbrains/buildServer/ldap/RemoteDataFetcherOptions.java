@@ -15,14 +15,34 @@
  */
 package jetbrains.buildServer.ldap;
 
+import org.springframework.lang.NonNull;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.KEY_ENABLE_GROUP_SYNC_OPTION;
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.KEY_ENABLE_USER_SYNC_OPTION;
+
 public class RemoteDataFetcherOptions {
     private final boolean userSyncEnabled;
+    private final boolean groupSyncEnabled;
 
     public RemoteDataFetcherOptions(final boolean synchronizeUsers) {
+        this(synchronizeUsers, false);
+    }
+
+    public RemoteDataFetcherOptions(final boolean synchronizeUsers, final boolean synchronizeGroups) {
         this.userSyncEnabled = synchronizeUsers;
+        this.groupSyncEnabled = synchronizeGroups;
+    }
+
+    @NonNull
+    public static RemoteDataFetcherOptions fromProperties(@NonNull final LdapProperties ldapProperties) {
+        return new RemoteDataFetcherOptions(ldapProperties.getBoolean(KEY_ENABLE_USER_SYNC_OPTION), ldapProperties.getBoolean(KEY_ENABLE_GROUP_SYNC_OPTION));
     }
 
     public boolean isUserSyncEnabled() {
         return userSyncEnabled;
     }
+
+    public boolean isGroupSyncEnabled() {
+        return groupSyncEnabled;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,534 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Read-only binary snapshot of {@link RemoteData}, opened by memory mapping the file, so that only the looked up users are read into the heap.
+ * <p>
+ * The file consists of a fixed-size header, the label, the user records, the table of record offsets, three open addressing hash indexes
+ * (by remote id, username and lower-cased email) and the group records. Each index slot holds the hash of the key and the ordinal of the user plus one,
+ * zero marks an empty slot. User record: fingerprint, remote id, username, display name, email, the number of custom properties and their names and values,
+ * missing properties of the layout of the user are stored with null values.
+ * Strings are stored as the length of the UTF-8 bytes followed by the bytes, -1 stands for null.
+ * <p>
+ * The users are read into the heap, so they stay valid after the snapshot is {@link #close() closed}, but the snapshot itself
+ * must not be used concurrently with closing it.
+ */
+public class RemoteDataSnapshot implements Closeable {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(RemoteDataSnapshot.class);
+    private static final int MAGIC = 0x4C445353;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 8;
+
+    private static final int USER_COUNT_POS = 8;
+    private static final int GROUP_COUNT_POS = 12;
+    private static final int OFFSETS_POS = 16;
+    private static final int REMOTE_ID_INDEX_POS = 20;
+    private static final int USERNAME_INDEX_POS = 24;
+    private static final int EMAIL_INDEX_POS = 28;
+    private static final int GROUPS_POS = 32;
+    private static final int INDEX_CAPACITY_POS = 36;
+
+    @NonNull
+    private final File file;
+    /**
+     * Null once the snapshot is closed.
+     */
+    @Nullable
+    private volatile ByteBuffer buffer;
+    private final int userCount;
+    private final int groupCount;
+    private final int offsetsPos;
+    private final int remoteIdIndexPos;
+    private final int usernameIndexPos;
+    private final int emailIndexPos;
+    private final int groupsPos;
+    private final int indexMask;
+    @Nullable
+    private final String label;
+    /**
+     * Names of all the custom properties read so far, so that the users read from the snapshot share the layout.
+     */
+    @NonNull
+    private volatile UserPropertyLayout propertyLayout = UserPropertyLayout.EMPTY;
+
+    private RemoteDataSnapshot(@NonNull final File file, @NonNull final ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a snapshot of LDAP data");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported version " + buffer.getInt(4) + " of snapshot " + file);
+        }
+        userCount = buffer.getInt(USER_COUNT_POS);
+        groupCount = buffer.getInt(GROUP_COUNT_POS);
+        offsetsPos = buffer.getInt(OFFSETS_POS);
+        remoteIdIndexPos = buffer.getInt(REMOTE_ID_INDEX_POS);
+        usernameIndexPos = buffer.getInt(USERNAME_INDEX_POS);
+        emailIndexPos = buffer.getInt(EMAIL_INDEX_POS);
+        groupsPos = buffer.getInt(GROUPS_POS);
+        final int indexCapacity = buffer.getInt(INDEX_CAPACITY_POS);
+        if (Integer.bitCount(indexCapacity) != 1 || groupsPos > buffer.capacity() || groupsPos < emailIndexPos) {
+            throw new IOException("Snapshot " + file + " is corrupted");
+        }
+        indexMask = indexCapacity - 1;
+        label = readString(new Reader(HEADER_SIZE));
+    }
+
+    /**
+     * Maps the snapshot into memory, the file may be replaced by {@link #write} while the snapshot is open, except on Windows,
+     * where the snapshot should be closed first.
+     */
+    @NonNull
+    public static RemoteDataSnapshot open(@NonNull final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " is too large");
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new RemoteDataSnapshot(file, buffer);
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file and atomically replaces the {@code file} with it.
+     *
+     * @param label arbitrary string stored along with the data, e.g. to check that the snapshot matches other saved state
+     */
+    public static void write(@NonNull final File file, @NonNull final RemoteData data, @Nullable final String label) throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        final File tempFile = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeTo(channel, data, label);
+                channel.force(false);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private static void writeTo(@NonNull final FileChannel channel, @NonNull final RemoteData data, @Nullable final String label) throws IOException {
+        final Collection<RemoteUserData> users = data.getUserData();
+        final int capacity = Integer.highestOneBit(Math.max(2, users.size()) * 2 - 1) << 1;
+        final int[] offsets = new int[users.size()];
+        final HashIndex remoteIdIndex = new HashIndex(capacity);
+        final HashIndex usernameIndex = new HashIndex(capacity);
+        final HashIndex emailIndex = new HashIndex(capacity);
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+        out.write(new byte[HEADER_SIZE]);
+        writeString(out, label);
+        int ordinal = 0;
+        for (RemoteUserData user : users) {
+            offsets[ordinal] = checkSize(out.size());
+            out.writeLong(user.getFingerprint());
+            remoteIdIndex.add(writeString(out, user.getRemoteId()), ordinal);
+            usernameIndex.add(writeString(out, user.getUsername()), ordinal);
+            writeString(out, user.getDisplayName());
+            writeString(out, user.getEmail());
+            if (user.getEmail() != null) {
+                emailIndex.add(hash(toEmailKey(user.getEmail())), ordinal);
+            }
+            final UserPropertyLayout layout = user.getPropertyLayout();
+            out.writeInt(layout.size());
+            for (int i = 0; i < layout.size(); i++) {
+                writeString(out, layout.getName(i));
+                writeString(out, user.getPropertyValue(i));
+            }
+            ordinal++;
+        }
+        final int offsetsPos = checkSize(out.size());
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        final int remoteIdIndexPos = remoteIdIndex.writeTo(out);
+        final int usernameIndexPos = usernameIndex.writeTo(out);
+        final int emailIndexPos = emailIndex.writeTo(out);
+        final int groupsPos = checkSize(out.size());
+        for (RemoteGroupData group : data.getGroupData()) {
+            writeString(out, group.getRemoteId());
+            writeString(out, group.getName());
+            writeStrings(out, group.getUserRemoteIds());
+            writeStrings(out, group.getSubgroupRemoteIds());
+            writeStrings(out, group.getAllUserRemoteIds());
+        }
+        checkSize(out.size());
+        out.flush();
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(USER_COUNT_POS, users.size());
+        header.putInt(GROUP_COUNT_POS, data.getGroupData().size());
+        header.putInt(OFFSETS_POS, offsetsPos);
+        header.putInt(REMOTE_ID_INDEX_POS, remoteIdIndexPos);
+        header.putInt(USERNAME_INDEX_POS, usernameIndexPos);
+        header.putInt(EMAIL_INDEX_POS, emailIndexPos);
+        header.putInt(GROUPS_POS, groupsPos);
+        header.putInt(INDEX_CAPACITY_POS, capacity);
+        channel.write(header, 0);
+    }
+
+    @NonNull
+    public File getFile() {
+        return file;
+    }
+
+    @Nullable
+    public String getLabel() {
+        return label;
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    @Nullable
+    public RemoteUserData findByRemoteId(@NonNull final String remoteId) {
+        final int ordinal = findOrdinal(remoteId);
+        return ordinal < 0 ? null : getUser(ordinal);
+    }
+
+    @NonNull
+    public List<RemoteUserData> findByUsername(@NonNull final String username) {
+        return find(usernameIndexPos, username.getBytes(StandardCharsets.UTF_8), 1);
+    }
+
+    /**
+     * Emails are compared ignoring case.
+     */
+    @NonNull
+    public List<RemoteUserData> findByEmail(@NonNull final String email) {
+        return find(emailIndexPos, toEmailKey(email), 3);
+    }
+
+    /**
+     * Reads all the users and groups into the heap.
+     */
+    @NonNull
+    public RemoteData toRemoteData() {
+        final List<RemoteUserData> users = new ArrayList<>(userCount);
+        final Map<String, ValueDictionary> propertyValues = new HashMap<>();
+        for (int i = 0; i < userCount; i++) {
+            users.add(getUser(i, propertyValues));
+        }
+        final List<RemoteGroupData> groups = new ArrayList<>(groupCount);
+        final Reader reader = new Reader(groupsPos);
+        for (int i = 0; i < groupCount; i++) {
+            final String remoteId = Objects.requireNonNull(readString(reader));
+            final String name = readString(reader);
+            groups.add(new RemoteGroupData(remoteId, name, readStrings(reader), readStrings(reader), readStrings(reader)));
+        }
+        return new RemoteData(users, groups);
+    }
+
+    /**
+     * @return the ordinal of the user with the {@code remoteId}, or -1 if there is no such user
+     */
+    int findOrdinal(@NonNull final String remoteId) {
+        final ByteBuffer buffer = buffer();
+        final byte[] key = remoteId.getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(key);
+        for (int slot = hash & indexMask; ; slot = (slot + 1) & indexMask) {
+            final int slotPos = remoteIdIndexPos + slot * SLOT_SIZE;
+            final int ordinal = buffer.getInt(slotPos + 4) - 1;
+            if (ordinal < 0) {
+                return -1;
+            }
+            if (buffer.getInt(slotPos) == hash && keyEquals(getRecordOffset(ordinal) + 8, key)) {
+                return ordinal;
+            }
+        }
+    }
+
+    long getFingerprint(final int ordinal) {
+        return buffer().getLong(getRecordOffset(ordinal));
+    }
+
+    @NonNull
+    RemoteUserData getUser(final int ordinal) {
+        return getUser(ordinal, null);
+    }
+
+    /**
+     * @param propertyValues dictionaries of the custom property values by property name to intern the values with, or null not to intern them
+     */
+    @NonNull
+    private RemoteUserData getUser(final int ordinal, @Nullable final Map<String, ValueDictionary> propertyValues) {
+        final Reader reader = new Reader(getRecordOffset(ordinal) + 8);
+        final String remoteId = Objects.requireNonNull(readString(reader));
+        final String username = Objects.requireNonNull(readString(reader));
+        final String displayName = readString(reader);
+        final String email = readString(reader);
+        final int propertiesCount = reader.nextInt();
+        final String[] names = new String[propertiesCount];
+        final String[] values = new String[propertiesCount];
+        for (int i = 0; i < propertiesCount; i++) {
+            names[i] = readString(reader);
+            values[i] = readString(reader);
+        }
+        final UserPropertyLayout layout = propertyLayout.with(Arrays.asList(names));
+        propertyLayout = layout;
+        final String[] properties = new String[layout.size()];
+        for (int i = 0; i < propertiesCount; i++) {
+            properties[layout.indexOf(names[i])] = propertyValues == null
+                    ? values[i]
+                    : propertyValues.computeIfAbsent(names[i], name -> new ValueDictionary()).intern(values[i]);
+        }
+        return new RemoteUserData(remoteId, username, displayName, email, layout, properties);
+    }
+
+    /**
+     * @param skipStrings the number of strings to skip in the record to get to the indexed one
+     */
+    @NonNull
+    private List<RemoteUserData> find(final int indexPos, @NonNull final byte[] key, final int skipStrings) {
+        final ByteBuffer buffer = buffer();
+        final int hash = hash(key);
+        final List<RemoteUserData> result = new ArrayList<>(1);
+        for (int slot = hash & indexMask; ; slot = (slot + 1) & indexMask) {
+            final int slotPos = indexPos + slot * SLOT_SIZE;
+            final int ordinal = buffer.getInt(slotPos + 4) - 1;
+            if (ordinal < 0) {
+                return result;
+            }
+            if (buffer.getInt(slotPos) != hash) {
+                continue;
+            }
+            final Reader reader = new Reader(getRecordOffset(ordinal) + 8);
+            for (int i = 0; i < skipStrings; i++) {
+                reader.skip(reader.nextInt());
+            }
+            final boolean matches = indexPos == emailIndexPos
+                    ? Arrays.equals(key, toEmailKey(Objects.requireNonNull(readString(reader))))
+                    : keyEquals(reader.pos, key);
+            if (matches) {
+                result.add(getUser(ordinal));
+            }
+        }
+    }
+
+    /**
+     * Unmaps the file right away instead of when the buffer is collected, so that the mappings of the previous snapshots do not pile up
+     * and the file can be replaced on Windows.
+     */
+    @Override
+    public void close() {
+        final ByteBuffer mapped = buffer;
+        buffer = null;
+        if (mapped instanceof MappedByteBuffer) {
+            unmap((MappedByteBuffer) mapped);
+        }
+    }
+
+    @NonNull
+    private ByteBuffer buffer() {
+        final ByteBuffer result = buffer;
+        if (result == null) {
+            throw new IllegalStateException("Snapshot " + file + " is closed");
+        }
+        return result;
+    }
+
+    /**
+     * Frees the mapping with Unsafe.invokeCleaner on Java 9 and later or the cleaner of the buffer on Java 8,
+     * or leaves it to the garbage collector if neither is accessible.
+     */
+    private static void unmap(@NonNull final MappedByteBuffer buffer) {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+                return;
+            }
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("Cannot unmap snapshot, it is unmapped once collected", e);
+        }
+    }
+
+    private int getRecordOffset(final int ordinal) {
+        return buffer().getInt(offsetsPos + ordinal * 4);
+    }
+
+    private boolean keyEquals(final int pos, @NonNull final byte[] key) {
+        final ByteBuffer buffer = buffer();
+        if (buffer.getInt(pos) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(pos + 4 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    private String readString(@NonNull final Reader reader) {
+        final ByteBuffer buffer = buffer();
+        final int length = reader.nextInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(reader.pos + i);
+        }
+        reader.skip(length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @NonNull
+    private Set<String> readStrings(@NonNull final Reader reader) {
+        final int size = reader.nextInt();
+        final Set<String> result = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            result.add(readString(reader));
+        }
+        return result;
+    }
+
+    /**
+     * @return the hash of the written string, 0 for null
+     */
+    private static int writeString(@NonNull final DataOutputStream out, @Nullable final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return 0;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return hash(bytes);
+    }
+
+    private static void writeStrings(@NonNull final DataOutputStream out, @NonNull final Set<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    @NonNull
+    private static byte[] toEmailKey(@NonNull final String email) {
+        return email.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int hash(@NonNull final byte[] bytes) {
+        int hash = 0x811c9dc5;
+        for (byte b : bytes) {
+            hash = (hash ^ (b & 0xff)) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int checkSize(final int size) throws IOException {
+        // DataOutputStream.size() overflows to Integer.MAX_VALUE
+        if (size < 0 || size == Integer.MAX_VALUE) {
+            throw new IOException("LDAP data is too large for a snapshot");
+        }
+        return size;
+    }
+
+    /**
+     * Sequential reader over the absolute positions of the shared buffer, so that the snapshot can be read by several threads.
+     */
+    private class Reader {
+        private int pos;
+
+        Reader(final int pos) {
+            this.pos = pos;
+        }
+
+        int nextInt() {
+            final int result = buffer().getInt(pos);
+            pos += 4;
+            return result;
+        }
+
+        void skip(final int length) {
+            if (length > 0) {
+                pos += length;
+            }
+        }
+    }
+
+    private static class HashIndex {
+        @NonNull
+        private final int[] slots;
+        private final int mask;
+
+        HashIndex(final int capacity) {
+            slots = new int[capacity * 2];
+            mask = capacity - 1;
+        }
+
+        void add(final int hash, final int ordinal) {
+            int slot = hash & mask;
+            while (slots[slot * 2 + 1] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot * 2] = hash;
+            slots[slot * 2 + 1] = ordinal + 1;
+        }
+
+        /**
+         * @return the position of the index in the file
+         */
+        int writeTo(@NonNull final DataOutputStream out) throws IOException {
+            final int pos = checkSize(out.size());
+            for (int value : slots) {
+                out.writeInt(value);
+            }
+            return pos;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.util.Set;
+
+public class RemoteGroupData {
+    @NonNull
+    private final String remoteId;
+    @Nullable
+    private final String name;
+    @NonNull
+    private final Set<String> userRemoteIds;
+    @NonNull
+    private final Set<String> subgroupRemoteIds;
+    @NonNull
+    private final Set<String> allUserRemoteIds;
+
+    public RemoteGroupData(@NonNull String remoteId,
+                           @Nullable String name,
+                           @NonNull Set<String> userRemoteIds,
+                           @NonNull Set<String> subgroupRemoteIds,
+                           @NonNull Set<String> allUserRemoteIds) {
+        this.remoteId = remoteId;
+        this.name = name;
+        this.userRemoteIds = userRemoteIds;
+        this.subgroupRemoteIds = subgroupRemoteIds;
+        this.allUserRemoteIds = allUserRemoteIds;
+    }
+
+    @NonNull
+    public String getRemoteId() {
+        return remoteId;
+    }
+
+    @Nullable
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return remote ids of the users which are direct members of the group
+     */
+    @NonNull
+    public Set<String> getUserRemoteIds() {
+        return userRemoteIds;
+    }
+
+    /**
+     * @return remote ids of the groups which are direct members of the group
+     */
+    @NonNull
+    public Set<String> getSubgroupRemoteIds() {
+        return subgroupRemoteIds;
+    }
+
+    /**
+     * @return remote ids of the direct members and, if nested groups are processed, of the members of all nested groups
+     */
+    @NonNull
+    public Set<String> getAllUserRemoteIds() {
+        return allUserRemoteIds;
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteGroupData{" +
+                "remoteId='" + remoteId + '\'' +
+                ", name='" + name + '\'' +
+                ", users=" + userRemoteIds.size() +
+                ", subgroups=" + subgroupRemoteIds.size() +
+                ", allUsers=" + allUserRemoteIds.size() +
+                '}';
+    }
+}
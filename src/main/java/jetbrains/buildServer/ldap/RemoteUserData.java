@@ -18,9 +18,21 @@ package jetbrains.buildServer.ldap;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
+/**
+ * Custom properties are kept as an array of values laid out by the {@link UserPropertyLayout} shared by the users with the same property names,
+ * a missing property is a null value.
+ */
 public class RemoteUserData {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     @NonNull
     private final String remoteId;
     @NonNull
@@ -30,18 +42,145 @@ public class RemoteUserData {
     @Nullable
     private final String email;
     @NonNull
-    private final Map<String, String> customProperties;
+    private final UserPropertyLayout propertyLayout;
+    @NonNull
+    private final String[] propertyValues;
+    private final long fingerprint;
 
     public RemoteUserData(@NonNull String remoteId,
                           @NonNull String username,
                           @Nullable String displayName,
                           @Nullable String email,
                           @NonNull Map<String, String> customProperties) {
+        this(remoteId, username, displayName, email, UserPropertyLayout.of(customProperties.keySet()), customProperties);
+    }
+
+    private RemoteUserData(@NonNull String remoteId,
+                           @NonNull String username,
+                           @Nullable String displayName,
+                           @Nullable String email,
+                           @NonNull UserPropertyLayout propertyLayout,
+                           @NonNull Map<String, String> customProperties) {
+        this(remoteId, username, displayName, email, propertyLayout, toValues(propertyLayout, customProperties));
+    }
+
+    /**
+     * @param propertyValues values of the properties of the layout, null for the missing ones; the array is not copied
+     */
+    RemoteUserData(@NonNull String remoteId,
+                   @NonNull String username,
+                   @Nullable String displayName,
+                   @Nullable String email,
+                   @NonNull UserPropertyLayout propertyLayout,
+                   @NonNull String[] propertyValues) {
+        if (propertyValues.length != propertyLayout.size()) {
+            throw new IllegalArgumentException("Expected " + propertyLayout.size() + " custom property values, got " + propertyValues.length);
+        }
         this.remoteId = remoteId;
         this.username = username;
         this.displayName = displayName;
         this.email = email;
-        this.customProperties = customProperties;
+        this.propertyLayout = propertyLayout;
+        this.propertyValues = propertyValues;
+        this.fingerprint = computeFingerprint(username, displayName, email, propertyLayout, propertyValues);
+    }
+
+    @NonNull
+    public String getRemoteId() {
+        return remoteId;
+    }
+
+    @NonNull
+    public String getUsername() {
+        return username;
+    }
+
+    @Nullable
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    @Nullable
+    public String getEmail() {
+        return email;
+    }
+
+    /**
+     * @return read-only view of the custom properties
+     */
+    @NonNull
+    public Map<String, String> getCustomProperties() {
+        return new CustomProperties();
+    }
+
+    @NonNull
+    UserPropertyLayout getPropertyLayout() {
+        return propertyLayout;
+    }
+
+    /**
+     * @return the value of the property at the {@code index} of the {@link #getPropertyLayout layout}, or null if the user does not have it
+     */
+    @Nullable
+    String getPropertyValue(final int index) {
+        return propertyValues[index];
+    }
+
+    /**
+     * @return 64-bit hash of the username, display name, email and custom properties, users with different fingerprints
+     * are guaranteed to differ in one of these fields
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    private static long computeFingerprint(@NonNull final String username,
+                                           @Nullable final String displayName,
+                                           @Nullable final String email,
+                                           @NonNull final UserPropertyLayout propertyLayout,
+                                           @NonNull final String[] propertyValues) {
+        long result = hash(FNV_OFFSET_BASIS, username);
+        result = hash(result, displayName);
+        result = hash(result, email);
+        // entry hashes are combined commutatively, so that the fingerprint does not depend on the layout, only on the present properties
+        long propertiesHash = 0;
+        for (int i = 0; i < propertyValues.length; i++) {
+            if (propertyValues[i] != null) {
+                propertiesHash += mix(hash(hash(FNV_OFFSET_BASIS, propertyLayout.getName(i)), propertyValues[i]));
+            }
+        }
+        return mix(result ^ propertiesHash);
+    }
+
+    @NonNull
+    private static String[] toValues(@NonNull final UserPropertyLayout propertyLayout, @NonNull final Map<String, String> customProperties) {
+        final String[] result = new String[propertyLayout.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = customProperties.get(propertyLayout.getName(i));
+        }
+        return result;
+    }
+
+    /**
+     * FNV-1a over the chars of the {@code value}, null and empty values hash differently as the length is hashed too.
+     */
+    private static long hash(long hash, @Nullable final String value) {
+        if (value == null) {
+            return (hash ^ 0xffffL) * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return (hash ^ (value.length() + 0x10000L)) * FNV_PRIME;
+    }
+
+    /**
+     * Finalizer of SplitMix64.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
     }
 
     @Override
@@ -51,7 +190,65 @@ public class RemoteUserData {
                 ", username='" + username + '\'' +
                 ", displayName='" + displayName + '\'' +
                 ", email='" + email + '\'' +
-                ", customProperties=" + customProperties +
+                ", customProperties=" + getCustomProperties() +
                 '}';
     }
-}
\ No newline at end of file
+
+    private class CustomProperties extends AbstractMap<String, String> {
+        @Override
+        public String get(final Object key) {
+            final int index = key == null ? -1 : propertyLayout.indexOf(key);
+            return index < 0 ? null : propertyValues[index];
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<Entry<String, String>>() {
+                        private int next = advance(0);
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < propertyValues.length;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            final Entry<String, String> result = new SimpleImmutableEntry<>(propertyLayout.getName(next), propertyValues[next]);
+                            next = advance(next + 1);
+                            return result;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    int result = 0;
+                    for (String value : propertyValues) {
+                        if (value != null) {
+                            result++;
+                        }
+                    }
+                    return result;
+                }
+            };
+        }
+
+        private int advance(int index) {
+            while (index < propertyValues.length && propertyValues[index] == null) {
+                index++;
+            }
+            return index;
+        }
+    }
+}
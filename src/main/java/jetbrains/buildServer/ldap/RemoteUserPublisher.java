@@ -0,0 +1,178 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Publishes the users of a streamed search. Every subscriber gets its own search, run by the executor, and every entry is
+ * converted and passed to the subscriber on the thread of the search. While the subscriber has not requested more users, the
+ * search thread waits and the next entries, or the next page, are not read from the connection, so that at most a page of
+ * unconsumed entries is kept. Cancelling the subscription aborts the search and releases the connection.
+ */
+final class RemoteUserPublisher implements Publisher<RemoteUserData> {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(RemoteUserPublisher.class);
+
+    @NonNull
+    private final UserSearch search;
+    @NonNull
+    private final Executor executor;
+
+    RemoteUserPublisher(@NonNull final UserSearch search, @NonNull final Executor executor) {
+        this.search = search;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(final Subscriber<? super RemoteUserData> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber is null");
+        }
+        final UserSubscription subscription = new UserSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        try {
+            executor.execute(subscription);
+        } catch (RejectedExecutionException e) {
+            subscription.fail(e);
+        }
+    }
+
+    interface UserSearch {
+        /**
+         * Passes every found user to the {@code consumer}, the search is aborted by an exception thrown from the consumer.
+         */
+        void run(@NonNull Consumer<RemoteUserData> consumer);
+    }
+
+    private class UserSubscription implements Subscription, Runnable {
+        @NonNull
+        private final Subscriber<? super RemoteUserData> subscriber;
+        @NonNull
+        private final Object lock = new Object();
+        private long demand;
+        private boolean cancelled;
+        @Nullable
+        private IllegalArgumentException invalidRequest;
+
+        UserSubscription(@NonNull final Subscriber<? super RemoteUserData> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            synchronized (lock) {
+                if (n <= 0) {
+                    if (invalidRequest == null) {
+                        invalidRequest = new IllegalArgumentException("Requested " + n + " users, the number must be positive");
+                    }
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (lock) {
+                cancelled = true;
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                search.run(this::emit);
+            } catch (CancellationException e) {
+                // the subscription is cancelled or the request is invalid, the latter is signalled below
+            } catch (Throwable e) {
+                fail(e);
+                return;
+            }
+            final IllegalArgumentException error;
+            synchronized (lock) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                error = invalidRequest;
+            }
+            if (error != null) {
+                subscriber.onError(error);
+            } else {
+                subscriber.onComplete();
+            }
+        }
+
+        void fail(@NonNull final Throwable e) {
+            synchronized (lock) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+            }
+            subscriber.onError(e);
+        }
+
+        private void emit(@NonNull final RemoteUserData user) {
+            synchronized (lock) {
+                try {
+                    while (demand == 0 && !cancelled && invalidRequest == null) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the subscriber to request users", e);
+                }
+                if (cancelled || invalidRequest != null) {
+                    throw new CancellationException();
+                }
+                if (demand != Long.MAX_VALUE) {
+                    demand--;
+                }
+            }
+            try {
+                subscriber.onNext(user);
+            } catch (RuntimeException e) {
+                LOGGER.error("Subscriber " + subscriber + " failed to process LDAP user, cancelling the search", e);
+                cancel();
+                throw new CancellationException();
+            }
+        }
+
+        private boolean isCancelled() {
+            synchronized (lock) {
+                return cancelled;
+            }
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import jetbrains.buildServer.ldap.api.LdapMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Client of the users part of the TeamCity REST API. Every request waits for the rate limiter, and idempotent requests are repeated
+ * after connection errors and responses telling that the server is overloaded or temporarily unavailable. Creating a user is only repeated
+ * after a 429 response, which tells that the request has not been processed: after a connection error or a gateway error the user
+ * may have been created. Responses are streamed, never read into a string.
+ */
+class TeamCityRestClient {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(TeamCityRestClient.class);
+    @NonNull
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+    @NonNull
+    private static final String USERS_PATH = "/app/rest/users";
+    private static final int MAX_ERROR_LENGTH = 1024;
+    private static final long MIN_RETRY_DELAY = 500;
+    private static final long MAX_RETRY_DELAY = 30_000;
+
+    @NonNull
+    private final String baseUrl;
+    @Nullable
+    private final String token;
+    private final int timeout;
+    private final int retries;
+    @Nullable
+    private final RateLimiter rateLimiter;
+    @NonNull
+    private final LdapMetrics metrics;
+
+    /**
+     * @param rateLimit the maximum number of requests per second, not limited if not positive
+     */
+    TeamCityRestClient(@NonNull final String baseUrl, @Nullable final String token, final int timeout, final int retries, final double rateLimit,
+                       @NonNull final LdapMetrics metrics) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.token = token;
+        this.timeout = timeout;
+        this.retries = retries;
+        this.rateLimiter = rateLimit > 0 ? new RateLimiter(rateLimit) : null;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Passes every TeamCity user to the {@code consumer} as it is parsed, only the {@code propertyNames} properties are read.
+     */
+    void listUsers(@NonNull final Set<String> propertyNames, @NonNull final Consumer<User> consumer) throws IOException, InterruptedException {
+        request("GET", USERS_PATH + "?fields=user(id,username,name,email,properties(property(name,value)))", null, null, in -> {
+            try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+                expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    final JsonToken value = parser.nextToken();
+                    if (field.equals("user") && value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            consumer.accept(readUser(parser, propertyNames));
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        });
+    }
+
+    void createUser(@NonNull final String username, @Nullable final String name, @Nullable final String email,
+                    @NonNull final Map<String, String> properties) throws IOException, InterruptedException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(body)) {
+            generator.writeStartObject();
+            generator.writeStringField("username", username);
+            if (name != null) {
+                generator.writeStringField("name", name);
+            }
+            if (email != null) {
+                generator.writeStringField("email", email);
+            }
+            generator.writeObjectFieldStart("properties");
+            generator.writeArrayFieldStart("property");
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                generator.writeStartObject();
+                generator.writeStringField("name", property.getKey());
+                generator.writeStringField("value", property.getValue());
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+        request("POST", USERS_PATH, "application/json", body.toByteArray(), null);
+    }
+
+    /**
+     * Sets the {@code field} ("username", "name" or "email") of the user, null value clears the field.
+     */
+    void setField(final long userId, @NonNull final String field, @Nullable final String value) throws IOException, InterruptedException {
+        setValue(getUserPath(userId) + "/" + field, value);
+    }
+
+    /**
+     * Sets the property of the user, null value deletes the property.
+     */
+    void setProperty(final long userId, @NonNull final String name, @Nullable final String value) throws IOException, InterruptedException {
+        setValue(getUserPath(userId) + "/properties/" + encodePathSegment(name), value);
+    }
+
+    void deleteUser(final long userId) throws IOException, InterruptedException {
+        request("DELETE", getUserPath(userId), null, null, null);
+    }
+
+    @Override
+    public String toString() {
+        return baseUrl;
+    }
+
+    private void setValue(@NonNull final String path, @Nullable final String value) throws IOException, InterruptedException {
+        if (value == null) {
+            request("DELETE", path, null, null, null);
+        } else {
+            request("PUT", path, "text/plain; charset=UTF-8", value.getBytes(StandardCharsets.UTF_8), null);
+        }
+    }
+
+    private void request(@NonNull final String method,
+                         @NonNull final String path,
+                         @Nullable final String contentType,
+                         @Nullable final byte[] body,
+                         @Nullable final ResponseHandler responseHandler) throws IOException, InterruptedException {
+        long retryDelay = MIN_RETRY_DELAY;
+        for (int attempt = 0; ; attempt++) {
+            if (rateLimiter != null) {
+                rateLimiter.acquire();
+            }
+            final long start = System.nanoTime();
+            final HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            int status = -1;
+            try {
+                connection.setConnectTimeout(timeout);
+                connection.setReadTimeout(timeout);
+                connection.setRequestMethod(method);
+                connection.setRequestProperty("Accept", "application/json");
+                if (token != null) {
+                    connection.setRequestProperty("Authorization", "Bearer " + token);
+                }
+                if (body != null) {
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Type", contentType);
+                    // the bodies are small and not streamed, so that the headers and the body are sent with a single write
+                    try (OutputStream out = connection.getOutputStream()) {
+                        out.write(body);
+                    }
+                }
+                status = connection.getResponseCode();
+                if (status >= 200 && status < 300) {
+                    try (InputStream in = connection.getInputStream()) {
+                        if (responseHandler != null) {
+                            responseHandler.handle(in);
+                        }
+                        // the connection is only kept alive when the response has been read completely
+                        drain(in);
+                    }
+                    return;
+                }
+                final String error = readError(connection);
+                if (attempt >= retries || !isRetryable(method, status)) {
+                    throw new IOException(method + " " + path + " returned " + status + ": " + error);
+                }
+                final long retryAfter = getRetryAfter(connection);
+                LOGGER.debug(method + " " + path + " returned " + status + ", repeating it: " + error);
+                retryDelay = retryAfter > 0 ? retryAfter : retryDelay;
+            } catch (IOException e) {
+                if (status >= 0 || attempt >= retries || !isIdempotent(method)) {
+                    throw e;
+                }
+                LOGGER.debug(method + " " + path + " failed, repeating it: " + e);
+                connection.disconnect();
+            } finally {
+                metrics.recordRestRequest(method, status, System.nanoTime() - start);
+            }
+            TimeUnit.MILLISECONDS.sleep(retryDelay);
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+    @NonNull
+    private static User readUser(@NonNull final JsonParser parser, @NonNull final Set<String> propertyNames) throws IOException {
+        long id = -1;
+        String username = null;
+        String name = null;
+        String email = null;
+        final Map<String, String> properties = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "id":
+                    id = parser.getValueAsLong(-1);
+                    break;
+                case "username":
+                    username = parser.getValueAsString();
+                    break;
+                case "name":
+                    name = parser.getValueAsString();
+                    break;
+                case "email":
+                    email = parser.getValueAsString();
+                    break;
+                case "properties":
+                    readProperties(parser, propertyNames, properties);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (id < 0 || username == null) {
+            throw new IOException("TeamCity user without id or username at " + parser.getCurrentLocation());
+        }
+        return new User(id, username, name, email, properties);
+    }
+
+    /**
+     * Reads {"property": [{"name": ..., "value": ...}, ...]}.
+     */
+    private static void readProperties(@NonNull final JsonParser parser, @NonNull final Set<String> propertyNames,
+                                       @NonNull final Map<String, String> properties) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final boolean list = parser.getCurrentName().equals("property");
+            if (parser.nextToken() != JsonToken.START_ARRAY || !list) {
+                parser.skipChildren();
+                continue;
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String name = null;
+                String value = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("name")) {
+                        name = parser.getValueAsString();
+                    } else if (field.equals("value")) {
+                        value = parser.getValueAsString();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (name != null && propertyNames.contains(name)) {
+                    properties.put(name, value);
+                }
+            }
+        }
+    }
+
+    private static void expect(@NonNull final JsonParser parser, @Nullable final JsonToken actual, @NonNull final JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " in TeamCity response, got " + actual + " at " + parser.getCurrentLocation());
+        }
+    }
+
+    @NonNull
+    private static String getUserPath(final long userId) {
+        return USERS_PATH + "/id:" + userId;
+    }
+
+    @NonNull
+    private static String encodePathSegment(@NonNull final String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name()).replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isRetryable(@NonNull final String method, final int status) {
+        return status == 429 || isIdempotent(method) && (status == 502 || status == 503 || status == 504);
+    }
+
+    private static boolean isIdempotent(@NonNull final String method) {
+        return !method.equals("POST");
+    }
+
+    /**
+     * @return the delay in milliseconds from the Retry-After header in seconds, or -1 if there is no such header
+     */
+    private static long getRetryAfter(@NonNull final HttpURLConnection connection) {
+        final String value = connection.getHeaderField("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.min(TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())), MAX_RETRY_DELAY);
+        } catch (NumberFormatException e) {
+            // HTTP date is not worth parsing, the default backoff is used
+            return -1;
+        }
+    }
+
+    @NonNull
+    private static String readError(@NonNull final HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getErrorStream()) {
+            if (in == null) {
+                return connection.getResponseMessage();
+            }
+            final ByteArrayOutputStream result = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[MAX_ERROR_LENGTH];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                result.write(buffer, 0, Math.min(read, MAX_ERROR_LENGTH - result.size()));
+            }
+            return new String(result.toByteArray(), StandardCharsets.UTF_8).trim();
+        }
+    }
+
+    private static void drain(@NonNull final InputStream in) throws IOException {
+        final byte[] buffer = new byte[4096];
+        //noinspection StatementWithEmptyBody
+        while (in.read(buffer) >= 0) {
+        }
+    }
+
+    private interface ResponseHandler {
+        void handle(@NonNull InputStream in) throws IOException;
+    }
+
+    /**
+     * TeamCity user with the properties relevant for the synchronization.
+     */
+    static class User {
+        private final long id;
+        @NonNull
+        private final String username;
+        @Nullable
+        private final String name;
+        @Nullable
+        private final String email;
+        @NonNull
+        private final Map<String, String> properties;
+
+        User(final long id, @NonNull final String username, @Nullable final String name, @Nullable final String email,
+             @NonNull final Map<String, String> properties) {
+            this.id = id;
+            this.username = username;
+            this.name = name;
+            this.email = email;
+            this.properties = properties;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        @NonNull
+        String getUsername() {
+            return username;
+        }
+
+        @Nullable
+        String getName() {
+            return name;
+        }
+
+        @Nullable
+        String getEmail() {
+            return email;
+        }
+
+        @NonNull
+        Map<String, String> getProperties() {
+            return properties;
+        }
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import jetbrains.buildServer.ldap.api.LdapMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Applies the synchronization result to TeamCity users via the REST API. The TeamCity users are read once per synchronization,
+ * then only the users and fields which differ are sent, each user by its own task: up to '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_REST_CONCURRENCY}'
+ * users are applied concurrently, and all the requests share the '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_REST_RATE_LIMIT}' limit.
+ * <p>
+ * Unless '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_FORCE_UPDATE_PROPERTIES}' is set, a field is only updated when its TeamCity value is the one
+ * synchronized before, so that the changes made in TeamCity are kept; users created in LDAP since the previous synchronization
+ * only get their empty fields filled in.
+ * <p>
+ * Users are only created and deleted when the user synchronization is enabled. Deleting is refused if LDAP returns no users
+ * or if more than '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_REST_MAX_DELETE_PERCENT}' percent of the synchronized TeamCity users
+ * would be deleted, as that rather means a misconfigured search than users removed from LDAP.
+ */
+public class TeamCityUserApplier {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(TeamCityUserApplier.class);
+    @NonNull
+    private static final String MEMBER_ID_PROPERTY = KEY_MEMBER_USER_ID_ATTRIBUTE.substring(KEY_USER_CUSTOM_PROPERTY.length());
+    private static final int MAX_LOGGED_FAILURES = 10;
+
+    @NonNull
+    private final TeamCityRestClient client;
+    @NonNull
+    private final String remoteIdProperty;
+    @NonNull
+    private final Set<String> propertyNames;
+    private final int concurrency;
+    private final boolean createUsers;
+    private final boolean updateUsers;
+    private final boolean deleteUsers;
+    private final boolean forceUpdate;
+    private final int maxDeletePercent;
+    @NonNull
+    private final LdapMetrics metrics;
+
+    TeamCityUserApplier(@NonNull final TeamCityRestClient client,
+                        @NonNull final String remoteIdProperty,
+                        @NonNull final Set<String> propertyNames,
+                        final int concurrency,
+                        final boolean createUsers,
+                        final boolean updateUsers,
+                        final boolean deleteUsers,
+                        final boolean forceUpdate,
+                        final int maxDeletePercent,
+                        @NonNull final LdapMetrics metrics) {
+        this.client = client;
+        this.remoteIdProperty = remoteIdProperty;
+        this.propertyNames = new HashSet<>(propertyNames);
+        this.propertyNames.remove(MEMBER_ID_PROPERTY);
+        this.propertyNames.add(remoteIdProperty);
+        this.concurrency = Math.max(1, concurrency);
+        this.createUsers = createUsers;
+        this.updateUsers = updateUsers;
+        this.deleteUsers = deleteUsers;
+        this.forceUpdate = forceUpdate;
+        this.maxDeletePercent = maxDeletePercent;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the applier configured by '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_REST_PREFIX}*' properties, or null if '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_REST_URL}' is not set
+     */
+    @Nullable
+    public static TeamCityUserApplier fromProperties(@NonNull final LdapProperties ldapProperties,
+                                                     @NonNull final RemoteDataFetcherOptions options,
+                                                     @NonNull final LdapMetrics metrics) {
+        final String url = ldapProperties.getProperty(KEY_REST_URL);
+        if (!StringUtils.hasText(url)) {
+            return null;
+        }
+        if (ldapProperties.getBoolean(KEY_ASSIGN_USERS_SYNC_OPTION) || ldapProperties.getBoolean(KEY_DEASSIGN_USERS_SYNC_OPTION)) {
+            LOGGER.warn("Group membership is not applied via the REST API, ignoring '" + KEY_ASSIGN_USERS_SYNC_OPTION + "' and '" +
+                    KEY_DEASSIGN_USERS_SYNC_OPTION + "': only the users are synchronized");
+        }
+        final String token = ldapProperties.getProperty(KEY_REST_TOKEN);
+        final TeamCityRestClient client = new TeamCityRestClient(url.trim(), StringUtils.hasText(token) ? token.trim() : null,
+                ldapProperties.getInt(KEY_REST_TIMEOUT, 30000),
+                ldapProperties.getInt(KEY_REST_RETRIES, 3),
+                ldapProperties.getInt(KEY_REST_RATE_LIMIT, 200),
+                metrics);
+        return new TeamCityUserApplier(client,
+                ldapProperties.getProperty(KEY_REST_REMOTE_ID_PROPERTY, "ldap.remoteId").trim(),
+                ldapProperties.getCustomProperties().keySet(),
+                ldapProperties.getInt(KEY_REST_CONCURRENCY, 8),
+                options.isUserSyncEnabled() && ldapProperties.getBoolean(KEY_CREATE_USERS_SYNC_OPTION),
+                options.isUserSyncEnabled(),
+                options.isUserSyncEnabled() && ldapProperties.getBoolean(KEY_DELETE_USERS_SYNC_OPTION),
+                ldapProperties.getBoolean(KEY_FORCE_UPDATE_PROPERTIES),
+                ldapProperties.getInt(KEY_REST_MAX_DELETE_PERCENT, 20),
+                metrics);
+    }
+
+    /**
+     * Applies the users of {@link RemoteDataDiff#getCurrent()}, the rest of the diff tells which values were synchronized before.
+     * A user failing to be applied is logged, counted and reported by {@link Result#getFailedRemoteIds()}, the others are still applied.
+     *
+     * @throws IOException if the TeamCity users cannot be read
+     */
+    @NonNull
+    public Result apply(@NonNull final RemoteDataDiff diff) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final TeamCityUsers teamCityUsers = readUsers();
+
+        final Map<String, RemoteUserData> previousUsers = new HashMap<>();
+        for (RemoteDataDiff.UserUpdate update : diff.getUpdatedUsers()) {
+            previousUsers.put(update.getCurrent().getRemoteId(), update.getPrevious());
+        }
+        final Set<String> createdRemoteIds = new HashSet<>();
+        for (RemoteUserData user : diff.getCreatedUsers()) {
+            createdRemoteIds.add(user.getRemoteId());
+        }
+
+        final Result result = new Result();
+        final Set<Long> matchedIds = new HashSet<>();
+        final ExecutorService executor = createExecutor();
+        // bounds the queued users, so that the tasks are not built for all the users at once
+        final Semaphore pending = new Semaphore(concurrency * 2);
+        try {
+            for (RemoteUserData user : diff.getCurrent().getUserData()) {
+                submitUser(executor, pending, user, getPreviousUser(user, previousUsers, createdRemoteIds), teamCityUsers, matchedIds, result);
+            }
+            if (deleteUsers) {
+                final List<TeamCityRestClient.User> deletedUsers = new ArrayList<>();
+                for (TeamCityRestClient.User teamCityUser : teamCityUsers.byRemoteId.values()) {
+                    if (!matchedIds.contains(teamCityUser.getId())) {
+                        deletedUsers.add(teamCityUser);
+                    }
+                }
+                if (isDeleteAllowed(deletedUsers.size(), teamCityUsers.byRemoteId.size(), diff.getCurrent().getUserData().size())) {
+                    for (TeamCityRestClient.User teamCityUser : deletedUsers) {
+                        submitDelete(executor, pending, teamCityUser, result);
+                    }
+                }
+            }
+            awaitTermination(executor, result);
+        } finally {
+            executor.shutdownNow();
+        }
+        metrics.recordApply(result.created.get(), result.updated.get(), result.deleted.get(), result.failed.get());
+        LOGGER.info("Applied users to TeamCity " + client + " in " + (System.nanoTime() - start) / 1_000_000 + " ms: " + result);
+        return result;
+    }
+
+    /**
+     * Applies the users changed and deleted in LDAP after the synchronization, e.g. streamed by {@link LdapChangeListener}, with the same
+     * rules as {@link #apply}: a changed user is updated using its {@code previousUsers} value, or is created if it has none, and
+     * the deleted users are only deleted if deleting is enabled. The percentage limit of deleting is not checked, as the changes
+     * are applied as they come, usually one user at a time.
+     *
+     * @param previousUsers the values synchronized before of the changed users, by remote id
+     * @throws IOException if the TeamCity users cannot be read
+     */
+    @NonNull
+    public Result applyChanges(@NonNull final Collection<RemoteUserData> changedUsers,
+                               @NonNull final Map<String, RemoteUserData> previousUsers,
+                               @NonNull final Collection<String> deletedRemoteIds) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final TeamCityUsers teamCityUsers = readUsers();
+        final Result result = new Result();
+        final Set<Long> matchedIds = new HashSet<>();
+        final ExecutorService executor = createExecutor();
+        final Semaphore pending = new Semaphore(concurrency * 2);
+        try {
+            for (RemoteUserData user : changedUsers) {
+                submitUser(executor, pending, user, previousUsers.get(user.getRemoteId()), teamCityUsers, matchedIds, result);
+            }
+            if (deleteUsers) {
+                for (String remoteId : deletedRemoteIds) {
+                    final TeamCityRestClient.User teamCityUser = teamCityUsers.byRemoteId.get(remoteId);
+                    if (teamCityUser != null && !matchedIds.contains(teamCityUser.getId())) {
+                        submitDelete(executor, pending, teamCityUser, result);
+                    }
+                }
+            }
+            awaitTermination(executor, result);
+        } finally {
+            executor.shutdownNow();
+        }
+        metrics.recordApply(result.created.get(), result.updated.get(), result.deleted.get(), result.failed.get());
+        LOGGER.info("Applied " + changedUsers.size() + " changed and " + deletedRemoteIds.size() + " deleted users to TeamCity " + client + " in " +
+                (System.nanoTime() - start) / 1_000_000 + " ms: " + result);
+        return result;
+    }
+
+    @NonNull
+    private TeamCityUsers readUsers() throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final TeamCityUsers result = new TeamCityUsers();
+        client.listUsers(propertyNames, user -> {
+            final String remoteId = user.getProperties().get(remoteIdProperty);
+            if (remoteId != null) {
+                result.byRemoteId.put(remoteId, user);
+            }
+            result.byUsername.put(user.getUsername().toLowerCase(), user);
+        });
+        LOGGER.debug("Read " + result.byUsername.size() + " TeamCity users from " + client + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return result;
+    }
+
+    /**
+     * Matches the LDAP user with a TeamCity user by remote id, then by username, and submits the task updating or creating it.
+     */
+    private void submitUser(@NonNull final ExecutorService executor,
+                            @NonNull final Semaphore pending,
+                            @NonNull final RemoteUserData user,
+                            @Nullable final RemoteUserData previous,
+                            @NonNull final TeamCityUsers teamCityUsers,
+                            @NonNull final Set<Long> matchedIds,
+                            @NonNull final Result result) throws InterruptedException {
+        TeamCityRestClient.User teamCityUser = teamCityUsers.byRemoteId.get(user.getRemoteId());
+        if (teamCityUser == null) {
+            teamCityUser = teamCityUsers.byUsername.get(user.getUsername());
+            final String claimedBy = teamCityUser != null ? teamCityUser.getProperties().get(remoteIdProperty) : null;
+            if (claimedBy != null && !claimedBy.equals(user.getRemoteId())) {
+                LOGGER.warn("TeamCity user '" + user.getUsername() + "' is synchronized with another LDAP user " + claimedBy
+                        + ", skipping " + user.getRemoteId());
+                result.fail(user.getRemoteId());
+                return;
+            }
+        }
+        if (teamCityUser != null && !matchedIds.add(teamCityUser.getId())) {
+            LOGGER.warn("TeamCity user '" + teamCityUser.getUsername() + "' matches several LDAP users, skipping " + user.getRemoteId());
+            result.fail(user.getRemoteId());
+            return;
+        }
+        final Runnable task = teamCityUser != null
+                ? createUpdateTask(user, previous, teamCityUser, result)
+                : createCreateTask(user, result);
+        submit(executor, pending, task, user.getUsername(), user.getRemoteId(), result);
+    }
+
+    private void submitDelete(@NonNull final ExecutorService executor, @NonNull final Semaphore pending,
+                              @NonNull final TeamCityRestClient.User teamCityUser, @NonNull final Result result) throws InterruptedException {
+        submit(executor, pending, () -> {
+            call(() -> client.deleteUser(teamCityUser.getId()));
+            result.deleted.incrementAndGet();
+        }, teamCityUser.getUsername(), teamCityUser.getProperties().get(remoteIdProperty), result);
+    }
+
+    @NonNull
+    private ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull final Runnable r) {
+                final Thread thread = new Thread(r, "teamcity-rest-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static void awaitTermination(@NonNull final ExecutorService executor, @NonNull final Result result) throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOGGER.debug("Applying users to TeamCity: " + result);
+        }
+    }
+
+    private boolean isDeleteAllowed(final int deletedCount, final int synchronizedCount, final int ldapCount) {
+        if (deletedCount == 0) {
+            return true;
+        }
+        if (ldapCount == 0) {
+            LOGGER.warn("No users are found in LDAP, not deleting " + deletedCount + " synchronized TeamCity users");
+            return false;
+        }
+        if (deletedCount * 100L > (long) synchronizedCount * maxDeletePercent) {
+            LOGGER.warn("Not deleting " + deletedCount + " of " + synchronizedCount + " synchronized TeamCity users as it exceeds "
+                    + KEY_REST_MAX_DELETE_PERCENT + "=" + maxDeletePercent);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the user synchronized before: the same user if it has not changed, null if it has just been created in LDAP
+     */
+    @Nullable
+    private static RemoteUserData getPreviousUser(@NonNull final RemoteUserData user,
+                                                  @NonNull final Map<String, RemoteUserData> previousUsers,
+                                                  @NonNull final Set<String> createdRemoteIds) {
+        final RemoteUserData previous = previousUsers.get(user.getRemoteId());
+        if (previous != null) {
+            return previous;
+        }
+        return createdRemoteIds.contains(user.getRemoteId()) ? null : user;
+    }
+
+    @NonNull
+    private Runnable createCreateTask(@NonNull final RemoteUserData user, @NonNull final Result result) {
+        if (!createUsers) {
+            return result.skipped::incrementAndGet;
+        }
+        return () -> {
+            final Map<String, String> properties = new LinkedHashMap<>();
+            user.getCustomProperties().forEach((name, value) -> {
+                if (propertyNames.contains(name)) {
+                    properties.put(name, value);
+                }
+            });
+            properties.put(remoteIdProperty, user.getRemoteId());
+            call(() -> client.createUser(user.getUsername(), user.getDisplayName(), user.getEmail(), properties));
+            result.created.incrementAndGet();
+        };
+    }
+
+    @NonNull
+    private Runnable createUpdateTask(@NonNull final RemoteUserData user,
+                                      @Nullable final RemoteUserData previous,
+                                      @NonNull final TeamCityRestClient.User teamCityUser,
+                                      @NonNull final Result result) {
+        final List<Request> requests = new ArrayList<>();
+        final long id = teamCityUser.getId();
+        if (!user.getRemoteId().equals(teamCityUser.getProperties().get(remoteIdProperty))) {
+            requests.add(() -> client.setProperty(id, remoteIdProperty, user.getRemoteId()));
+        }
+        if (updateUsers) {
+            if (shouldUpdate(teamCityUser.getName(), user.getDisplayName(), previous != null ? previous.getDisplayName() : null, previous == null)) {
+                requests.add(() -> client.setField(id, "name", user.getDisplayName()));
+            }
+            if (shouldUpdate(teamCityUser.getEmail(), user.getEmail(), previous != null ? previous.getEmail() : null, previous == null)) {
+                requests.add(() -> client.setField(id, "email", user.getEmail()));
+            }
+            final Map<String, String> properties = user.getCustomProperties();
+            final Map<String, String> previousProperties = previous != null ? previous.getCustomProperties() : Collections.emptyMap();
+            for (String name : propertyNames) {
+                if (name.equals(remoteIdProperty)) {
+                    continue;
+                }
+                final String value = properties.get(name);
+                if (shouldUpdate(teamCityUser.getProperties().get(name), value, previousProperties.get(name), previous == null)) {
+                    requests.add(() -> client.setProperty(id, name, value));
+                }
+            }
+            // the username is the key of the login, so it is changed last, after all the other fields are applied
+            if (!user.getUsername().equalsIgnoreCase(teamCityUser.getUsername())) {
+                requests.add(() -> client.setField(id, "username", user.getUsername()));
+            }
+        }
+        if (requests.isEmpty()) {
+            return result.unchanged::incrementAndGet;
+        }
+        return () -> {
+            for (Request request : requests) {
+                call(request);
+            }
+            result.updated.incrementAndGet();
+        };
+    }
+
+    /**
+     * @param created true if the user has just been created in LDAP, so that there is no previously synchronized value
+     */
+    private boolean shouldUpdate(@Nullable final String teamCityValue, @Nullable final String value, @Nullable final String previousValue,
+                                 final boolean created) {
+        if (Objects.equals(normalize(teamCityValue), normalize(value))) {
+            return false;
+        }
+        if (forceUpdate) {
+            return true;
+        }
+        return created ? normalize(teamCityValue) == null : Objects.equals(normalize(teamCityValue), normalize(previousValue));
+    }
+
+    @Nullable
+    private static String normalize(@Nullable final String value) {
+        return StringUtils.hasLength(value) ? value : null;
+    }
+
+    private void submit(@NonNull final ExecutorService executor, @NonNull final Semaphore pending, @NonNull final Runnable task,
+                        @NonNull final String username, @Nullable final String remoteId, @NonNull final Result result) throws InterruptedException {
+        pending.acquire();
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (RequestException e) {
+                if (result.fail(remoteId) <= MAX_LOGGED_FAILURES) {
+                    LOGGER.warn("Cannot apply user '" + username + "' to TeamCity: " + e.getCause().getMessage());
+                } else {
+                    LOGGER.debug("Cannot apply user '" + username + "' to TeamCity", e.getCause());
+                }
+            } finally {
+                pending.release();
+            }
+        });
+    }
+
+    private static void call(@NonNull final Request request) {
+        try {
+            request.call();
+        } catch (IOException e) {
+            throw new RequestException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RequestException(e);
+        }
+    }
+
+    /**
+     * TeamCity users read at once, by remote id and by lowercase username.
+     */
+    private static class TeamCityUsers {
+        @NonNull
+        private final Map<String, TeamCityRestClient.User> byRemoteId = new HashMap<>();
+        @NonNull
+        private final Map<String, TeamCityRestClient.User> byUsername = new HashMap<>();
+    }
+
+    private interface Request {
+        void call() throws IOException, InterruptedException;
+    }
+
+    private static class RequestException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RequestException(@NonNull final Exception cause) {
+            super(cause);
+        }
+    }
+
+    public static class Result {
+        @NonNull
+        private final AtomicInteger created = new AtomicInteger();
+        @NonNull
+        private final AtomicInteger updated = new AtomicInteger();
+        @NonNull
+        private final AtomicInteger unchanged = new AtomicInteger();
+        @NonNull
+        private final AtomicInteger skipped = new AtomicInteger();
+        @NonNull
+        private final AtomicInteger deleted = new AtomicInteger();
+        @NonNull
+        private final AtomicInteger failed = new AtomicInteger();
+        @NonNull
+        private final Set<String> failedRemoteIds = ConcurrentHashMap.newKeySet();
+
+        public int getCreated() {
+            return created.get();
+        }
+
+        public int getUpdated() {
+            return updated.get();
+        }
+
+        public int getUnchanged() {
+            return unchanged.get();
+        }
+
+        /**
+         * @return the number of LDAP users not found in TeamCity which were not created as creating users is disabled
+         */
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        public int getDeleted() {
+            return deleted.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return the remote ids of the LDAP users which failed to be applied, and of the TeamCity users which failed to be deleted
+         */
+        @NonNull
+        public Set<String> getFailedRemoteIds() {
+            return Collections.unmodifiableSet(failedRemoteIds);
+        }
+
+        private int fail(@Nullable final String remoteId) {
+            if (remoteId != null) {
+                failedRemoteIds.add(remoteId);
+            }
+            return failed.incrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "created=" + created +
+                    ", updated=" + updated +
+                    ", unchanged=" + unchanged +
+                    ", skipped=" + skipped +
+                    ", deleted=" + deleted +
+                    ", failed=" + failed +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
+
+import javax.naming.directory.SearchResult;
+import java.util.Map;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Immutable description of how LDAP entries are converted to {@link RemoteUserData}, compiled from {@link LdapProperties} once per synchronization,
+ * so that the conversion of every entry does not access the properties and can run concurrently without locking.
+ * Absent attribute values do not cause exceptions, they are counted in the {@link #getReport() report} of the plan.
+ * Repeated custom property values are interned by the plan, so users converted by the same plan share them.
+ */
+public class UserExtractionPlan {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(UserExtractionPlan.class);
+    @NonNull
+    private static final String USERNAME_PLACEHOLDER = "$username$";
+
+    @Nullable
+    private final String remoteIdAttribute;
+    @Nullable
+    private final String dnAttribute;
+    @NonNull
+    private final String usernameAttribute;
+    /**
+     * Literal parts of the username transformation, the username is inserted between each two of them; null if the username is not transformed.
+     */
+    @Nullable
+    private final String[] usernameTemplate;
+    @NonNull
+    private final String displayNameAttribute;
+    @NonNull
+    private final String emailAttribute;
+    @NonNull
+    private final UserPropertyLayout customPropertyLayout;
+    /**
+     * Attributes of the custom properties in the order of the layout.
+     */
+    @NonNull
+    private final String[] customPropertyAttributes;
+    @NonNull
+    private final ValueDictionary[] customPropertyValues;
+    @NonNull
+    private final AttributeExtractionReport report = new AttributeExtractionReport();
+
+    private UserExtractionPlan(@Nullable final String remoteIdAttribute,
+                               @Nullable final String dnAttribute,
+                               @NonNull final String usernameAttribute,
+                               @Nullable final String[] usernameTemplate,
+                               @NonNull final String displayNameAttribute,
+                               @NonNull final String emailAttribute,
+                               @NonNull final UserPropertyLayout customPropertyLayout,
+                               @NonNull final String[] customPropertyAttributes) {
+        this.remoteIdAttribute = remoteIdAttribute;
+        this.dnAttribute = dnAttribute;
+        this.usernameAttribute = usernameAttribute;
+        this.usernameTemplate = usernameTemplate;
+        this.displayNameAttribute = displayNameAttribute;
+        this.emailAttribute = emailAttribute;
+        this.customPropertyLayout = customPropertyLayout;
+        this.customPropertyAttributes = customPropertyAttributes;
+        this.customPropertyValues = ValueDictionary.create(customPropertyAttributes.length);
+    }
+
+    @NonNull
+    public static UserExtractionPlan compile(@NonNull final LdapProperties ldapProperties) {
+        final String usernameAttribute = getRequiredAttribute(ldapProperties, KEY_USER_USERNAME_ATTR);
+        final String displayNameAttribute = getRequiredAttribute(ldapProperties, KEY_USER_DISPLAY_NAME_ATTR);
+        final String emailAttribute = getRequiredAttribute(ldapProperties, KEY_USER_MAIL_ATTR);
+
+        final String usernameTransform = ldapProperties.getProperty(KEY_USER_USERNAME_TRANSFORM);
+        String[] usernameTemplate = null;
+        if (usernameTransform != null) {
+            usernameTemplate = StringUtils.delimitedListToStringArray(usernameTransform, USERNAME_PLACEHOLDER);
+            LOGGER.info("Usernames are transformed due to setting: " + KEY_USER_USERNAME_TRANSFORM + "=" + usernameTransform);
+        }
+
+        final Map<String, String> customProperties = ldapProperties.getCustomProperties();
+        final UserPropertyLayout customPropertyLayout = UserPropertyLayout.of(customProperties.keySet());
+        final String[] customPropertyAttributes = new String[customPropertyLayout.size()];
+        for (int i = 0; i < customPropertyAttributes.length; i++) {
+            customPropertyAttributes[i] = customProperties.get(customPropertyLayout.getName(i));
+        }
+
+        return new UserExtractionPlan(getOptionalAttribute(ldapProperties, KEY_MEMBER_USER_ID_ATTRIBUTE), getOptionalAttribute(ldapProperties, KEY_DN_ATTR),
+                usernameAttribute, usernameTemplate, displayNameAttribute, emailAttribute, customPropertyLayout, customPropertyAttributes);
+    }
+
+    /**
+     * @return the user, or null if the entry does not have the remote id or the username; absent display name, email
+     * and custom properties are left empty
+     */
+    @Nullable
+    public RemoteUserData convert(@NonNull final SearchResult searchResult) {
+        final String remoteId = getRemoteId(searchResult);
+        final String username = report.getValue(searchResult, usernameAttribute);
+        if (remoteId == null || username == null) {
+            report.entrySkipped();
+            return null;
+        }
+        final String displayName = report.getValue(searchResult, displayNameAttribute);
+        final String email = report.getValue(searchResult, emailAttribute);
+
+        final String[] customProperties = new String[customPropertyAttributes.length];
+        for (int i = 0; i < customPropertyAttributes.length; i++) {
+            customProperties[i] = customPropertyValues[i].intern(report.getValue(searchResult, customPropertyAttributes[i]));
+        }
+        return new RemoteUserData(remoteId, transformUsername(username.toLowerCase()), displayName, email, customPropertyLayout, customProperties);
+    }
+
+    @Nullable
+    public String getRemoteId(@NonNull final SearchResult searchResult) {
+        if (remoteIdAttribute != null) {
+            return report.getValue(searchResult, remoteIdAttribute);
+        }
+        return getDn(searchResult);
+    }
+
+    /**
+     * @return the same remote id as {@link #getRemoteId}, but the failures are not recorded in the report
+     */
+    @Nullable
+    public String peekRemoteId(@NonNull final SearchResult searchResult) {
+        if (remoteIdAttribute != null) {
+            return AttributeExtractionReport.peekValue(searchResult, remoteIdAttribute);
+        }
+        try {
+            return searchResult.getNameInNamespace();
+        } catch (UnsupportedOperationException e) {
+            if (!searchResult.isRelative()) {
+                return searchResult.getName();
+            }
+            return dnAttribute != null ? AttributeExtractionReport.peekValue(searchResult, dnAttribute) : null;
+        }
+    }
+
+    /**
+     * @return the remote id the entry had before it was renamed or moved from {@code previousDn}, or null if it is unknown:
+     * the server does not send the previous value of the remote id attribute, if one is configured
+     */
+    @Nullable
+    public String getPreviousRemoteId(@Nullable final String previousDn) {
+        return remoteIdAttribute == null ? previousDn : null;
+    }
+
+    @Nullable
+    public String getDn(@NonNull final SearchResult searchResult) {
+        try {
+            return searchResult.getNameInNamespace();
+        } catch (UnsupportedOperationException e) {
+            if (!searchResult.isRelative()) {
+                return searchResult.getName();
+            }
+            if (dnAttribute == null) {
+                return null;
+            }
+            LOGGER.debug("Trying to get DN for LDAP entry " + searchResult.getName() + " via attribute, as there was an error retrieving DN via API: " + e.toString());
+            return report.getValue(searchResult, dnAttribute);
+        }
+    }
+
+    /**
+     * @return attribute access failures of all the conversions made with this plan
+     */
+    @NonNull
+    public AttributeExtractionReport getReport() {
+        return report;
+    }
+
+    @NonNull
+    private String transformUsername(@NonNull final String username) {
+        if (usernameTemplate == null) {
+            return username;
+        }
+        final StringBuilder result = new StringBuilder(usernameTemplate[0]);
+        for (int i = 1; i < usernameTemplate.length; i++) {
+            result.append(username).append(usernameTemplate[i]);
+        }
+        return result.toString();
+    }
+
+    @NonNull
+    private static String getRequiredAttribute(@NonNull final LdapProperties ldapProperties, @NonNull final String key) {
+        final String result = getOptionalAttribute(ldapProperties, key);
+        if (result == null) {
+            throw new IllegalArgumentException("Config does not contain parameter '" + key + "'");
+        }
+        return result;
+    }
+
+    @Nullable
+    private static String getOptionalAttribute(@NonNull final LdapProperties ldapProperties, @NonNull final String key) {
+        final String result = ldapProperties.getProperty(key);
+        return StringUtils.hasText(result) ? result.trim() : null;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.springframework.lang.NonNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sorted names of the custom properties, shared by all the users having the same set of properties, which keep only the array of values.
+ * Layouts are interned, so users converted by different plans or read from a snapshot share the layout as long as the names are the same.
+ */
+final class UserPropertyLayout {
+    /**
+     * Sets of names come from the configuration, the limit only guards against callers creating users with arbitrary properties.
+     */
+    private static final int MAX_INTERNED_LAYOUTS = 256;
+    @NonNull
+    private static final Map<List<String>, UserPropertyLayout> LAYOUTS = new ConcurrentHashMap<>();
+    @NonNull
+    static final UserPropertyLayout EMPTY = of(Collections.emptyList());
+
+    @NonNull
+    private final String[] names;
+    @NonNull
+    private final Map<String, Integer> indexes;
+
+    private UserPropertyLayout(@NonNull final String[] names) {
+        this.names = names;
+        final Map<String, Integer> indexes = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            indexes.put(names[i], i);
+        }
+        this.indexes = indexes;
+    }
+
+    @NonNull
+    static UserPropertyLayout of(@NonNull final Collection<String> names) {
+        final String[] sorted = new TreeSet<>(names).toArray(new String[0]);
+        final List<String> key = Arrays.asList(sorted);
+        final UserPropertyLayout existing = LAYOUTS.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        final UserPropertyLayout layout = new UserPropertyLayout(sorted);
+        if (LAYOUTS.size() >= MAX_INTERNED_LAYOUTS) {
+            return layout;
+        }
+        final UserPropertyLayout previous = LAYOUTS.putIfAbsent(key, layout);
+        return previous != null ? previous : layout;
+    }
+
+    /**
+     * @return the layout with the names of this one and the {@code names}
+     */
+    @NonNull
+    UserPropertyLayout with(@NonNull final Collection<String> names) {
+        if (indexes.keySet().containsAll(names)) {
+            return this;
+        }
+        final Set<String> union = new HashSet<>(indexes.keySet());
+        union.addAll(names);
+        return of(union);
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    @NonNull
+    String getName(final int index) {
+        return names[index];
+    }
+
+    /**
+     * @return the index of the property, or -1 if there is no such property in the layout
+     */
+    int indexOf(@NonNull final Object name) {
+        final Integer result = indexes.get(name);
+        return result == null ? -1 : result;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(names);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import jetbrains.buildServer.ldap.api.LdapContext;
+import jetbrains.buildServer.ldap.api.LdapMetrics;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.StringUtils;
+
+import javax.naming.Context;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Base and filter of the user search configured in '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_USER_SOURCES}'.
+ * A source with its own server or credentials is searched over its own {@link LdapContext}, which is closed with the source.
+ */
+class UserSource implements Closeable {
+    @NonNull
+    private final String name;
+    /**
+     * The prefix of the properties of the source, or null for the single source of the default base and filter.
+     */
+    @Nullable
+    private final String prefix;
+    @NonNull
+    private final String base;
+    @NonNull
+    private final String filter;
+    @Nullable
+    private final LdapContext ldapContext;
+    private final boolean ownsLdapContext;
+
+    private UserSource(@NonNull final String name, @Nullable final String prefix, @NonNull final String base, @NonNull final String filter,
+                       @Nullable final LdapContext ldapContext, final boolean ownsLdapContext) {
+        this.name = name;
+        this.prefix = prefix;
+        this.base = base;
+        this.filter = filter;
+        this.ldapContext = ldapContext;
+        this.ownsLdapContext = ownsLdapContext;
+    }
+
+    /**
+     * @return the configured sources in the order of precedence, or the single source of '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_USER_BASE}'
+     * and '{@value jetbrains.buildServer.ldap.api.PropertiesConstants#KEY_USER_SEARCH_FILTER}' if there are none
+     */
+    @NonNull
+    static List<UserSource> fromProperties(@NonNull final LdapProperties ldapProperties, @NonNull final LdapMetrics metrics) {
+        final Set<String> names = new LinkedHashSet<>();
+        for (String name : StringUtils.commaDelimitedListToStringArray(ldapProperties.getProperty(KEY_USER_SOURCES, ""))) {
+            if (StringUtils.hasText(name) && !names.add(name.trim())) {
+                throw new IllegalArgumentException("User source '" + name.trim() + "' is listed twice in '" + KEY_USER_SOURCES + "'");
+            }
+        }
+        if (names.isEmpty()) {
+            return Collections.singletonList(new UserSource("default", null, getBase(ldapProperties, null), getFilter(ldapProperties, null), null, true));
+        }
+
+        final List<UserSource> result = new ArrayList<>(names.size());
+        try {
+            for (String name : names) {
+                final String prefix = KEY_USER_SOURCE_PREFIX + name + ".";
+                final String base = getBase(ldapProperties, prefix);
+                final String filter = getFilter(ldapProperties, prefix);
+                final Map<String, String> connectionOverrides = new HashMap<>();
+                putIfDefined(connectionOverrides, Context.PROVIDER_URL, ldapProperties.getProperty(prefix + "url"));
+                putIfDefined(connectionOverrides, Context.SECURITY_PRINCIPAL, ldapProperties.getProperty(prefix + "principal"));
+                putIfDefined(connectionOverrides, Context.SECURITY_CREDENTIALS, ldapProperties.getProperty(prefix + "credentials"));
+                LdapContext ldapContext = null;
+                if (!connectionOverrides.isEmpty()) {
+                    final LdapProperties sourceProperties = ldapProperties.withOverrides(connectionOverrides);
+                    ldapContext = new LdapContext(sourceProperties, LdapMetrics.fromProperties(metrics.getRegistry(), sourceProperties));
+                }
+                result.add(new UserSource(name, prefix, base, filter, ldapContext, true));
+            }
+        } catch (RuntimeException e) {
+            result.forEach(UserSource::close);
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * @return this source searched with the base and the filter of the given properties, e.g. of a reloaded configuration,
+     * over the same connection; closing the result has no effect, the connection is closed with this source
+     */
+    @NonNull
+    UserSource withSearchOf(@NonNull final LdapProperties properties) {
+        final String newBase = getBase(properties, prefix);
+        final String newFilter = getFilter(properties, prefix);
+        if (newBase.equals(base) && newFilter.equals(filter)) {
+            return this;
+        }
+        return new UserSource(name, prefix, newBase, newFilter, ldapContext, false);
+    }
+
+    @NonNull
+    String getName() {
+        return name;
+    }
+
+    @NonNull
+    String getBase() {
+        return base;
+    }
+
+    @NonNull
+    String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return the context to search this source with, or null if it is searched with the main context
+     */
+    @Nullable
+    LdapContext getLdapContext() {
+        return ldapContext;
+    }
+
+    @Override
+    public void close() {
+        if (ldapContext != null && ownsLdapContext) {
+            ldapContext.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "'" + name + "' (base='" + base + "', filter='" + filter + "'" + (ldapContext != null ? ", own connection" : "") + ")";
+    }
+
+    @NonNull
+    private static String getBase(@NonNull final LdapProperties ldapProperties, @Nullable final String prefix) {
+        final String defaultBase = ldapProperties.getProperty(KEY_USER_BASE);
+        if (prefix == null) {
+            return requireValue(defaultBase, KEY_USER_BASE, false);
+        }
+        final String base = ldapProperties.getProperty(prefix + "base");
+        return base != null ? base : defaultBase != null ? defaultBase : "";
+    }
+
+    @NonNull
+    private static String getFilter(@NonNull final LdapProperties ldapProperties, @Nullable final String prefix) {
+        final String defaultFilter = LdapFetcher.addParenthesesIfNeeded(ldapProperties.getProperty(KEY_USER_SEARCH_FILTER));
+        if (prefix == null) {
+            return requireValue(defaultFilter, KEY_USER_SEARCH_FILTER, true);
+        }
+        final String filter = LdapFetcher.addParenthesesIfNeeded(ldapProperties.getProperty(prefix + "filter"));
+        return requireValue(filter != null ? filter : defaultFilter, prefix + "filter", true);
+    }
+
+    private static void putIfDefined(@NonNull final Map<String, String> map, @NonNull final String key, @Nullable final String value) {
+        if (StringUtils.hasText(value)) {
+            map.put(key, value.trim());
+        }
+    }
+
+    @NonNull
+    private static String requireValue(@Nullable final String value, @NonNull final String key, final boolean nonEmpty) {
+        if (value == null || nonEmpty && !StringUtils.hasText(value)) {
+            throw new IllegalArgumentException("Cannot search users in LDAP as '" + key + "' property is not set" + (nonEmpty ? " or empty" : ""));
+        }
+        return value;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Canonical instances of the values of one attribute, so that users of the same department or location share the string.
+ * The dictionary turns itself off if most of the first values are distinct, as for ids or phone numbers it would only take more heap.
+ */
+final class ValueDictionary {
+    private static final int SAMPLE_SIZE = 1024;
+    private static final int MAX_SIZE = 1 << 16;
+
+    @NonNull
+    private final ConcurrentMap<String, String> values = new ConcurrentHashMap<>();
+    @NonNull
+    private final AtomicInteger lookups = new AtomicInteger();
+    private volatile boolean disabled;
+
+    @Nullable
+    String intern(@Nullable final String value) {
+        if (value == null || disabled) {
+            return value;
+        }
+        final String existing = values.size() < MAX_SIZE ? values.putIfAbsent(value, value) : values.get(value);
+        if (lookups.incrementAndGet() == SAMPLE_SIZE && values.size() > SAMPLE_SIZE / 2) {
+            disabled = true;
+            values.clear();
+        }
+        return existing != null ? existing : value;
+    }
+
+    @NonNull
+    static ValueDictionary[] create(final int count) {
+        final ValueDictionary[] result = new ValueDictionary[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new ValueDictionary();
+        }
+        return result;
+    }
+}
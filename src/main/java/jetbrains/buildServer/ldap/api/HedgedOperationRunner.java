@@ -0,0 +1,222 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap.api;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.ldap.CommunicationException;
+import org.springframework.ldap.ServiceUnavailableException;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.support.LdapUtils;
+
+import javax.naming.InterruptedNamingException;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs LDAP operations when several servers are configured. An operation failing with a connection error before it has returned
+ * any results is repeated once, the connection for the second attempt is opened to another server as the failed one is marked unavailable.
+ * With a positive percentile, an operation which returns no results for longer than that percentile of the recent operations is also
+ * sent to the next fastest server. Every attempt must {@link Attempt#claim claim} the operation before passing results to the callbacks,
+ * so only the attempt which returns results first does it and the other one is cancelled: the callbacks never get the same entry twice.
+ */
+class HedgedOperationRunner implements Closeable {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(HedgedOperationRunner.class);
+    @NonNull
+    private final LdapServerSelector serverSelector;
+    @NonNull
+    private final LdapMetrics metrics;
+    private final int percentile;
+    @NonNull
+    private final LatencyWindow latencies = new LatencyWindow();
+    @Nullable
+    private final ExecutorService executor;
+
+    HedgedOperationRunner(@NonNull final LdapServerSelector serverSelector, @NonNull final LdapMetrics metrics, final int percentile) {
+        this.serverSelector = serverSelector;
+        this.metrics = metrics;
+        this.percentile = Math.min(percentile, 100);
+        executor = percentile > 0 ? Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "ldap-hedged-operation");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    <T> T run(@NonNull final ContextSource contextSource, @NonNull final Operation<T> operation) {
+        final Execution execution = new Execution();
+        try {
+            return run(contextSource, operation, execution);
+        } catch (CommunicationException | ServiceUnavailableException e) {
+            if (execution.winner.get() != null) {
+                // the results have already been passed to the callbacks
+                throw e;
+            }
+            LOGGER.warn("LDAP operation failed with a connection error, repeating it: " + e.getMessage());
+            metrics.recordFailover();
+            return run(contextSource, operation, new Execution());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private <T> T run(@NonNull final ContextSource contextSource, @NonNull final Operation<T> operation, @NonNull final Execution execution) {
+        final long threshold = executor == null ? -1 : latencies.getPercentile(percentile);
+        if (threshold < 0) {
+            return execution.runAttempt(contextSource, operation);
+        }
+        final CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+        final List<Future<T>> attempts = new ArrayList<>(2);
+        try {
+            attempts.add(completionService.submit(() -> execution.runAttempt(contextSource, operation)));
+            if (!execution.firstResult.await(threshold, TimeUnit.NANOSECONDS)) {
+                final ContextSource alternativeContextSource = serverSelector.getAlternativeContextSource();
+                if (alternativeContextSource != null) {
+                    LOGGER.debug("No results from LDAP server in " + TimeUnit.NANOSECONDS.toMillis(threshold) + " ms, sending the operation to " + alternativeContextSource);
+                    metrics.recordHedgedOperation();
+                    attempts.add(completionService.submit(() -> execution.runAttempt(alternativeContextSource, operation)));
+                }
+            }
+            ExecutionException failure = null;
+            for (int i = 0; i < attempts.size(); i++) {
+                try {
+                    return completionService.take().get();
+                } catch (ExecutionException e) {
+                    // the attempt which lost the race fails on claim, the failure of the other one is more relevant
+                    if (failure == null || failure.getCause() instanceof CancellationException) {
+                        failure = e;
+                    }
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw LdapUtils.convertLdapException(new InterruptedNamingException("Interrupted while waiting for LDAP operation"));
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            for (Future<T> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    interface Operation<T> {
+        T run(@NonNull ContextSource contextSource, @NonNull Attempt attempt);
+    }
+
+    /**
+     * Attempts of the same operation, at most one of them returns the results.
+     */
+    private class Execution {
+        private final long start = System.nanoTime();
+        @NonNull
+        private final AtomicReference<Attempt> winner = new AtomicReference<>();
+        @NonNull
+        private final CountDownLatch firstResult = new CountDownLatch(1);
+
+        <T> T runAttempt(@NonNull final ContextSource contextSource, @NonNull final Operation<T> operation) {
+            final RunningAttempt attempt = new RunningAttempt(this);
+            try {
+                final T result = operation.run(contextSource, attempt);
+                // operations without results win when they finish
+                attempt.claim();
+                return result;
+            } finally {
+                firstResult.countDown();
+            }
+        }
+    }
+
+    interface Attempt {
+        /**
+         * Should be called before passing every result to the callbacks.
+         *
+         * @throws CancellationException if another attempt has already returned results
+         */
+        void claim();
+    }
+
+    private class RunningAttempt implements Attempt {
+        @NonNull
+        private final Execution execution;
+
+        RunningAttempt(@NonNull final Execution execution) {
+            this.execution = execution;
+        }
+
+        @Override
+        public void claim() {
+            if (execution.winner.get() == this) {
+                return;
+            }
+            if (!execution.winner.compareAndSet(null, this)) {
+                throw new CancellationException("Another LDAP server has already returned the results");
+            }
+            execution.firstResult.countDown();
+            latencies.add(System.nanoTime() - execution.start);
+        }
+    }
+
+    /**
+     * Time to the first result of the latest operations.
+     */
+    private static class LatencyWindow {
+        private static final int SIZE = 128;
+        private static final int MIN_SAMPLES = 20;
+        @NonNull
+        private final long[] samples = new long[SIZE];
+        private int count;
+        private int next;
+
+        synchronized void add(final long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % SIZE;
+            count = Math.min(count + 1, SIZE);
+        }
+
+        /**
+         * @return the percentile in nanoseconds, or -1 until there are enough samples
+         */
+        synchronized long getPercentile(final int percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, (int) Math.ceil(percentile / 100.0 * count) - 1)];
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap.api;
+
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.pool2.DirContextType;
+import org.springframework.ldap.pool2.validation.DefaultDirContextValidator;
+import org.springframework.ldap.pool2.validation.DirContextValidator;
+import org.springframework.ldap.support.LdapUtils;
+
+import javax.naming.CommunicationException;
+import javax.naming.InterruptedNamingException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of read-only contexts created by the target {@link ContextSource}.
+ * Unlike the Spring LDAP pool, it allows setting request controls on the borrowed contexts (which is needed for paged results):
+ * the controls are reset when the context is returned to the pool. Closing the borrowed context returns it to the pool,
+ * contexts which failed with a connection error or were interrupted are discarded. With a {@link LdapServerSelector}, contexts
+ * connected to a server which is no longer preferred fail the validation and are replaced with contexts connected to the preferred one.
+ */
+public class LdapConnectionPool implements ContextSource, Closeable {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(LdapConnectionPool.class);
+    @NonNull
+    private final ContextSource targetContextSource;
+    @NonNull
+    private final GenericObjectPool<DirContext> pool;
+    @NonNull
+    private final Set<PooledContextInvocationHandler> borrowedContexts = ConcurrentHashMap.newKeySet();
+
+    @Nullable
+    private final LdapServerSelector serverSelector;
+
+    public LdapConnectionPool(@NonNull final ContextSource targetContextSource, @NonNull final GenericObjectPoolConfig<DirContext> poolConfig) {
+        this(targetContextSource, poolConfig, null);
+    }
+
+    public LdapConnectionPool(@NonNull final ContextSource targetContextSource,
+                              @NonNull final GenericObjectPoolConfig<DirContext> poolConfig,
+                              @Nullable final LdapServerSelector serverSelector) {
+        this.targetContextSource = targetContextSource;
+        this.serverSelector = serverSelector;
+        pool = new GenericObjectPool<>(new DirContextFactory(targetContextSource, new DefaultDirContextValidator(), serverSelector), poolConfig);
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        final DirContext context;
+        try {
+            context = pool.borrowObject();
+        } catch (NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot get LDAP connection from the pool", e);
+        }
+        final PooledContextInvocationHandler handler = new PooledContextInvocationHandler(context);
+        borrowedContexts.add(handler);
+        return (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{javax.naming.ldap.LdapContext.class},
+                handler);
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        throw new UnsupportedOperationException("Only read-only contexts are pooled");
+    }
+
+    @Override
+    public DirContext getContext(final String principal, final String credentials) {
+        return targetContextSource.getContext(principal, credentials);
+    }
+
+    /**
+     * Creates idle connections up to the configured minimum.
+     */
+    public void preparePool() {
+        try {
+            pool.preparePool();
+        } catch (NamingException e) {
+            throw LdapUtils.convertLdapException(e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot open LDAP connections", e);
+        }
+    }
+
+    public int getMinIdle() {
+        return pool.getMinIdle();
+    }
+
+    public int getNumActive() {
+        return pool.getNumActive();
+    }
+
+    public int getNumIdle() {
+        return pool.getNumIdle();
+    }
+
+    /**
+     * Makes the currently borrowed contexts be closed instead of returned to the pool, as their operations are being aborted
+     * and the connections may still receive the responses of the abandoned requests.
+     *
+     * @return the number of the borrowed contexts
+     */
+    public int invalidateBorrowedContexts() {
+        int result = 0;
+        for (PooledContextInvocationHandler handler : borrowedContexts) {
+            handler.broken = true;
+            result++;
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    private class PooledContextInvocationHandler implements InvocationHandler {
+        @NonNull
+        private final DirContext target;
+        private volatile boolean broken;
+        private volatile boolean failed;
+        private boolean closed;
+
+        PooledContextInvocationHandler(@NonNull final DirContext target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            final String methodName = method.getName();
+            if (methodName.equals("close")) {
+                release();
+                return null;
+            }
+            if (methodName.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (methodName.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (closed) {
+                throw new IllegalStateException("LDAP context has already been returned to the pool");
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                final Throwable cause = e.getTargetException();
+                if (cause instanceof CommunicationException || cause instanceof ServiceUnavailableException) {
+                    broken = true;
+                    failed = true;
+                } else if (cause instanceof InterruptedNamingException) {
+                    broken = true;
+                }
+                throw cause;
+            }
+        }
+
+        private synchronized void release() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            borrowedContexts.remove(this);
+            if (failed && serverSelector != null) {
+                serverSelector.reportFailure(target);
+            }
+            try {
+                if (broken) {
+                    pool.invalidateObject(target);
+                } else {
+                    pool.returnObject(target);
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Error while returning LDAP connection to the pool", e);
+            }
+        }
+    }
+
+    private static class DirContextFactory extends BasePooledObjectFactory<DirContext> {
+        @NonNull
+        private final ContextSource contextSource;
+        @NonNull
+        private final DirContextValidator validator;
+        @Nullable
+        private final LdapServerSelector serverSelector;
+
+        DirContextFactory(@NonNull final ContextSource contextSource, @NonNull final DirContextValidator validator, @Nullable final LdapServerSelector serverSelector) {
+            this.contextSource = contextSource;
+            this.validator = validator;
+            this.serverSelector = serverSelector;
+        }
+
+        @Override
+        public DirContext create() {
+            LOGGER.debug("Opening new pooled LDAP connection");
+            return contextSource.getReadOnlyContext();
+        }
+
+        @Override
+        public PooledObject<DirContext> wrap(final DirContext context) {
+            return new DefaultPooledObject<>(context);
+        }
+
+        @Override
+        public boolean validateObject(final PooledObject<DirContext> pooledObject) {
+            final DirContext context = pooledObject.getObject();
+            if (serverSelector == null) {
+                return validator.validateDirContext(DirContextType.READ_ONLY, context);
+            }
+            if (!serverSelector.isPreferred(context)) {
+                LOGGER.debug("Replacing pooled LDAP connection as another server is preferred");
+                return false;
+            }
+            if (!validator.validateDirContext(DirContextType.READ_ONLY, context)) {
+                serverSelector.reportFailure(context);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void passivateObject(final PooledObject<DirContext> pooledObject) throws NamingException {
+            final DirContext context = pooledObject.getObject();
+            if (context instanceof javax.naming.ldap.LdapContext) {
+                ((javax.naming.ldap.LdapContext) context).setRequestControls(null);
+            }
+        }
+
+        @Override
+        public void destroyObject(final PooledObject<DirContext> pooledObject) {
+            LOGGER.debug("Closing pooled LDAP connection");
+            LdapUtils.closeContext(pooledObject.getObject());
+        }
+    }
+}
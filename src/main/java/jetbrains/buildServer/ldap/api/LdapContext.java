@@ -16,52 +16,360 @@
 package jetbrains.buildServer.ldap.api;
 
 import jetbrains.buildServer.ldap.LdapProperties;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
 import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.ldap.core.support.LdapContextSource;
 import org.springframework.ldap.core.support.SingleContextSource;
+import org.springframework.ldap.support.LdapUtils;
 
-public class LdapContext {
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Holds the connections to LDAP server. The connections are initialized once and, unless '{@value PropertiesConstants#KEY_POOL_ENABLED}'
+ * is set to false, are kept in a pool and reused by all the searches and synchronization runs until the context is closed.
+ * When several servers are configured, the connections are opened to the fastest available one, see {@link LdapServerSelector}.
+ */
+public class LdapContext implements Closeable {
     @NonNull
     private static final Logger LOGGER = LogManager.getLogger(LdapContext.class);
+    /**
+     * Environment property of the JNDI LDAP provider: when false, the search returns without waiting for the first result.
+     */
+    @NonNull
+    private static final String WAIT_FOR_REPLY = "com.sun.jndi.ldap.search.waitForReply";
     @NonNull
     private final LdapProperties ldapProperties;
     @NonNull
+    private final LdapMetrics metrics;
+    @NonNull
     private final LdapContextSource ldapContextSource = new LdapContextSource();
-
+    /**
+     * Contexts used by the operations in progress which are not taken from the pool, closed when the operations are aborted.
+     */
+    @NonNull
+    private final Set<DirContext> unpooledContexts = ConcurrentHashMap.newKeySet();
+    @Nullable
+    private LdapConnectionPool connectionPool;
+    @Nullable
+    private LdapContextSource listenerContextSource;
+    @Nullable
+    private ContextSource contextSource;
+    @Nullable
+    private LdapServerSelector serverSelector;
+    @Nullable
+    private HedgedOperationRunner operationRunner;
 
     public LdapContext(@NonNull final LdapProperties properties) {
+        this(properties, LdapMetrics.noop());
+    }
+
+    public LdapContext(@NonNull final LdapProperties properties, @NonNull final LdapMetrics metrics) {
         ldapProperties = properties;
+        this.metrics = metrics;
+        metrics.bindConnectionPool(this::getNumActiveConnections, this::getNumIdleConnections);
+    }
+
+    @NonNull
+    public LdapMetrics getMetrics() {
+        return metrics;
     }
 
     public void runLdapCommands(@NonNull final LdapContext.LdapExecutorCallback callback) {
-        final LdapContextSource contextSource = getContextSource();
-        callback.doWithLdapExecutor((baseDN, filter, searchControls) -> {
-            final SingleContextSource singleContextSource;
-            singleContextSource = new SingleContextSource(contextSource.getReadOnlyContext());
-            try {
-                LdapTemplate newLdapTemplate = createNewLdapTemplate(singleContextSource);
-                return LdapSearchUtil.search(newLdapTemplate, baseDN, filter, searchControls);
-            } finally {
-                singleContextSource.destroy();
+        final ContextSource contextSource = getContextSource();
+        callback.doWithLdapExecutor(new LdapExecutor() {
+            @Override
+            public List<SearchResult> search(@NonNull final String baseDN, @NonNull final String filter, @NonNull final SearchControls searchControls) {
+                return runOperation(contextSource, (source, attempt) ->
+                        doWithSingleContext(source, template -> LdapSearchUtil.search(template, baseDN, filter, searchControls, metrics)));
+            }
+
+            @Override
+            public List<SearchResult> pagedSearch(@NonNull final String baseDN, @NonNull final String filter, @NonNull final SearchControls searchControls, final int pageSize) {
+                return runOperation(contextSource, (source, attempt) ->
+                        doWithSingleContext(source, template -> LdapSearchUtil.pagedSearch(template, baseDN, filter, searchControls, pageSize, metrics)));
+            }
+
+            @Override
+            public int pagedSearch(@NonNull final String baseDN, @NonNull final String filter, @NonNull final SearchControls searchControls, final int pageSize,
+                                   @NonNull final SearchResultCallback searchResultCallback) {
+                return runOperation(contextSource, (source, attempt) -> doWithSingleContext(source, template ->
+                        LdapSearchUtil.pagedSearch(template, baseDN, filter, searchControls, pageSize, searchResult -> {
+                            attempt.claim();
+                            searchResultCallback.handleSearchResult(searchResult);
+                        }, metrics)));
+            }
+
+            @Override
+            public int retrieveRangedAttributeValues(@NonNull final String dn, @NonNull final String attributeName, final int startIndex,
+                                                     @NonNull final AttributeValueCallback attributeValueCallback) {
+                return runOperation(contextSource, (source, attempt) -> doWithSingleContext(source, template ->
+                        LdapSearchUtil.retrieveRangedAttributeValues(template, dn, attributeName, startIndex, value -> {
+                            attempt.claim();
+                            attributeValueCallback.handleAttributeValue(value);
+                        })));
             }
         });
     }
 
-    private LdapContextSource getContextSource() {
-        LdapProperties.initLdapContextSource(ldapProperties, ldapContextSource);
-        return ldapContextSource;
+    /**
+     * Opens the minimal number of idle pooled connections, so that the first search does not pay for connect and bind.
+     */
+    public void warmUp() {
+        getContextSource();
+        final LdapConnectionPool pool = connectionPool;
+        if (pool != null) {
+            pool.preparePool();
+            LOGGER.info("Warmed up LDAP connection pool with " + pool.getNumIdle() + " connections");
+        }
+    }
+
+    public int getNumActiveConnections() {
+        final LdapConnectionPool pool = connectionPool;
+        return pool == null ? 0 : pool.getNumActive();
+    }
+
+    public int getNumIdleConnections() {
+        final LdapConnectionPool pool = connectionPool;
+        return pool == null ? 0 : pool.getNumIdle();
+    }
+
+    /**
+     * Called when the operations in progress are interrupted, so that their connections are closed rather than reused:
+     * pooled connections are closed once the operations return them, the others are closed right away. A context with
+     * a search in progress is only closed by JNDI once the search ends, so a read which ignores the interrupt is ended by
+     * the '{@value PropertiesConstants#KEY_JNDI_READ_TIMEOUT}' set from the synchronization timeout.
+     */
+    public void abortOperations() {
+        int aborted = 0;
+        final LdapConnectionPool pool = connectionPool;
+        if (pool != null) {
+            aborted += pool.invalidateBorrowedContexts();
+        }
+        for (DirContext context : unpooledContexts) {
+            if (unpooledContexts.remove(context)) {
+                LdapUtils.closeContext(context);
+                aborted++;
+            }
+        }
+        if (aborted > 0) {
+            LOGGER.warn("Closing " + aborted + " LDAP connections used by the aborted operations");
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+        if (operationRunner != null) {
+            operationRunner.close();
+            operationRunner = null;
+        }
+        if (serverSelector != null) {
+            serverSelector.close();
+            serverSelector = null;
+        }
+        contextSource = null;
+    }
+
+    /**
+     * Runs the persistent search over a dedicated connection, which is not taken from the pool as it is kept open until the search is stopped.
+     * Blocks until the handle passed to {@link ChangeCallback#searchStarted(Closeable)} is closed or the connection fails.
+     */
+    public void listenForChanges(@NonNull final String baseDN,
+                                 @NonNull final String filter,
+                                 @NonNull final SearchControls searchControls,
+                                 @NonNull final ChangeCallback callback) throws NamingException {
+        final DirContext context = getListenerContextSource().getReadOnlyContext();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        try {
+            if (!(context instanceof javax.naming.ldap.LdapContext)) {
+                throw new IllegalStateException("Persistent search is not supported by LDAP context " + context);
+            }
+            ((javax.naming.ldap.LdapContext) context).setRequestControls(new Control[]{new PersistentSearchControl(true)});
+            // the search returns once the request is sent: the server replies only when an entry changes
+            context.addToEnvironment(WAIT_FOR_REPLY, "false");
+            final NamingEnumeration<SearchResult> results = context.search(baseDN, filter, searchControls);
+            LOGGER.info("Started persistent search base='" + baseDN + "', filter='" + filter + "'");
+            callback.searchStarted(() -> {
+                if (stopped.compareAndSet(false, true)) {
+                    LdapUtils.closeContext(context);
+                }
+            });
+            while (!stopped.get() && results.hasMore()) {
+                final SearchResult searchResult = results.next();
+                final PersistentSearchControl.EntryChange change = PersistentSearchControl.getEntryChange(searchResult);
+                callback.entryChanged(searchResult, change != null ? change : new PersistentSearchControl.EntryChange(PersistentSearchControl.ChangeType.MODIFY, null));
+            }
+        } catch (NamingException e) {
+            if (!stopped.get()) {
+                throw e;
+            }
+        } finally {
+            if (stopped.compareAndSet(false, true)) {
+                LdapUtils.closeContext(context);
+            }
+        }
+    }
+
+    /**
+     * With several servers configured, the operation may be repeated or sent to another server, see {@link HedgedOperationRunner}.
+     */
+    private <T> T runOperation(@NonNull final ContextSource contextSource, @NonNull final HedgedOperationRunner.Operation<T> operation) {
+        final HedgedOperationRunner runner = operationRunner;
+        return runner == null ? operation.run(contextSource, () -> {
+        }) : runner.run(contextSource, operation);
+    }
+
+    /**
+     * All the requests of the operation are executed over the same connection, which is required e.g. for paged results.
+     */
+    private <T> T doWithSingleContext(@NonNull final ContextSource contextSource, @NonNull final Function<LdapTemplate, T> operation) {
+        final DirContext context = contextSource.getReadOnlyContext();
+        final boolean unpooled = contextSource != connectionPool && unpooledContexts.add(context);
+        final SingleContextSource singleContextSource = new SingleContextSource(context);
+        try {
+            return operation.apply(createNewLdapTemplate(singleContextSource));
+        } finally {
+            // an aborted operation has its context closed already
+            if (!unpooled || unpooledContexts.remove(context)) {
+                singleContextSource.destroy();
+            }
+        }
+    }
+
+    /**
+     * The persistent search waits for changes as long as it runs, so its connection is opened without the read timeout
+     * of the other operations, to any of the servers in the configured order.
+     */
+    @NonNull
+    private synchronized ContextSource getListenerContextSource() {
+        if (listenerContextSource == null) {
+            final LdapContextSource source = new LdapContextSource();
+            LdapProperties.initLdapContextSource(ldapProperties.withOverrides(Collections.singletonMap(KEY_JNDI_READ_TIMEOUT, "0")), source);
+            listenerContextSource = source;
+        }
+        return listenerContextSource;
+    }
+
+    @NonNull
+    private synchronized ContextSource getContextSource() {
+        if (contextSource == null) {
+            LdapProperties.initLdapContextSource(ldapProperties, ldapContextSource);
+            ContextSource targetContextSource = ldapContextSource;
+            final String[] urls = LdapProperties.getServerUrls(ldapProperties);
+            if (urls.length > 1) {
+                serverSelector = new LdapServerSelector(ldapProperties, urls, metrics);
+                serverSelector.probe();
+                serverSelector.start();
+                operationRunner = new HedgedOperationRunner(serverSelector, metrics, ldapProperties.getInt(KEY_SERVERS_HEDGE_PERCENTILE, 0));
+                targetContextSource = serverSelector;
+            }
+            final ContextSource timedContextSource = new TimedContextSource(targetContextSource);
+            if (ldapProperties.getBoolean(KEY_POOL_ENABLED)) {
+                connectionPool = createConnectionPool(timedContextSource);
+                contextSource = connectionPool;
+            } else {
+                contextSource = timedContextSource;
+            }
+        }
+        return contextSource;
+    }
+
+    @NonNull
+    private LdapConnectionPool createConnectionPool(@NonNull final ContextSource targetContextSource) {
+        final GenericObjectPoolConfig<DirContext> poolConfig = new GenericObjectPoolConfig<>();
+        poolConfig.setMinIdle(ldapProperties.getInt(KEY_POOL_MIN_IDLE, 0));
+        poolConfig.setMaxIdle(ldapProperties.getInt(KEY_POOL_MAX_IDLE, 8));
+        poolConfig.setMaxTotal(ldapProperties.getInt(KEY_POOL_MAX_TOTAL, 8));
+        poolConfig.setMaxWaitMillis(ldapProperties.getLong(KEY_POOL_MAX_WAIT, -1));
+        poolConfig.setTestOnBorrow(ldapProperties.getBoolean(KEY_POOL_TEST_ON_BORROW));
+        poolConfig.setTestWhileIdle(ldapProperties.getBoolean(KEY_POOL_TEST_WHILE_IDLE));
+        poolConfig.setTimeBetweenEvictionRunsMillis(ldapProperties.getLong(KEY_POOL_EVICTION_INTERVAL, -1));
+        poolConfig.setMinEvictableIdleTimeMillis(ldapProperties.getLong(KEY_POOL_MIN_EVICTABLE_IDLE_TIME, 300000));
+        poolConfig.setJmxEnabled(false);
+
+        LOGGER.info("Creating LDAP connection pool: minIdle=" + poolConfig.getMinIdle() + ", maxIdle=" + poolConfig.getMaxIdle() +
+                ", maxTotal=" + poolConfig.getMaxTotal());
+        return new LdapConnectionPool(targetContextSource, poolConfig, serverSelector);
     }
 
     private LdapTemplate createNewLdapTemplate(final ContextSource contextSource) {
-        LOGGER.info("Creating new LdapTemplate from " + contextSource.toString());
+        LOGGER.debug("Creating new LdapTemplate from " + contextSource.toString());
         return new LdapTemplate(contextSource);
     }
 
+    /**
+     * Records the time of opening and binding new connections.
+     */
+    private class TimedContextSource implements ContextSource {
+        @NonNull
+        private final ContextSource target;
+
+        TimedContextSource(@NonNull final ContextSource target) {
+            this.target = target;
+        }
+
+        @Override
+        public DirContext getReadOnlyContext() {
+            final long start = System.nanoTime();
+            final DirContext result = target.getReadOnlyContext();
+            metrics.recordConnect(System.nanoTime() - start);
+            return result;
+        }
+
+        @Override
+        public DirContext getReadWriteContext() {
+            final long start = System.nanoTime();
+            final DirContext result = target.getReadWriteContext();
+            metrics.recordConnect(System.nanoTime() - start);
+            return result;
+        }
+
+        @Override
+        public DirContext getContext(final String principal, final String credentials) {
+            final long start = System.nanoTime();
+            final DirContext result = target.getContext(principal, credentials);
+            metrics.recordConnect(System.nanoTime() - start);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return target.toString();
+        }
+    }
+
     public interface LdapExecutorCallback {
         void doWithLdapExecutor(@NonNull LdapExecutor executor);
     }
+
+    public interface ChangeCallback {
+        /**
+         * Called once the search request is sent to the server, closing the {@code searchHandle} stops the search.
+         */
+        void searchStarted(@NonNull Closeable searchHandle);
+
+        void entryChanged(@NonNull SearchResult searchResult, @NonNull PersistentSearchControl.EntryChange change);
+    }
 }
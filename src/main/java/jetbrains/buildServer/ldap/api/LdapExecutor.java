@@ -23,4 +23,35 @@ import java.util.List;
 
 public interface LdapExecutor {
     List<SearchResult> search(@NonNull String baseDN, @NonNull String filter, @NonNull final SearchControls searchControls);
+
+    /**
+     * Same as {@link #search(String, String, SearchControls)}, but retrieves results in pages of {@code pageSize} entries
+     * using the Simple Paged Results control (RFC 2696). Non-positive {@code pageSize} disables paging.
+     */
+    List<SearchResult> pagedSearch(@NonNull String baseDN, @NonNull String filter, @NonNull final SearchControls searchControls, int pageSize);
+
+    /**
+     * Same as {@link #pagedSearch(String, String, SearchControls, int)}, but hands every entry to the {@code callback}
+     * as soon as it is read, so that at most one page of raw search results is kept in memory.
+     *
+     * @return the number of processed entries
+     */
+    int pagedSearch(@NonNull String baseDN, @NonNull String filter, @NonNull final SearchControls searchControls, int pageSize,
+                    @NonNull SearchResultCallback callback);
+
+    /**
+     * Retrieves the values of the multi-valued attribute returned in ranges (like 'member;range=0-1499' in Active Directory)
+     * starting with the value with index {@code startIndex}, see {@link LdapSearchUtil#processRangedAttribute}.
+     *
+     * @return the number of retrieved values
+     */
+    int retrieveRangedAttributeValues(@NonNull String dn, @NonNull String attributeName, int startIndex, @NonNull AttributeValueCallback callback);
+
+    interface SearchResultCallback {
+        void handleSearchResult(@NonNull SearchResult searchResult);
+    }
+
+    interface AttributeValueCallback {
+        void handleAttributeValue(@NonNull Object value);
+    }
 }
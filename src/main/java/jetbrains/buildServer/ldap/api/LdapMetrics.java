@@ -0,0 +1,246 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap.api;
+
+import io.micrometer.core.instrument.*;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import jetbrains.buildServer.ldap.LdapProperties;
+import org.springframework.lang.NonNull;
+
+import javax.naming.Context;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Meters of the synchronization: connect and bind time, search and page latency, retrieved and converted entries,
+ * attribute access failures, pool usage, server health and synchronization duration. All the meters are tagged with the LDAP server URL,
+ * search meters are also tagged with the search base, server health meters with the URL of the single server.
+ */
+public class LdapMetrics {
+    @NonNull
+    private static final String URL_TAG = "url";
+    @NonNull
+    private static final String BASE_TAG = "base";
+    @NonNull
+    private static final String SERVER_TAG = "server";
+
+    @NonNull
+    private final MeterRegistry registry;
+    @NonNull
+    private final Tags tags;
+    @NonNull
+    private final Timer connectTimer;
+    @NonNull
+    private final AtomicLong lastConversionThroughput = new AtomicLong();
+    @NonNull
+    private final AtomicLong lastSyncSuccessTime = new AtomicLong();
+    @NonNull
+    private final AtomicLong lastSyncUsers = new AtomicLong();
+    @NonNull
+    private final AtomicLong lastSyncGroups = new AtomicLong();
+
+    public LdapMetrics(@NonNull final MeterRegistry registry, @NonNull final String serverUrl) {
+        this.registry = registry;
+        this.tags = Tags.of(URL_TAG, serverUrl);
+        connectTimer = Timer.builder("ldap.connect")
+                .description("Time to open and bind a new LDAP connection")
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(registry);
+        Gauge.builder("ldap.users.conversion.throughput", lastConversionThroughput, AtomicLong::get)
+                .description("Entries per second converted by the latest users search")
+                .tags(tags)
+                .register(registry);
+        Gauge.builder("ldap.sync.last.success", lastSyncSuccessTime, AtomicLong::get)
+                .description("Time of the latest successful synchronization, seconds since the epoch")
+                .baseUnit("seconds")
+                .tags(tags)
+                .register(registry);
+        Gauge.builder("ldap.sync.users", lastSyncUsers, AtomicLong::get)
+                .description("Users retrieved by the latest successful synchronization")
+                .tags(tags)
+                .register(registry);
+        Gauge.builder("ldap.sync.groups", lastSyncGroups, AtomicLong::get)
+                .description("Groups retrieved by the latest successful synchronization")
+                .tags(tags)
+                .register(registry);
+    }
+
+    /**
+     * @return metrics tagged with the server URL of the {@code ldapProperties}
+     */
+    @NonNull
+    public static LdapMetrics fromProperties(@NonNull final MeterRegistry registry, @NonNull final LdapProperties ldapProperties) {
+        final String url = ldapProperties.getProperty(Context.PROVIDER_URL);
+        return new LdapMetrics(registry, url == null ? "" : url.trim());
+    }
+
+    /**
+     * @return metrics which are not published anywhere
+     */
+    @NonNull
+    public static LdapMetrics noop() {
+        return new LdapMetrics(new CompositeMeterRegistry(), "");
+    }
+
+    @NonNull
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    public void recordConnect(final long nanos) {
+        connectTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordSearch(@NonNull final String base, final long nanos, final int entries, final boolean success) {
+        Timer.builder("ldap.search")
+                .description("Duration of LDAP searches including all the pages")
+                .tags(tags).tag(BASE_TAG, base).tag("result", success ? "success" : "failure")
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        Counter.builder("ldap.search.entries")
+                .description("Entries returned by LDAP searches")
+                .tags(tags).tag(BASE_TAG, base)
+                .register(registry)
+                .increment(entries);
+    }
+
+    public void recordPage(@NonNull final String base, final long nanos) {
+        Timer.builder("ldap.search.page")
+                .description("Time to retrieve a single page of paged LDAP searches")
+                .tags(tags).tag(BASE_TAG, base)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordConversion(final int entries, final long nanos) {
+        Timer.builder("ldap.users.conversion")
+                .description("Time spent converting LDAP entries to users")
+                .tags(tags)
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        Counter.builder("ldap.users.converted")
+                .description("LDAP entries converted to users")
+                .tags(tags)
+                .register(registry)
+                .increment(entries);
+        lastConversionThroughput.set((long) (entries * 1e9 / Math.max(1, nanos)));
+    }
+
+    /**
+     * @param entryType 'user' or 'group'
+     */
+    public void recordAttributeFailures(@NonNull final String entryType, @NonNull final String attributeName, @NonNull final String reason, final long count) {
+        Counter.builder("ldap.attribute.failures")
+                .description("Entries whose attribute value was absent or could not be read")
+                .tags(tags).tag("entry", entryType).tag("attribute", attributeName).tag("reason", reason)
+                .register(registry)
+                .increment(count);
+    }
+
+    public void recordSkippedEntries(@NonNull final String entryType, final long count) {
+        Counter.builder("ldap.entries.skipped")
+                .description("Entries skipped as their required attributes are absent")
+                .tags(tags).tag("entry", entryType)
+                .register(registry)
+                .increment(count);
+    }
+
+    public void recordSync(final long nanos, final boolean success, final int users, final int groups) {
+        Timer.builder("ldap.sync.duration")
+                .description("Duration of synchronization runs")
+                .tags(tags).tag("result", success ? "success" : "failure")
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+        if (success) {
+            lastSyncSuccessTime.set(System.currentTimeMillis() / 1000);
+            lastSyncUsers.set(users);
+            lastSyncGroups.set(groups);
+        }
+    }
+
+    public void recordFetchRetry(@NonNull final String base) {
+        Counter.builder("ldap.fetch.retries")
+                .description("Users searches repeated after a connection error or an unavailable server")
+                .tags(tags).tag(BASE_TAG, base)
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * @param status HTTP status of the response, or -1 if there was none
+     */
+    public void recordRestRequest(@NonNull final String method, final int status, final long nanos) {
+        Timer.builder("teamcity.rest.requests")
+                .description("TeamCity REST API requests applying the synchronization result")
+                .tags(tags).tag("method", method).tag("status", status < 0 ? "none" : String.valueOf(status))
+                .register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordApply(final int created, final int updated, final int deleted, final int failed) {
+        recordAppliedUsers("created", created);
+        recordAppliedUsers("updated", updated);
+        recordAppliedUsers("deleted", deleted);
+        recordAppliedUsers("failed", failed);
+    }
+
+    public void recordFailover() {
+        Counter.builder("ldap.server.failovers")
+                .description("Operations repeated on another server after a connection error")
+                .tags(tags)
+                .register(registry)
+                .increment();
+    }
+
+    public void recordHedgedOperation() {
+        Counter.builder("ldap.server.hedged")
+                .description("Operations also sent to another server as the first one was slower than usual")
+                .tags(tags)
+                .register(registry)
+                .increment();
+    }
+
+    public void bindServer(@NonNull final String serverUrl, @NonNull final Supplier<Number> latencyMillis, @NonNull final Supplier<Number> healthy) {
+        Gauge.builder("ldap.server.latency", latencyMillis)
+                .description("Smoothed latency of the server probes, -1 until the first successful probe")
+                .baseUnit("milliseconds")
+                .tags(tags).tag(SERVER_TAG, serverUrl)
+                .register(registry);
+        Gauge.builder("ldap.server.healthy", healthy)
+                .description("1 if the server responded to the latest probe and connections, 0 otherwise")
+                .tags(tags).tag(SERVER_TAG, serverUrl)
+                .register(registry);
+    }
+
+    public void bindConnectionPool(@NonNull final Supplier<Number> activeConnections, @NonNull final Supplier<Number> idleConnections) {
+        Gauge.builder("ldap.pool.active", activeConnections).description("Borrowed LDAP connections").tags(tags).register(registry);
+        Gauge.builder("ldap.pool.idle", idleConnections).description("Idle LDAP connections in the pool").tags(tags).register(registry);
+    }
+
+    private void recordAppliedUsers(@NonNull final String result, final int count) {
+        Counter.builder("teamcity.users.applied")
+                .description("Users applied to TeamCity by the synchronization")
+                .tags(tags).tag("result", result)
+                .register(registry)
+                .increment(count);
+    }
+}
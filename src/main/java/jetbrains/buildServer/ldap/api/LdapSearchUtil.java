@@ -9,37 +9,39 @@ import org.apache.logging.log4j.Logger;
 import org.springframework.lang.NonNull;
 import org.springframework.lang.Nullable;
 import org.springframework.ldap.LimitExceededException;
+import org.springframework.ldap.control.PagedResultsDirContextProcessor;
+import org.springframework.ldap.core.AttributesMapper;
 import org.springframework.ldap.core.CollectingNameClassPairCallbackHandler;
 import org.springframework.ldap.core.LdapOperations;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
 
 import javax.naming.NameClassPair;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.function.IntSupplier;
 
 public abstract class LdapSearchUtil {
     @NonNull
     private static final Logger LOGGER = LogManager.getLogger(LdapSearchUtil.class);
+    @NonNull
+    private static final String RANGE_OPTION = ";range=";
 
     public static List<SearchResult> search(@NonNull final LdapOperations template,
                                             @NonNull final String base,
                                             @NonNull final String filter,
-                                            @NonNull final SearchControls searchControls) {
-        final CollectingNameClassPairCallbackHandler<SearchResult> callback = new CollectingNameClassPairCallbackHandler<SearchResult>() {
-            @Override
-            public SearchResult getObjectFromNameClassPair(NameClassPair nameClassPair) {
-                String dn = "";
-                try {
-                    dn = ". Distinguished name: " + nameClassPair.getNameInNamespace();
-                } catch (UnsupportedOperationException e) {
-                    LOGGER.error("Got exception while trying to get dn from " + nameClassPair, e);
-                }
-                LOGGER.info("LDAP search result: " + nameClassPair.toString() + dn);
-                return (SearchResult) nameClassPair;
-            }
-        };
+                                            @NonNull final SearchControls searchControls,
+                                            @NonNull final LdapMetrics metrics) {
+        final CollectingNameClassPairCallbackHandler<SearchResult> callback = createCollectingCallback();
 
+        final long start = System.nanoTime();
         try {
             try {
                 final String searchDescription = getSearchDescription(base, filter, searchControls);
@@ -52,11 +54,240 @@ public abstract class LdapSearchUtil {
             }
         } catch (Exception e) {
             LOGGER.error(e);
+            metrics.recordSearch(base, System.nanoTime() - start, callback.getList().size(), false);
             throw e;
         }
+        metrics.recordSearch(base, System.nanoTime() - start, callback.getList().size(), true);
+        return callback.getList();
+    }
+
+    /**
+     * Searches using the Simple Paged Results control (RFC 2696), so that the server never has to return
+     * more than {@code pageSize} entries in a single response and server-side size limits are not hit.
+     * All the pages must be requested over the same connection, so the {@code template} should be backed by a single context.
+     */
+    public static List<SearchResult> pagedSearch(@NonNull final LdapOperations template,
+                                                 @NonNull final String base,
+                                                 @NonNull final String filter,
+                                                 @NonNull final SearchControls searchControls,
+                                                 final int pageSize,
+                                                 @NonNull final LdapMetrics metrics) {
+        if (pageSize <= 0) {
+            return search(template, base, filter, searchControls, metrics);
+        }
+        final CollectingNameClassPairCallbackHandler<SearchResult> callback = createCollectingCallback();
+        doPagedSearch(template, base, filter, searchControls, pageSize, callback, () -> callback.getList().size(), metrics);
         return callback.getList();
     }
 
+    /**
+     * Same as {@link #pagedSearch(LdapOperations, String, String, SearchControls, int, LdapMetrics)}, but passes every entry to the {@code callback}
+     * as soon as it is read from the connection instead of collecting all of them in memory.
+     *
+     * @return the number of processed entries
+     */
+    public static int pagedSearch(@NonNull final LdapOperations template,
+                                  @NonNull final String base,
+                                  @NonNull final String filter,
+                                  @NonNull final SearchControls searchControls,
+                                  final int pageSize,
+                                  @NonNull final LdapExecutor.SearchResultCallback callback,
+                                  @NonNull final LdapMetrics metrics) {
+        final StreamingCallbackHandler handler = new StreamingCallbackHandler(callback);
+        if (pageSize <= 0) {
+            final String searchDescription = getSearchDescription(base, filter, searchControls);
+            final long start = System.nanoTime();
+            try {
+                LOGGER.info("Starting to search " + searchDescription);
+                template.search(base, filter, searchControls, handler);
+                LOGGER.info("Processed " + handler.getCount() + " search results for search " + searchDescription);
+            } catch (CancellationException e) {
+                LOGGER.info("Search " + searchDescription + " is cancelled after " + handler.getCount() + " search results");
+                metrics.recordSearch(base, System.nanoTime() - start, handler.getCount(), false);
+                throw e;
+            } catch (Exception e) {
+                LOGGER.error(e);
+                metrics.recordSearch(base, System.nanoTime() - start, handler.getCount(), false);
+                throw e;
+            }
+            metrics.recordSearch(base, System.nanoTime() - start, handler.getCount(), true);
+        } else {
+            doPagedSearch(template, base, filter, searchControls, pageSize, handler, handler::getCount, metrics);
+        }
+        return handler.getCount();
+    }
+
+    private static void doPagedSearch(@NonNull final LdapOperations template,
+                                      @NonNull final String base,
+                                      @NonNull final String filter,
+                                      @NonNull final SearchControls searchControls,
+                                      final int pageSize,
+                                      @NonNull final NameClassPairCallbackHandler handler,
+                                      @NonNull final IntSupplier resultsCount,
+                                      @NonNull final LdapMetrics metrics) {
+        final PagedResultsDirContextProcessor processor = new PagedResultsDirContextProcessor(pageSize);
+
+        final String searchDescription = getSearchDescription(base, filter, searchControls) + ", pageSize=" + pageSize;
+        int pages = 0;
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            LOGGER.info("Starting to search " + searchDescription);
+            do {
+                final long pageStart = System.nanoTime();
+                template.search(base, filter, searchControls, handler, processor);
+                metrics.recordPage(base, System.nanoTime() - pageStart);
+                pages++;
+                LOGGER.debug("Got page #" + pages + ", " + resultsCount.getAsInt() + " search results in total");
+            } while (processor.hasMore());
+            LOGGER.info("Found " + resultsCount.getAsInt() + " search results in " + pages + " pages for search " + searchDescription);
+            success = true;
+        } catch (LimitExceededException e) {
+            LOGGER.error("Size limit exceeded after " + pages + " pages (" + resultsCount.getAsInt() + " search results) for search " + searchDescription +
+                    ", consider decreasing '" + PropertiesConstants.KEY_SEARCH_PAGE_SIZE + "'", e);
+            throw e;
+        } catch (CancellationException e) {
+            // the consumer of the streamed results has stopped the search
+            LOGGER.info("Search " + searchDescription + " is cancelled after " + pages + " pages (" + resultsCount.getAsInt() + " search results)");
+            throw e;
+        } catch (Exception e) {
+            LOGGER.error(e);
+            throw e;
+        } finally {
+            metrics.recordSearch(base, System.nanoTime() - start, resultsCount.getAsInt(), success);
+        }
+    }
+
+    @NonNull
+    private static CollectingNameClassPairCallbackHandler<SearchResult> createCollectingCallback() {
+        return new CollectingNameClassPairCallbackHandler<SearchResult>() {
+            @Override
+            public SearchResult getObjectFromNameClassPair(NameClassPair nameClassPair) {
+                if (LOGGER.isTraceEnabled()) {
+                    String dn = "";
+                    try {
+                        dn = ". Distinguished name: " + nameClassPair.getNameInNamespace();
+                    } catch (UnsupportedOperationException e) {
+                        LOGGER.error("Got exception while trying to get dn from " + nameClassPair, e);
+                    }
+                    LOGGER.trace("LDAP search result: " + nameClassPair.toString() + dn);
+                }
+                return (SearchResult) nameClassPair;
+            }
+        };
+    }
+
+    /**
+     * Passes the values of the {@code attributeName} attribute to the {@code callback}. Servers like Active Directory return only
+     * a range of values of huge multi-valued attributes with the attribute id like 'member;range=0-1499', the rest should
+     * be requested with {@link #retrieveRangedAttributeValues}.
+     *
+     * @return the index of the next value to request, or -1 if all the values have been retrieved
+     */
+    public static int processRangedAttribute(@NonNull final Attributes attributes,
+                                             @NonNull final String attributeName,
+                                             @NonNull final LdapExecutor.AttributeValueCallback callback) throws NamingException {
+        final Attribute plainAttribute = attributes.get(attributeName);
+        if (plainAttribute != null) {
+            processAttributeValues(plainAttribute, callback);
+            return -1;
+        }
+        final String rangePrefix = (attributeName + RANGE_OPTION).toLowerCase(Locale.ROOT);
+        final NamingEnumeration<String> ids = attributes.getIDs();
+        try {
+            while (ids.hasMore()) {
+                final String id = ids.next();
+                if (!id.toLowerCase(Locale.ROOT).startsWith(rangePrefix)) {
+                    continue;
+                }
+                processAttributeValues(attributes.get(id), callback);
+                final String range = id.substring(rangePrefix.length());
+                final int separator = range.indexOf('-');
+                final String high = separator < 0 ? "*" : range.substring(separator + 1);
+                if (high.equals("*")) {
+                    return -1;
+                }
+                try {
+                    return Integer.parseInt(high) + 1;
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Unexpected range in attribute '" + id + "'", e);
+                }
+            }
+        } finally {
+            ids.close();
+        }
+        return -1;
+    }
+
+    /**
+     * Retrieves the values of the ranged attribute starting with {@code startIndex}. Every range is requested only after the previous one
+     * is received, as the server decides how many values it returns, and the values are passed to the {@code callback} as soon as
+     * each range arrives, so at most one range of values is kept in memory.
+     *
+     * @return the number of retrieved values
+     */
+    public static int retrieveRangedAttributeValues(@NonNull final LdapOperations template,
+                                                    @NonNull final String dn,
+                                                    @NonNull final String attributeName,
+                                                    final int startIndex,
+                                                    @NonNull final LdapExecutor.AttributeValueCallback callback) {
+        final int[] count = new int[1];
+        final LdapExecutor.AttributeValueCallback countingCallback = value -> {
+            count[0]++;
+            callback.handleAttributeValue(value);
+        };
+        int requests = 0;
+        int next = startIndex;
+        while (next >= 0) {
+            final int from = next;
+            final Integer result = template.lookup(dn, new String[]{attributeName + RANGE_OPTION + from + "-*"},
+                    (AttributesMapper<Integer>) attributes -> processRangedAttribute(attributes, attributeName, countingCallback));
+            requests++;
+            next = result == null ? -1 : result;
+            if (next >= 0 && next <= from) {
+                throw new IllegalStateException("LDAP server returned no values for range starting at " + from + " of attribute '" + attributeName + "' of " + dn);
+            }
+        }
+        LOGGER.debug("Retrieved " + count[0] + " values of attribute '" + attributeName + "' of " + dn + " in " + requests + " range requests");
+        return count[0];
+    }
+
+    private static void processAttributeValues(@NonNull final Attribute attribute,
+                                               @NonNull final LdapExecutor.AttributeValueCallback callback) throws NamingException {
+        final NamingEnumeration<?> values = attribute.getAll();
+        try {
+            while (values.hasMore()) {
+                final Object value = values.next();
+                if (value != null) {
+                    callback.handleAttributeValue(value);
+                }
+            }
+        } finally {
+            values.close();
+        }
+    }
+
+    private static class StreamingCallbackHandler implements NameClassPairCallbackHandler {
+        @NonNull
+        private final LdapExecutor.SearchResultCallback callback;
+        private int count;
+
+        StreamingCallbackHandler(@NonNull final LdapExecutor.SearchResultCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void handleNameClassPair(final NameClassPair nameClassPair) {
+            LOGGER.debug("LDAP search result: {}", nameClassPair::getName);
+            count++;
+            callback.handleSearchResult((SearchResult) nameClassPair);
+        }
+
+        int getCount() {
+            return count;
+        }
+    }
+
     @NonNull
     public static SearchControls getDefaultSearchControls(final @Nullable String[] attributes) {
         SearchControls searchControls = new SearchControls();
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap.api;
+
+import jetbrains.buildServer.ldap.LdapProperties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.ldap.CommunicationException;
+import org.springframework.ldap.ServiceUnavailableException;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.ldap.support.LdapUtils;
+
+import javax.naming.InterruptedNamingException;
+import javax.naming.directory.DirContext;
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+
+/**
+ * Chooses one of the servers listed in '{@value javax.naming.Context#PROVIDER_URL}' for every new connection. The servers are probed
+ * in the background (connect, bind and read of the base entry), and connections are opened to the healthy server with the lowest
+ * probe latency, falling back to the others in the order of preference. A server is considered unavailable after a failed or timed out
+ * probe or a connection error, until the next successful probe.
+ */
+public class LdapServerSelector implements ContextSource, Closeable {
+    @NonNull
+    private static final Logger LOGGER = LogManager.getLogger(LdapServerSelector.class);
+    @NonNull
+    private static final String[] PROBE_ATTRIBUTES = {"objectClass"};
+    /**
+     * Weight of the latest probe in the smoothed latency.
+     */
+    private static final double LATENCY_SMOOTHING = 0.3;
+    /**
+     * Connections to a healthy server are kept unless another one is faster by more than that, so that the connections are not
+     * reopened because of the jitter of the probes.
+     */
+    private static final double SWITCH_RATIO = 0.8;
+
+    @NonNull
+    private final List<Server> servers = new ArrayList<>();
+    @NonNull
+    private final Map<DirContext, Server> contextServers = Collections.synchronizedMap(new WeakHashMap<>());
+    private final long probeInterval;
+    private final long probeTimeout;
+    @NonNull
+    private final ExecutorService probeExecutor = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "ldap-server-probe");
+        thread.setDaemon(true);
+        return thread;
+    });
+    @Nullable
+    private ScheduledExecutorService scheduler;
+    @Nullable
+    private volatile Server preferredServer;
+
+    public LdapServerSelector(@NonNull final LdapProperties properties, @NonNull final String[] urls, @NonNull final LdapMetrics metrics) {
+        for (String url : urls) {
+            final LdapContextSource contextSource = new LdapContextSource();
+            LdapProperties.initLdapContextSource(properties, contextSource, new String[]{url});
+            final Server server = new Server(url, contextSource);
+            servers.add(server);
+            metrics.bindServer(url, () -> Double.isNaN(server.latencyMillis) ? -1 : server.latencyMillis, () -> server.healthy ? 1 : 0);
+        }
+        probeInterval = properties.getLong(KEY_SERVERS_PROBE_INTERVAL, 0);
+        probeTimeout = properties.getLong(KEY_SERVERS_PROBE_TIMEOUT, 5000);
+    }
+
+    /**
+     * Probes the servers in the background every '{@value PropertiesConstants#KEY_SERVERS_PROBE_INTERVAL}' milliseconds.
+     */
+    public synchronized void start() {
+        if (scheduler != null || probeInterval <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "ldap-server-probe-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::probe, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Probes all the servers concurrently and waits for at most '{@value PropertiesConstants#KEY_SERVERS_PROBE_TIMEOUT}' milliseconds.
+     * A server whose previous probe has not finished yet is not probed again.
+     */
+    public void probe() {
+        final Map<Server, Future<?>> probes = new LinkedHashMap<>();
+        for (Server server : servers) {
+            if (server.probing.compareAndSet(false, true)) {
+                try {
+                    probes.put(server, probeExecutor.submit(() -> probe(server)));
+                } catch (RejectedExecutionException e) {
+                    server.probing.set(false);
+                    return;
+                }
+            }
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(probeTimeout);
+        for (Map.Entry<Server, Future<?>> probe : probes.entrySet()) {
+            try {
+                probe.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                markFailed(probe.getKey(), "no response in " + probeTimeout + " ms");
+                probe.getValue().cancel(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                LOGGER.warn("Error while probing LDAP server " + probe.getKey().url, e.getCause());
+            }
+        }
+        updatePreferredServer();
+    }
+
+    @Override
+    public DirContext getReadOnlyContext() {
+        return connect(LdapContextSource::getReadOnlyContext);
+    }
+
+    @Override
+    public DirContext getReadWriteContext() {
+        return connect(LdapContextSource::getReadWriteContext);
+    }
+
+    @Override
+    public DirContext getContext(final String principal, final String credentials) {
+        return connect(contextSource -> contextSource.getContext(principal, credentials));
+    }
+
+    /**
+     * @return false if the context is connected to an unavailable server or to a server noticeably slower than another healthy one,
+     * so that the pooled context should be replaced
+     */
+    public boolean isPreferred(@NonNull final DirContext context) {
+        final Server server = contextServers.get(context);
+        if (server == null) {
+            return true;
+        }
+        final Server best = getServersByPreference().get(0);
+        if (best == server || !best.healthy) {
+            return true;
+        }
+        return server.healthy && !(best.latencyMillis < server.latencyMillis * SWITCH_RATIO);
+    }
+
+    /**
+     * Marks the server of the context unavailable after the context has failed with a connection error.
+     */
+    public void reportFailure(@NonNull final DirContext context) {
+        final Server server = contextServers.get(context);
+        if (server != null) {
+            markFailed(server, "connection error");
+        }
+    }
+
+    /**
+     * @return the source of connections to the next healthy server after the preferred one, or null if there is no such server
+     */
+    @Nullable
+    public ContextSource getAlternativeContextSource() {
+        final List<Server> servers = getServersByPreference();
+        return servers.size() > 1 && servers.get(1).healthy ? servers.get(1).contextSource : null;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        probeExecutor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "LdapServerSelector" + getServersByPreference();
+    }
+
+    @NonNull
+    private DirContext connect(@NonNull final Function<LdapContextSource, DirContext> connector) {
+        RuntimeException failure = null;
+        for (Server server : getServersByPreference()) {
+            try {
+                final DirContext result = connector.apply(server.contextSource);
+                contextServers.put(result, server);
+                return result;
+            } catch (CommunicationException | ServiceUnavailableException e) {
+                markFailed(server, e.getMessage());
+                failure = e;
+            }
+        }
+        throw failure == null ? new IllegalStateException("No LDAP servers configured") : failure;
+    }
+
+    /**
+     * Healthy servers go first, ordered by latency; servers which have not been probed yet keep the configured order.
+     */
+    @NonNull
+    private List<Server> getServersByPreference() {
+        final List<Server> result = new ArrayList<>(servers);
+        result.sort(Comparator.comparing((Server server) -> !server.healthy)
+                .thenComparingDouble(server -> Double.isNaN(server.latencyMillis) ? Double.MAX_VALUE : server.latencyMillis));
+        return result;
+    }
+
+    private void probe(@NonNull final Server server) {
+        try {
+            final long start = System.nanoTime();
+            final DirContext context = server.contextSource.getReadOnlyContext();
+            try {
+                context.getAttributes("", PROBE_ATTRIBUTES);
+            } finally {
+                LdapUtils.closeContext(context);
+            }
+            final double latencyMillis = (System.nanoTime() - start) / 1e6;
+            server.latencyMillis = Double.isNaN(server.latencyMillis)
+                    ? latencyMillis
+                    : LATENCY_SMOOTHING * latencyMillis + (1 - LATENCY_SMOOTHING) * server.latencyMillis;
+            if (!server.healthy) {
+                LOGGER.info("LDAP server " + server.url + " is available again");
+                server.healthy = true;
+            }
+            LOGGER.debug("Probed LDAP server " + server.url + " in " + String.format("%.1f", latencyMillis) + " ms");
+        } catch (InterruptedNamingException | org.springframework.ldap.InterruptedNamingException e) {
+            // the probe has timed out, which has already marked the server, or the selector is closed
+            LOGGER.debug("Probe of LDAP server " + server.url + " is interrupted");
+        } catch (Exception e) {
+            markFailed(server, e.toString());
+        } finally {
+            server.probing.set(false);
+        }
+    }
+
+    private void markFailed(@NonNull final Server server, @Nullable final String reason) {
+        if (server.healthy) {
+            server.healthy = false;
+            LOGGER.warn("LDAP server " + server.url + " is unavailable: " + reason);
+            updatePreferredServer();
+        }
+    }
+
+    private void updatePreferredServer() {
+        final Server best = getServersByPreference().get(0);
+        if (preferredServer != best) {
+            preferredServer = best;
+            LOGGER.info("Using LDAP servers in order: " + this);
+        }
+    }
+
+    private static class Server {
+        @NonNull
+        private final String url;
+        @NonNull
+        private final LdapContextSource contextSource;
+        @NonNull
+        private final AtomicBoolean probing = new AtomicBoolean();
+        private volatile boolean healthy = true;
+        private volatile double latencyMillis = Double.NaN;
+
+        Server(@NonNull final String url, @NonNull final LdapContextSource contextSource) {
+            this.url = url;
+            this.contextSource = contextSource;
+        }
+
+        @Override
+        public String toString() {
+            return url + (healthy ? "" : " (unavailable)") + (Double.isNaN(latencyMillis) ? "" : String.format(" %.1f ms", latencyMillis));
+        }
+    }
+}
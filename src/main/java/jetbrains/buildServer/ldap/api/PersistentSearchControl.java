@@ -0,0 +1,189 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap.api;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.NamingException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Persistent search request control (draft-ietf-ldapext-psearch-03), supported e.g. by 389 Directory Server, OpenDJ and eDirectory.
+ * The search with this control does not end: after the initial entries, the server sends every entry changed later
+ * together with the Entry Change Notification response control.
+ */
+public class PersistentSearchControl extends BasicControl {
+    @NonNull
+    public static final String OID = "2.16.840.1.113730.3.4.3";
+    @NonNull
+    public static final String ENTRY_CHANGE_NOTIFICATION_OID = "2.16.840.1.113730.3.4.7";
+    private static final long serialVersionUID = 1L;
+
+    public PersistentSearchControl(final boolean changesOnly) {
+        super(OID, true, encodeValue(ChangeType.ALL, changesOnly, true));
+    }
+
+    public enum ChangeType {
+        ADD(1), DELETE(2), MODIFY(4), MODIFY_DN(8);
+
+        static final int ALL = 1 | 2 | 4 | 8;
+
+        private final int value;
+
+        ChangeType(final int value) {
+            this.value = value;
+        }
+
+        @Nullable
+        static ChangeType fromValue(final int value) {
+            for (ChangeType type : values()) {
+                if (type.value == value) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The change of an entry reported by the Entry Change Notification control.
+     */
+    public static final class EntryChange {
+        @NonNull
+        private final ChangeType changeType;
+        @Nullable
+        private final String previousDN;
+
+        public EntryChange(@NonNull final ChangeType changeType, @Nullable final String previousDN) {
+            this.changeType = changeType;
+            this.previousDN = previousDN;
+        }
+
+        @NonNull
+        public ChangeType getChangeType() {
+            return changeType;
+        }
+
+        /**
+         * @return the DN of the entry before it was renamed or moved, sent by the server only for {@link ChangeType#MODIFY_DN}
+         */
+        @Nullable
+        public String getPreviousDN() {
+            return previousDN;
+        }
+    }
+
+    /**
+     * @return the change from the Entry Change Notification control of the entry,
+     * or null if the entry has no such control, e.g. if it is one of the initial search results
+     */
+    @Nullable
+    public static EntryChange getEntryChange(@NonNull final SearchResult searchResult) throws NamingException {
+        if (!(searchResult instanceof HasControls)) {
+            return null;
+        }
+        final Control[] controls = ((HasControls) searchResult).getControls();
+        if (controls == null) {
+            return null;
+        }
+        for (Control control : controls) {
+            if (ENTRY_CHANGE_NOTIFICATION_OID.equals(control.getID())) {
+                return decodeEntryChange(control.getEncodedValue());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * PersistentSearch ::= SEQUENCE { changeTypes INTEGER, changesOnly BOOLEAN, returnECs BOOLEAN }
+     */
+    @NonNull
+    private static byte[] encodeValue(final int changeTypes, final boolean changesOnly, final boolean returnEntryChangeControls) {
+        return new byte[]{
+                0x30, 0x09,
+                0x02, 0x01, (byte) changeTypes,
+                0x01, 0x01, (byte) (changesOnly ? 0xFF : 0x00),
+                0x01, 0x01, (byte) (returnEntryChangeControls ? 0xFF : 0x00)
+        };
+    }
+
+    /**
+     * EntryChangeNotification ::= SEQUENCE { changeType ENUMERATED, previousDN LDAPDN OPTIONAL, changeNumber INTEGER OPTIONAL }
+     */
+    @Nullable
+    static EntryChange decodeEntryChange(@Nullable final byte[] value) {
+        if (value == null || value.length < 2 || value[0] != 0x30) {
+            return null;
+        }
+        int position = 1 + getLengthSize(value, 1);
+        if (position + 2 > value.length || value[position] != 0x0A) {
+            return null;
+        }
+        final int length = value[position + 1] & 0xFF;
+        position += 2;
+        if (length > 4 || position + length > value.length) {
+            return null;
+        }
+        int changeTypeValue = 0;
+        for (int i = 0; i < length; i++) {
+            changeTypeValue = (changeTypeValue << 8) | (value[position + i] & 0xFF);
+        }
+        final ChangeType changeType = ChangeType.fromValue(changeTypeValue);
+        if (changeType == null) {
+            return null;
+        }
+        position += length;
+
+        String previousDN = null;
+        if (position + 2 <= value.length && value[position] == 0x04) {
+            final int lengthSize = getLengthSize(value, position + 1);
+            final int dnLength = getLength(value, position + 1, lengthSize);
+            position += 1 + lengthSize;
+            if (dnLength < 0 || dnLength > value.length - position) {
+                return null;
+            }
+            previousDN = new String(value, position, dnLength, StandardCharsets.UTF_8);
+        }
+        return new EntryChange(changeType, previousDN);
+    }
+
+    private static int getLengthSize(@NonNull final byte[] value, final int position) {
+        final int first = value[position] & 0xFF;
+        return first < 0x80 ? 1 : 1 + (first & 0x7F);
+    }
+
+    /**
+     * @return the length encoded at the position, or -1 if it is truncated or too long
+     */
+    private static int getLength(@NonNull final byte[] value, final int position, final int lengthSize) {
+        if (lengthSize == 1) {
+            return value[position] & 0xFF;
+        }
+        if (lengthSize > 4 || position + lengthSize > value.length) {
+            return -1;
+        }
+        int length = 0;
+        for (int i = 1; i < lengthSize; i++) {
+            length = (length << 8) | (value[position + i] & 0xFF);
+        }
+        return length;
+    }
+}
@@ -42,6 +42,11 @@ public interface PropertiesConstants {
     String KEY_REMOVE_SUBGROUPS_SYNC_OPTION = KEY_SYNC_OPTION_PREFIX + "removeSubgroups";
     @NonNull
     String KEY_TIMEOUT_SYNC_OPTION = KEY_SYNC_OPTION_PREFIX + "syncTimeout";
+    /**
+     * Environment property of the JNDI LDAP provider: the time (in milliseconds) to wait for a response, set from '{@value #KEY_TIMEOUT_SYNC_OPTION}' if not set explicitly.
+     */
+    @NonNull
+    String KEY_JNDI_READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
     @NonNull
     String KEY_FORCE_UPDATE_PROPERTIES = "teamcity.users.forceUpdatePropertiesDuringSync";
     @NonNull
@@ -55,8 +60,14 @@ public interface PropertiesConstants {
     @NonNull
     String KEY_USER_SEARCH_FILTER = "teamcity.users.filter";
     @NonNull
+    String KEY_USER_SOURCES = "teamcity.users.sources";
+    @NonNull
+    String KEY_USER_SOURCE_PREFIX = "teamcity.users.source.";
+    @NonNull
     String KEY_USER_USERNAME_ATTR = "teamcity.users.username";
     @NonNull
+    String KEY_USER_USERNAME_TRANSFORM = "teamcity.users.username.transform";
+    @NonNull
     String KEY_USER_CUSTOM_PROPERTY = "teamcity.users.property.";
     @NonNull
     String KEY_USER_DISPLAY_NAME_ATTR = KEY_USER_CUSTOM_PROPERTY + "displayName";
@@ -65,6 +76,12 @@ public interface PropertiesConstants {
     @NonNull
     String KEY_GROUP_BASE = "teamcity.groups.base";
     @NonNull
+    String KEY_GROUP_SEARCH_FILTER = "teamcity.groups.filter";
+    @NonNull
+    String KEY_GROUP_NAME_ATTR = "teamcity.groups.property.name";
+    @NonNull
+    String KEY_GROUP_RETRIEVE_NESTED = "teamcity.groups.retrieveUsersFromNestedGroups";
+    @NonNull
     String KEY_GROUP_MEMBER_ATTRIBUTE = "teamcity.groups.property.member";
     @NonNull
     String KEY_MEMBER_USER_ID_ATTRIBUTE = "teamcity.users.property.memberId";
@@ -72,4 +89,102 @@ public interface PropertiesConstants {
     String KEY_MEMBER_GROUP_ID_ATTRIBUTE = "teamcity.groups.property.memberId";
     @NonNull
     String TEAMCITY_USERS_PROPERTIES_RESOLVE = "teamcity.users.properties.resolve";
+    @NonNull
+    String KEY_SEARCH_PAGE_SIZE = "teamcity.search.pageSize";
+    @NonNull
+    String KEY_USER_FETCH_PARALLELISM = "teamcity.users.fetch.parallelism";
+    @NonNull
+    String KEY_USER_FETCH_PARTITION_ATTRIBUTE = "teamcity.users.fetch.partitionAttribute";
+    @NonNull
+    String KEY_USER_FETCH_PARTITION_PREFIXES = "teamcity.users.fetch.partitionPrefixes";
+    @NonNull
+    String KEY_USER_FETCH_RETRIES = "teamcity.users.fetch.retries";
+    @NonNull
+    String KEY_USER_FETCH_RETRY_DELAY = "teamcity.users.fetch.retryDelay";
+    @NonNull
+    String KEY_USER_FETCH_MAX_RETRY_DELAY = "teamcity.users.fetch.maxRetryDelay";
+    @NonNull
+    String KEY_USER_FETCH_VIRTUAL_THREADS = "teamcity.users.fetch.virtualThreads";
+    @NonNull
+    String KEY_INCREMENTAL_SYNC_ENABLED = "teamcity.users.incremental.enabled";
+    @NonNull
+    String KEY_INCREMENTAL_SYNC_ATTRIBUTE = "teamcity.users.incremental.attribute";
+    @NonNull
+    String KEY_INCREMENTAL_SYNC_STATE_FILE = "teamcity.users.incremental.stateFile";
+    @NonNull
+    String KEY_INCREMENTAL_SYNC_FULL_SYNC_INTERVAL = "teamcity.users.incremental.fullSyncInterval";
+    @NonNull
+    String KEY_SNAPSHOT_FILE = "teamcity.snapshot.file";
+    @NonNull
+    String KEY_EXPORT_FILE = "teamcity.export.file";
+    @NonNull
+    String KEY_EXPORT_FORMAT = "teamcity.export.format";
+    @NonNull
+    String KEY_EXPORT_GZIP = "teamcity.export.gzip";
+    @NonNull
+    String KEY_USER_LISTEN_ENABLED = "teamcity.users.listen.enabled";
+    @NonNull
+    String KEY_USER_LISTEN_RECONNECT_DELAY = "teamcity.users.listen.reconnectDelay";
+    @NonNull
+    String KEY_USER_LISTEN_MAX_RECONNECT_DELAY = "teamcity.users.listen.maxReconnectDelay";
+    @NonNull
+    String KEY_SYNC_SCHEDULE_ENABLED = "teamcity.sync.schedule.enabled";
+    @NonNull
+    String KEY_SYNC_INTERVAL = "teamcity.sync.interval";
+    @NonNull
+    String KEY_SYNC_JITTER = "teamcity.sync.jitter";
+    @NonNull
+    String KEY_METRICS_JMX_ENABLED = "teamcity.metrics.jmx.enabled";
+    @NonNull
+    String KEY_METRICS_PROMETHEUS_PORT = "teamcity.metrics.prometheus.port";
+    @NonNull
+    String KEY_POOL_PREFIX = "teamcity.pool.";
+    @NonNull
+    String KEY_POOL_ENABLED = KEY_POOL_PREFIX + "enabled";
+    @NonNull
+    String KEY_POOL_MIN_IDLE = KEY_POOL_PREFIX + "minIdle";
+    @NonNull
+    String KEY_POOL_MAX_IDLE = KEY_POOL_PREFIX + "maxIdle";
+    @NonNull
+    String KEY_POOL_MAX_TOTAL = KEY_POOL_PREFIX + "maxTotal";
+    @NonNull
+    String KEY_POOL_MAX_WAIT = KEY_POOL_PREFIX + "maxWaitMillis";
+    @NonNull
+    String KEY_POOL_TEST_ON_BORROW = KEY_POOL_PREFIX + "testOnBorrow";
+    @NonNull
+    String KEY_POOL_TEST_WHILE_IDLE = KEY_POOL_PREFIX + "testWhileIdle";
+    @NonNull
+    String KEY_POOL_EVICTION_INTERVAL = KEY_POOL_PREFIX + "timeBetweenEvictionRunsMillis";
+    @NonNull
+    String KEY_POOL_MIN_EVICTABLE_IDLE_TIME = KEY_POOL_PREFIX + "minEvictableIdleTimeMillis";
+    @NonNull
+    String KEY_SERVERS_PREFIX = "teamcity.servers.";
+    @NonNull
+    String KEY_SERVERS_PROBE_INTERVAL = KEY_SERVERS_PREFIX + "probeInterval";
+    @NonNull
+    String KEY_SERVERS_PROBE_TIMEOUT = KEY_SERVERS_PREFIX + "probeTimeout";
+    @NonNull
+    String KEY_SERVERS_HEDGE_PERCENTILE = KEY_SERVERS_PREFIX + "hedgePercentile";
+    @NonNull
+    String KEY_REST_PREFIX = "teamcity.rest.";
+    @NonNull
+    String KEY_REST_URL = KEY_REST_PREFIX + "url";
+    @NonNull
+    String KEY_REST_TOKEN = KEY_REST_PREFIX + "token";
+    @NonNull
+    String KEY_REST_CONCURRENCY = KEY_REST_PREFIX + "concurrency";
+    @NonNull
+    String KEY_REST_RATE_LIMIT = KEY_REST_PREFIX + "rateLimit";
+    @NonNull
+    String KEY_REST_TIMEOUT = KEY_REST_PREFIX + "timeout";
+    @NonNull
+    String KEY_REST_RETRIES = KEY_REST_PREFIX + "retries";
+    @NonNull
+    String KEY_REST_REMOTE_ID_PROPERTY = KEY_REST_PREFIX + "remoteIdProperty";
+    @NonNull
+    String KEY_REST_MAX_DELETE_PERCENT = KEY_REST_PREFIX + "maxDeletePercent";
+    @NonNull
+    String KEY_CONFIG_WATCH_ENABLED = "teamcity.config.watch.enabled";
+    @NonNull
+    String KEY_CONFIG_WATCH_DELAY = "teamcity.config.watch.delay";
 }
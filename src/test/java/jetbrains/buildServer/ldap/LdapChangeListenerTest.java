@@ -0,0 +1,140 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import jetbrains.buildServer.ldap.api.LdapContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.lang.NonNull;
+
+import javax.naming.Context;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class LdapChangeListenerTest {
+    private static final long TIMEOUT = 10000;
+    private static final long RECONNECT_DELAY = 300;
+
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private PersistentSearchDirectory directory;
+    private LdapContext ldapContext;
+    private LdapFetcher ldapFetcher;
+    private LdapChangeListener listener;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        directory = new PersistentSearchDirectory();
+        final Properties properties = new Properties();
+        properties.setProperty(Context.PROVIDER_URL, directory.getUrl());
+        properties.setProperty(Context.SECURITY_PRINCIPAL, PersistentSearchDirectory.PRINCIPAL);
+        properties.setProperty(Context.SECURITY_CREDENTIALS, PersistentSearchDirectory.CREDENTIALS);
+        properties.setProperty(KEY_USER_BASE, PersistentSearchDirectory.USERS_RDN);
+        properties.setProperty(KEY_USER_SEARCH_FILTER, "(objectClass=user)");
+        properties.setProperty(KEY_USER_USERNAME_ATTR, "sAMAccountName");
+        properties.setProperty(KEY_USER_DISPLAY_NAME_ATTR, "displayName");
+        properties.setProperty(KEY_USER_MAIL_ATTR, "mail");
+        properties.setProperty(KEY_SNAPSHOT_FILE, "");
+        properties.setProperty(KEY_USER_LISTEN_RECONNECT_DELAY, String.valueOf(RECONNECT_DELAY));
+        properties.setProperty(KEY_USER_LISTEN_MAX_RECONNECT_DELAY, "60000");
+        final LdapProperties ldapProperties = new LdapProperties(properties);
+        ldapContext = new LdapContext(ldapProperties);
+        ldapFetcher = new LdapFetcher(new RemoteDataFetcherOptions(true, false), ldapProperties, ldapContext);
+        listener = new LdapChangeListener(ldapFetcher, new LdapSynchronizer(ldapFetcher, ldapProperties), ldapContext, ldapProperties,
+                new LdapChangeListener.Callback() {
+                    @Override
+                    public void userChanged(@NonNull final RemoteUserData userData) {
+                        events.add("changed " + userData.getUsername() + " " + userData.getDisplayName());
+                    }
+
+                    @Override
+                    public void userDeleted(@NonNull final String remoteId) {
+                        events.add("deleted " + remoteId);
+                    }
+
+                    @Override
+                    public void resynchronized(@NonNull final RemoteData remoteData) {
+                        events.add("resynchronized " + remoteData.getUserData().size());
+                    }
+                });
+    }
+
+    @AfterEach
+    void tearDown() {
+        listener.close();
+        ldapFetcher.close();
+        ldapContext.close();
+        directory.close();
+    }
+
+    @Test
+    void pushesChangedAndDeletedUsers() throws Exception {
+        listener.start();
+        assertTrue(directory.awaitStartedSearches(1, TIMEOUT));
+
+        directory.add(PersistentSearchDirectory.createUser("user1", "User One"));
+        assertEquals("changed user1 User One", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        directory.modify(PersistentSearchDirectory.getUserDn("user1"), new Modification(ModificationType.REPLACE, "displayName", "Renamed"));
+        assertEquals("changed user1 Renamed", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        directory.delete(PersistentSearchDirectory.getUserDn("user1"));
+        assertEquals("deleted " + PersistentSearchDirectory.getUserDn("user1"), events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, directory.getStartedSearches());
+    }
+
+    @Test
+    void pushesRenamedUserAsDeletedAndChanged() throws Exception {
+        listener.start();
+        assertTrue(directory.awaitStartedSearches(1, TIMEOUT));
+
+        directory.add(PersistentSearchDirectory.createUser("user1", "User One"));
+        assertEquals("changed user1 User One", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // the remote id is the DN, so the renamed entry replaces the user with the previous DN
+        directory.rename(PersistentSearchDirectory.getUserDn("user1"), "cn=user2");
+        assertEquals("deleted " + PersistentSearchDirectory.getUserDn("user1"), events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("changed user1 User One", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNull(events.poll(RECONNECT_DELAY, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void restartsEndedSearchWithBackoffAndResynchronizes() throws Exception {
+        directory.add(PersistentSearchDirectory.createUser("user1", "User One"));
+        listener.start();
+        assertTrue(directory.awaitStartedSearches(1, TIMEOUT));
+
+        long ended = System.nanoTime();
+        directory.endSearches();
+        assertEquals("resynchronized 1", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(directory.awaitStartedSearches(2, TIMEOUT));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ended) >= RECONNECT_DELAY);
+
+        ended = System.nanoTime();
+        directory.endSearches();
+        assertEquals("resynchronized 1", events.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(directory.awaitStartedSearches(3, TIMEOUT));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ended) >= 2 * RECONNECT_DELAY, "the delay is doubled");
+        assertNull(events.poll(RECONNECT_DELAY, TimeUnit.MILLISECONDS));
+    }
+}
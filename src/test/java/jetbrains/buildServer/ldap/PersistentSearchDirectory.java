@@ -0,0 +1,218 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import jetbrains.buildServer.ldap.api.PersistentSearchControl;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory directory supporting the persistent search, which the in-memory server of UnboundID does not implement: the search
+ * with the persistent search control is held by the interceptor, which sends the entries changed via this class together with
+ * the Entry Change Notification control until the search is {@link #endSearches() ended}.
+ */
+class PersistentSearchDirectory implements Closeable {
+    @NonNull
+    static final String BASE_DN = "dc=example,dc=com";
+    @NonNull
+    static final String USERS_RDN = "ou=people";
+    @NonNull
+    static final String PRINCIPAL = "cn=Directory Manager";
+    @NonNull
+    static final String CREDENTIALS = "password";
+    @NonNull
+    private static final Change END = new Change(new Entry(BASE_DN), PersistentSearchChangeType.MODIFY, null);
+
+    @NonNull
+    private final List<BlockingQueue<Change>> searches = new CopyOnWriteArrayList<>();
+    @NonNull
+    private final InMemoryDirectoryServer server;
+    private volatile int startedSearches;
+    private volatile boolean closed;
+
+    PersistentSearchDirectory() throws LDAPException {
+        final InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.addAdditionalBindCredentials(PRINCIPAL, CREDENTIALS);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", 0));
+        // attributes like sAMAccountName are not in the standard schema
+        config.setSchema(null);
+        config.addInMemoryOperationInterceptor(new PersistentSearchInterceptor());
+        server = new InMemoryDirectoryServer(config);
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"), new Attribute("dc", "example")));
+        server.add(new Entry(USERS_RDN + "," + BASE_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "people")));
+        server.startListening();
+    }
+
+    @NonNull
+    String getUrl() {
+        return "ldap://localhost:" + server.getListenPort() + "/" + BASE_DN;
+    }
+
+    @NonNull
+    static Entry createUser(@NonNull final String username, @NonNull final String displayName) {
+        final Entry entry = new Entry(getUserDn(username));
+        entry.addAttribute("objectClass", "top", "person", "organizationalPerson", "user");
+        entry.addAttribute("cn", username);
+        entry.addAttribute("sAMAccountName", username);
+        entry.addAttribute("displayName", displayName);
+        entry.addAttribute("mail", username + "@example.com");
+        return entry;
+    }
+
+    @NonNull
+    static String getUserDn(@NonNull final String username) {
+        return "cn=" + username + "," + USERS_RDN + "," + BASE_DN;
+    }
+
+    void add(@NonNull final Entry entry) throws LDAPException {
+        server.add(entry);
+        notifySearches(entry, PersistentSearchChangeType.ADD);
+    }
+
+    void modify(@NonNull final String dn, @NonNull final Modification... modifications) throws LDAPException {
+        server.modify(dn, modifications);
+        notifySearches(server.getEntry(dn), PersistentSearchChangeType.MODIFY);
+    }
+
+    void delete(@NonNull final String dn) throws LDAPException {
+        final Entry entry = server.getEntry(dn);
+        server.delete(dn);
+        notifySearches(entry, PersistentSearchChangeType.DELETE);
+    }
+
+    /**
+     * Renames the entry, replacing the value of its RDN attribute.
+     */
+    void rename(@NonNull final String dn, @NonNull final String newRdn) throws LDAPException {
+        server.modifyDN(dn, newRdn, true);
+        final String newDn = newRdn + dn.substring(dn.indexOf(','));
+        for (BlockingQueue<Change> search : searches) {
+            search.add(new Change(server.getEntry(newDn), PersistentSearchChangeType.MODIFY_DN, dn));
+        }
+    }
+
+    /**
+     * Completes the persistent searches normally, as a server does when the time limit of the search is reached.
+     */
+    void endSearches() {
+        for (BlockingQueue<Change> search : searches) {
+            search.add(END);
+        }
+    }
+
+    /**
+     * @return the number of persistent searches started so far
+     */
+    int getStartedSearches() {
+        return startedSearches;
+    }
+
+    /**
+     * @return true if at least {@code count} persistent searches have been started in time
+     */
+    boolean awaitStartedSearches(final int count, final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (startedSearches < count) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        server.shutDown(true);
+    }
+
+    private void notifySearches(@NonNull final Entry entry, @NonNull final PersistentSearchChangeType changeType) {
+        for (BlockingQueue<Change> search : searches) {
+            search.add(new Change(entry, changeType, null));
+        }
+    }
+
+    private static class Change {
+        @NonNull
+        private final Entry entry;
+        @NonNull
+        private final PersistentSearchChangeType changeType;
+        @Nullable
+        private final String previousDn;
+
+        Change(@NonNull final Entry entry, @NonNull final PersistentSearchChangeType changeType, @Nullable final String previousDn) {
+            this.entry = entry;
+            this.changeType = changeType;
+            this.previousDn = previousDn;
+        }
+    }
+
+    private class PersistentSearchInterceptor extends InMemoryOperationInterceptor {
+        @Override
+        public void processSearchRequest(final InMemoryInterceptedSearchRequest request) throws LDAPException {
+            if (!request.getRequest().hasControl(PersistentSearchControl.OID)) {
+                return;
+            }
+            // the server rejects the critical control it does not support, and the changes only search has no initial results
+            final SearchRequest changesOnly = request.getRequest().duplicate();
+            changesOnly.removeControl(PersistentSearchControl.OID);
+            changesOnly.setFilter(Filter.createNOTFilter(Filter.createPresenceFilter("objectClass")));
+            request.setRequest(changesOnly);
+
+            final BlockingQueue<Change> changes = new LinkedBlockingQueue<>();
+            searches.add(changes);
+            startedSearches++;
+            try {
+                while (!closed) {
+                    final Change change = changes.poll(100, TimeUnit.MILLISECONDS);
+                    if (change == END) {
+                        return;
+                    }
+                    if (change != null) {
+                        request.sendSearchEntry(new SearchResultEntry(change.entry,
+                                new EntryChangeNotificationControl(change.changeType, change.previousDn, -1)));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                searches.remove(changes);
+            }
+        }
+    }
+}
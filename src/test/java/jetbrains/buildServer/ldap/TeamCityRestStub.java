@@ -0,0 +1,394 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded HTTP server implementing the part of the TeamCity REST API used by {@link TeamCityUserApplier}: listing, creating
+ * and deleting users and setting their fields and properties. Users are kept in memory, every request can be delayed, and every
+ * n-th request can be rejected with 503 to exercise the retries and the failures.
+ */
+class TeamCityRestStub implements Closeable {
+    @NonNull
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    @NonNull
+    private static final String USERS_PATH = "/app/rest/users";
+
+    @NonNull
+    private final HttpServer server;
+    @NonNull
+    private final ExecutorService executor;
+    @NonNull
+    private final Map<Long, User> users = new ConcurrentSkipListMap<>();
+    @NonNull
+    private final Map<String, Long> idsByUsername = new ConcurrentHashMap<>();
+    @NonNull
+    private final AtomicLong nextId = new AtomicLong(1);
+    @NonNull
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    @NonNull
+    private final AtomicInteger requests = new AtomicInteger();
+    private final long latencyMillis;
+    private volatile int rejectEvery;
+
+    private TeamCityRestStub(@NonNull final HttpServer server, @NonNull final ExecutorService executor, final long latencyMillis, final int rejectEvery) {
+        this.server = server;
+        this.executor = executor;
+        this.latencyMillis = latencyMillis;
+        this.rejectEvery = rejectEvery;
+    }
+
+    /**
+     * @param latencyMillis delay of every request
+     * @param rejectEvery   every n-th request is answered with 503 and Retry-After of 1 second, 0 for none
+     */
+    @NonNull
+    static TeamCityRestStub start(final long latencyMillis, final int rejectEvery) throws IOException {
+        // the response headers and body are written separately, without that every response waits for the delayed acknowledgement
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        final ExecutorService executor = Executors.newFixedThreadPool(32);
+        server.setExecutor(executor);
+        final TeamCityRestStub result = new TeamCityRestStub(server, executor, latencyMillis, rejectEvery);
+        server.createContext(USERS_PATH, result::handle);
+        server.start();
+        return result;
+    }
+
+    @NonNull
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Rejects every n-th request from now on, 0 for none.
+     */
+    void setRejectEvery(final int rejectEvery) {
+        requests.set(0);
+        this.rejectEvery = rejectEvery;
+    }
+
+    /**
+     * Adds the user as if it was created in TeamCity.
+     *
+     * @return the id of the user
+     */
+    long addUser(@NonNull final String username, @Nullable final String name, @Nullable final String email,
+                 @NonNull final Map<String, String> properties) {
+        final User user = new User(nextId.getAndIncrement());
+        user.username = username;
+        user.name = name;
+        user.email = email;
+        user.properties.putAll(properties);
+        if (idsByUsername.putIfAbsent(username.toLowerCase(), user.id) != null) {
+            throw new IllegalArgumentException("Duplicate user account with username '" + username + "'");
+        }
+        users.put(user.id, user);
+        return user.id;
+    }
+
+    @Nullable
+    User getUser(final long id) {
+        return users.get(id);
+    }
+
+    @Nullable
+    User findUser(@NonNull final String username) {
+        final Long id = idsByUsername.get(username.toLowerCase());
+        return id != null ? users.get(id) : null;
+    }
+
+    /**
+     * @return the number of requests by method, the rejected ones included
+     */
+    @NonNull
+    Map<String, Integer> getRequestCounts() {
+        final Map<String, Integer> result = new TreeMap<>();
+        requestCounts.forEach((method, count) -> result.put(method, count.get()));
+        return result;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(@NonNull final HttpExchange exchange) throws IOException {
+        try {
+            requestCounts.computeIfAbsent(exchange.getRequestMethod(), method -> new AtomicInteger()).incrementAndGet();
+            if (latencyMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+            if (rejectEvery > 0 && requests.incrementAndGet() % rejectEvery == 0) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                respond(exchange, 503, "Server is overloaded");
+                return;
+            }
+            final String path = exchange.getRequestURI().getRawPath().substring(USERS_PATH.length());
+            final String method = exchange.getRequestMethod();
+            if (path.isEmpty() && method.equals("GET")) {
+                listUsers(exchange);
+            } else if (path.isEmpty() && method.equals("POST")) {
+                createUser(exchange);
+            } else if (path.startsWith("/id:")) {
+                final String[] segments = path.substring("/id:".length()).split("/", 3);
+                final User user = users.get(Long.parseLong(segments[0]));
+                if (user == null) {
+                    respond(exchange, 404, "No user with id " + segments[0]);
+                } else if (segments.length == 1 && method.equals("DELETE")) {
+                    users.remove(user.id);
+                    idsByUsername.remove(String.valueOf(user.username).toLowerCase(), user.id);
+                    respond(exchange, 204, null);
+                } else if (segments.length == 2) {
+                    setField(exchange, user, segments[1], method.equals("DELETE") ? null : readText(exchange));
+                } else if (segments.length == 3 && segments[1].equals("properties")) {
+                    final String name = URLDecoder.decode(segments[2], StandardCharsets.UTF_8.name());
+                    synchronized (user) {
+                        if (method.equals("DELETE")) {
+                            user.properties.remove(name);
+                        } else {
+                            user.properties.put(name, readText(exchange));
+                        }
+                    }
+                    respond(exchange, 200, null);
+                } else {
+                    respond(exchange, 405, method + " " + path);
+                }
+            } else {
+                respond(exchange, 404, method + " " + path);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            respond(exchange, 400, e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void listUsers(@NonNull final HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(new BufferedOutputStream(exchange.getResponseBody()))) {
+            generator.writeStartObject();
+            generator.writeNumberField("count", users.size());
+            generator.writeArrayFieldStart("user");
+            for (User user : users.values()) {
+                synchronized (user) {
+                    generator.writeStartObject();
+                    generator.writeNumberField("id", user.id);
+                    generator.writeStringField("username", user.username);
+                    writeOptionalField(generator, "name", user.name);
+                    writeOptionalField(generator, "email", user.email);
+                    generator.writeObjectFieldStart("properties");
+                    generator.writeArrayFieldStart("property");
+                    for (Map.Entry<String, String> property : user.properties.entrySet()) {
+                        generator.writeStartObject();
+                        generator.writeStringField("name", property.getKey());
+                        generator.writeStringField("value", property.getValue());
+                        generator.writeEndObject();
+                    }
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                    generator.writeEndObject();
+                }
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    private void createUser(@NonNull final HttpExchange exchange) throws IOException {
+        final User user = new User(nextId.getAndIncrement());
+        try (JsonParser parser = JSON_FACTORY.createParser(exchange.getRequestBody())) {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                parser.nextToken();
+                if (field.equals("properties")) {
+                    readProperties(parser, user.properties);
+                } else if (!setField(user, field, parser.getValueAsString())) {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (user.username == null) {
+            respond(exchange, 400, "Username is required");
+            return;
+        }
+        if (idsByUsername.putIfAbsent(user.username.toLowerCase(), user.id) != null) {
+            respond(exchange, 400, "Duplicate user account with username '" + user.username + "'");
+            return;
+        }
+        users.put(user.id, user);
+        respond(exchange, 200, "{\"id\":" + user.id + "}");
+    }
+
+    private void setField(@NonNull final HttpExchange exchange, @NonNull final User user, @NonNull final String field, @Nullable final String value) throws IOException {
+        final boolean known;
+        synchronized (user) {
+            if (field.equals("username")) {
+                final Long owner = value != null ? idsByUsername.putIfAbsent(value.toLowerCase(), user.id) : null;
+                if (value == null || owner != null && owner != user.id) {
+                    respond(exchange, 400, "Username '" + value + "' is empty or taken");
+                    return;
+                }
+                if (!value.equalsIgnoreCase(user.username)) {
+                    idsByUsername.remove(String.valueOf(user.username).toLowerCase(), user.id);
+                }
+            }
+            known = setField(user, field, value);
+        }
+        respond(exchange, known ? 200 : 404, known ? value : "Unknown field " + field);
+    }
+
+    private static boolean setField(@NonNull final User user, @NonNull final String field, @Nullable final String value) {
+        switch (field) {
+            case "username":
+                user.username = value;
+                return true;
+            case "name":
+                user.name = value;
+                return true;
+            case "email":
+                user.email = value;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void readProperties(@NonNull final JsonParser parser, @NonNull final Map<String, String> properties) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String name = null;
+                String value = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    parser.nextToken();
+                    if (field.equals("name")) {
+                        name = parser.getValueAsString();
+                    } else if (field.equals("value")) {
+                        value = parser.getValueAsString();
+                    }
+                }
+                if (name != null && value != null) {
+                    properties.put(name, value);
+                }
+            }
+        }
+    }
+
+    private static void writeOptionalField(@NonNull final JsonGenerator generator, @NonNull final String name, @Nullable final String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    @NonNull
+    private static String readText(@NonNull final HttpExchange exchange) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                result.write(buffer, 0, read);
+            }
+        }
+        return new String(result.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void respond(@NonNull final HttpExchange exchange, final int status, @Nullable final String body) throws IOException {
+        if (body == null || status == 204) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    static class User {
+        private final long id;
+        @Nullable
+        private String username;
+        @Nullable
+        private String name;
+        @Nullable
+        private String email;
+        @NonNull
+        private final Map<String, String> properties = new TreeMap<>();
+
+        User(final long id) {
+            this.id = id;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        @Nullable
+        synchronized String getUsername() {
+            return username;
+        }
+
+        @Nullable
+        synchronized String getName() {
+            return name;
+        }
+
+        @Nullable
+        synchronized String getEmail() {
+            return email;
+        }
+
+        @NonNull
+        synchronized Map<String, String> getProperties() {
+            return new TreeMap<>(properties);
+        }
+    }
+}
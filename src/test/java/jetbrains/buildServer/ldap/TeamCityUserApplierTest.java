@@ -0,0 +1,232 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap;
+
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import jetbrains.buildServer.ldap.api.LdapContext;
+import jetbrains.buildServer.ldap.api.LdapMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import javax.naming.Context;
+import java.io.File;
+import java.util.*;
+
+import static jetbrains.buildServer.ldap.api.PropertiesConstants.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TeamCityUserApplierTest {
+    private static final String REMOTE_ID_PROPERTY = "ldap.remoteId";
+
+    private TeamCityRestStub stub;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        stub = TeamCityRestStub.start(0, 0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        stub.close();
+    }
+
+    @Test
+    void matchesUsersByRemoteIdThenByUsername() throws Exception {
+        final long renamedId = stub.addUser("old-name", "User One", null, Collections.singletonMap(REMOTE_ID_PROPERTY, "id1"));
+        final long unsynchronizedId = stub.addUser("user2", "User Two", null, Collections.emptyMap());
+        final RemoteData current = new RemoteData(Arrays.asList(user("id1", "user1", "User One"), user("id2", "user2", "User Two")));
+
+        final TeamCityUserApplier.Result result = createApplier(true, true, true, 100).apply(RemoteDataDiff.compute(current, current));
+
+        assertEquals(2, result.getUpdated());
+        assertEquals(0, result.getCreated());
+        assertEquals(2, stub.getUserCount());
+        assertEquals("user1", getUser(renamedId).getUsername());
+        assertEquals("id2", getUser(unsynchronizedId).getProperties().get(REMOTE_ID_PROPERTY));
+        assertFalse(stub.getRequestCounts().containsKey("POST"));
+    }
+
+    @Test
+    void skipsUsernameClaimedByAnotherLdapUser() throws Exception {
+        stub.addUser("user1", "User One", null, Collections.singletonMap(REMOTE_ID_PROPERTY, "id-other"));
+        final RemoteData current = new RemoteData(Collections.singletonList(user("id1", "user1", "User One")));
+
+        final TeamCityUserApplier.Result result = createApplier(true, true, false, 100).apply(RemoteDataDiff.compute((RemoteData) null, current));
+
+        assertEquals(1, result.getFailed());
+        assertEquals(Collections.singleton("id1"), result.getFailedRemoteIds());
+        assertEquals("id-other", stub.findUser("user1").getProperties().get(REMOTE_ID_PROPERTY));
+    }
+
+    @Test
+    void keepsValuesEditedInTeamCity() throws Exception {
+        final long id = stub.addUser("user1", "Edited In TeamCity", "user1@example.com", Collections.singletonMap(REMOTE_ID_PROPERTY, "id1"));
+        final RemoteData previous = new RemoteData(Collections.singletonList(new RemoteUserData("id1", "user1", "User One", "user1@example.com", Collections.emptyMap())));
+        final RemoteData current = new RemoteData(Collections.singletonList(new RemoteUserData("id1", "user1", "Renamed", "renamed@example.com", Collections.emptyMap())));
+
+        createApplier(true, true, true, 100).apply(RemoteDataDiff.compute(previous, current));
+
+        assertEquals("Edited In TeamCity", getUser(id).getName());
+        assertEquals("renamed@example.com", getUser(id).getEmail());
+    }
+
+    @Test
+    void fillsOnlyEmptyFieldsOfMatchedNewUsers() throws Exception {
+        final long id = stub.addUser("user1", "Set In TeamCity", null, Collections.emptyMap());
+        final RemoteData current = new RemoteData(Collections.singletonList(new RemoteUserData("id1", "user1", "User One", "user1@example.com", Collections.emptyMap())));
+
+        createApplier(true, true, true, 100).apply(RemoteDataDiff.compute((RemoteData) null, current));
+
+        assertEquals("Set In TeamCity", getUser(id).getName());
+        assertEquals("user1@example.com", getUser(id).getEmail());
+    }
+
+    @Test
+    void createsAndDeletesUsersOnlyWithUserSynchronization() throws Exception {
+        stub.addUser("gone", null, null, Collections.singletonMap(REMOTE_ID_PROPERTY, "id-gone"));
+        final RemoteData current = new RemoteData(Collections.singletonList(user("id1", "user1", "User One")));
+        final RemoteDataDiff diff = RemoteDataDiff.compute((RemoteData) null, current);
+
+        final TeamCityUserApplier.Result groupsOnly = createApplierFromProperties(false).apply(diff);
+
+        assertEquals(1, groupsOnly.getSkipped());
+        assertEquals(0, groupsOnly.getDeleted());
+        assertNull(stub.findUser("user1"));
+        assertNotNull(stub.findUser("gone"));
+
+        final TeamCityUserApplier.Result users = createApplierFromProperties(true).apply(diff);
+
+        assertEquals(1, users.getCreated());
+        assertEquals(1, users.getDeleted());
+        assertEquals("id1", stub.findUser("user1").getProperties().get(REMOTE_ID_PROPERTY));
+        assertNull(stub.findUser("gone"));
+    }
+
+    @Test
+    void refusesToDeleteWhenLdapUsersAreMissing() throws Exception {
+        final List<RemoteUserData> ldapUsers = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            stub.addUser("user" + i, null, null, Collections.singletonMap(REMOTE_ID_PROPERTY, "id" + i));
+            ldapUsers.add(user("id" + i, "user" + i, null));
+        }
+        final TeamCityUserApplier applier = createApplier(false, false, true, 20);
+
+        assertEquals(0, applier.apply(RemoteDataDiff.compute((RemoteData) null, new RemoteData(Collections.emptyList()))).getDeleted());
+        assertEquals(0, applier.apply(RemoteDataDiff.compute((RemoteData) null, new RemoteData(ldapUsers.subList(0, 3)))).getDeleted());
+        assertEquals(5, stub.getUserCount());
+
+        assertEquals(1, applier.apply(RemoteDataDiff.compute((RemoteData) null, new RemoteData(ldapUsers.subList(0, 4)))).getDeleted());
+        assertNull(stub.findUser("user5"));
+    }
+
+    @Test
+    void appliesStreamedChangesWithTheSameGates() throws Exception {
+        final long id = stub.addUser("user1", "User One", null, Collections.singletonMap(REMOTE_ID_PROPERTY, "id1"));
+        stub.addUser("gone", null, null, Collections.singletonMap(REMOTE_ID_PROPERTY, "id-gone"));
+        final Map<String, RemoteUserData> previousUsers = Collections.singletonMap("id1", user("id1", "user1", "User One"));
+
+        final TeamCityUserApplier.Result updateOnly = createApplier(false, true, false, 100).applyChanges(
+                Arrays.asList(user("id1", "user1", "Renamed"), user("id2", "user2", "User Two")), previousUsers, Collections.singletonList("id-gone"));
+
+        assertEquals(1, updateOnly.getUpdated());
+        assertEquals(1, updateOnly.getSkipped());
+        assertEquals("Renamed", getUser(id).getName());
+        assertNull(stub.findUser("user2"));
+        assertNotNull(stub.findUser("gone"));
+
+        final TeamCityUserApplier.Result all = createApplier(true, true, true, 0).applyChanges(
+                Collections.singletonList(user("id2", "user2", "User Two")), Collections.emptyMap(), Collections.singletonList("id-gone"));
+
+        assertEquals(1, all.getCreated());
+        assertEquals(1, all.getDeleted());
+        assertEquals("id2", stub.findUser("user2").getProperties().get(REMOTE_ID_PROPERTY));
+        assertNull(stub.findUser("gone"));
+    }
+
+    @Test
+    void appliesRejectedUpdateOnNextSynchronization(@TempDir final File tempDir) throws Exception {
+        try (PersistentSearchDirectory directory = new PersistentSearchDirectory()) {
+            directory.add(PersistentSearchDirectory.createUser("user1", "User One"));
+            final Properties properties = new Properties();
+            properties.setProperty(Context.PROVIDER_URL, directory.getUrl());
+            properties.setProperty(Context.SECURITY_PRINCIPAL, PersistentSearchDirectory.PRINCIPAL);
+            properties.setProperty(Context.SECURITY_CREDENTIALS, PersistentSearchDirectory.CREDENTIALS);
+            properties.setProperty(KEY_USER_BASE, PersistentSearchDirectory.USERS_RDN);
+            properties.setProperty(KEY_USER_SEARCH_FILTER, "(objectClass=user)");
+            properties.setProperty(KEY_USER_USERNAME_ATTR, "sAMAccountName");
+            properties.setProperty(KEY_USER_DISPLAY_NAME_ATTR, "displayName");
+            properties.setProperty(KEY_USER_MAIL_ATTR, "mail");
+            properties.setProperty(KEY_SNAPSHOT_FILE, new File(tempDir, "snapshot.bin").getPath());
+            final LdapProperties ldapProperties = new LdapProperties(properties);
+            try (LdapContext ldapContext = new LdapContext(ldapProperties);
+                 LdapFetcher ldapFetcher = new LdapFetcher(new RemoteDataFetcherOptions(true, false), ldapProperties, ldapContext);
+                 LdapSynchronizer synchronizer = new LdapSynchronizer(ldapFetcher, ldapProperties, createApplier(true, true, false, 100))) {
+                assertNotNull(synchronizer.syncChanges());
+                assertEquals("User One", stub.findUser("user1").getName());
+
+                directory.modify(PersistentSearchDirectory.getUserDn("user1"), new Modification(ModificationType.REPLACE, "displayName", "Renamed"));
+                // the users are listed by the first request and the update is the second one
+                stub.setRejectEvery(2);
+                assertEquals(1, synchronizer.syncChanges().getUpdatedUsers().size());
+                assertEquals("User One", stub.findUser("user1").getName());
+
+                stub.setRejectEvery(0);
+                assertEquals(1, synchronizer.syncChanges().getUpdatedUsers().size());
+                assertEquals("Renamed", stub.findUser("user1").getName());
+
+                assertTrue(synchronizer.syncChanges().isEmpty());
+            }
+        }
+    }
+
+    @NonNull
+    private TeamCityUserApplier createApplier(final boolean createUsers, final boolean updateUsers, final boolean deleteUsers,
+                                              final int maxDeletePercent) {
+        return new TeamCityUserApplier(new TeamCityRestClient(stub.getUrl(), null, 10000, 0, 0, LdapMetrics.noop()), REMOTE_ID_PROPERTY,
+                Collections.emptySet(), 2, createUsers, updateUsers, deleteUsers, false, maxDeletePercent, LdapMetrics.noop());
+    }
+
+    @NonNull
+    private TeamCityUserApplier createApplierFromProperties(final boolean userSync) {
+        final Properties properties = new Properties();
+        properties.setProperty(KEY_REST_URL, stub.getUrl());
+        properties.setProperty(KEY_REST_RETRIES, "0");
+        properties.setProperty(KEY_CREATE_USERS_SYNC_OPTION, "true");
+        properties.setProperty(KEY_DELETE_USERS_SYNC_OPTION, "true");
+        properties.setProperty(KEY_REST_MAX_DELETE_PERCENT, "100");
+        final TeamCityUserApplier result = TeamCityUserApplier.fromProperties(new LdapProperties(properties),
+                new RemoteDataFetcherOptions(userSync, true), LdapMetrics.noop());
+        assertNotNull(result);
+        return result;
+    }
+
+    @NonNull
+    private TeamCityRestStub.User getUser(final long id) {
+        final TeamCityRestStub.User result = stub.getUser(id);
+        assertNotNull(result);
+        return result;
+    }
+
+    @NonNull
+    private static RemoteUserData user(@NonNull final String remoteId, @NonNull final String username, @Nullable final String displayName) {
+        return new RemoteUserData(remoteId, username, displayName, null, Collections.emptyMap());
+    }
+}
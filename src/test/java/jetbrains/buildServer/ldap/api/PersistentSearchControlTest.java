@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2021 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jetbrains.buildServer.ldap.api;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.Control;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import com.unboundid.ldap.sdk.controls.PersistentSearchRequestControl;
+import org.junit.jupiter.api.Test;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentSearchControlTest {
+    @Test
+    void encodesRequest() throws Exception {
+        final PersistentSearchControl control = new PersistentSearchControl(true);
+        final PersistentSearchRequestControl decoded = new PersistentSearchRequestControl(
+                new Control(control.getID(), control.isCritical(), new ASN1OctetString(control.getEncodedValue())));
+        assertEquals(EnumSet.allOf(PersistentSearchChangeType.class), decoded.getChangeTypes());
+        assertTrue(decoded.changesOnly());
+        assertTrue(decoded.returnECs());
+        assertTrue(decoded.isCritical());
+    }
+
+    @Test
+    void decodesChangeTypes() {
+        assertEquals(PersistentSearchControl.ChangeType.ADD, decode(PersistentSearchChangeType.ADD, null, -1).getChangeType());
+        assertEquals(PersistentSearchControl.ChangeType.DELETE, decode(PersistentSearchChangeType.DELETE, null, -1).getChangeType());
+        assertEquals(PersistentSearchControl.ChangeType.MODIFY, decode(PersistentSearchChangeType.MODIFY, null, 7).getChangeType());
+        assertNull(decode(PersistentSearchChangeType.MODIFY, null, 7).getPreviousDN());
+    }
+
+    @Test
+    void decodesPreviousDn() {
+        final PersistentSearchControl.EntryChange change = decode(PersistentSearchChangeType.MODIFY_DN, "cn=old,dc=example,dc=com", 42);
+        assertEquals(PersistentSearchControl.ChangeType.MODIFY_DN, change.getChangeType());
+        assertEquals("cn=old,dc=example,dc=com", change.getPreviousDN());
+        assertEquals("cn=J\u00fcrgen,dc=example,dc=com", decode(PersistentSearchChangeType.MODIFY_DN, "cn=J\u00fcrgen,dc=example,dc=com", -1).getPreviousDN());
+    }
+
+    @Test
+    void decodesLongFormLength() {
+        // the previous DN makes the sequence longer than 127 and 255 bytes, so its length takes 2 and 3 bytes
+        for (int length : new int[]{200, 70000}) {
+            final char[] value = new char[length];
+            Arrays.fill(value, 'a');
+            final String previousDn = "cn=" + new String(value) + ",dc=example,dc=com";
+            final PersistentSearchControl.EntryChange change = decode(PersistentSearchChangeType.MODIFY_DN, previousDn, 1);
+            assertEquals(PersistentSearchControl.ChangeType.MODIFY_DN, change.getChangeType());
+            assertEquals(previousDn, change.getPreviousDN());
+        }
+    }
+
+    @Test
+    void ignoresMalformedValues() {
+        assertNull(PersistentSearchControl.decodeEntryChange(null));
+        assertNull(PersistentSearchControl.decodeEntryChange(new byte[0]));
+        // not a sequence
+        assertNull(PersistentSearchControl.decodeEntryChange(new byte[]{0x31, 0x03, 0x0A, 0x01, 0x01}));
+        // integer instead of enumerated
+        assertNull(PersistentSearchControl.decodeEntryChange(new byte[]{0x30, 0x03, 0x02, 0x01, 0x01}));
+        // truncated
+        assertNull(PersistentSearchControl.decodeEntryChange(new byte[]{0x30, 0x03, 0x0A}));
+        assertNull(PersistentSearchControl.decodeEntryChange(new byte[]{0x30, 0x03, 0x0A, 0x02, 0x01}));
+        assertNull(PersistentSearchControl.decodeEntryChange(new byte[]{0x30, 0x07, 0x0A, 0x01, 0x08, 0x04, 0x05, 'c', 'n'}));
+        assertNull(PersistentSearchControl.decodeEntryChange(new byte[]{0x30, 0x07, 0x0A, 0x01, 0x08, 0x04, (byte) 0x82, 0x7F}));
+        // unknown change type
+        assertNull(PersistentSearchControl.decodeEntryChange(new byte[]{0x30, 0x03, 0x0A, 0x01, 0x03}));
+    }
+
+    @NonNull
+    private static PersistentSearchControl.EntryChange decode(@NonNull final PersistentSearchChangeType changeType,
+                                                            @Nullable final String previousDn,
+                                                            final long changeNumber) {
+        final EntryChangeNotificationControl control = new EntryChangeNotificationControl(changeType, previousDn, changeNumber);
+        final PersistentSearchControl.EntryChange change = PersistentSearchControl.decodeEntryChange(control.getValue().getValue());
+        assertNotNull(change);
+        return change;
+    }
+}